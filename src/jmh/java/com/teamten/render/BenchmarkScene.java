@@ -0,0 +1,100 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Shared setup for the benchmarks. The model defaults to the itokawa asteroid and
+ * can be changed with the "model" system property.
+ */
+class BenchmarkScene {
+    private static final String DEFAULT_MODEL = "models/itokawa_f0049152.tri.gz";
+    static final Vector EYE = Vector.make(0.5, 0.5, 0.5);
+    static final Vector TARGET = Vector.make(0, 0, 0);
+    static final double FOV = Math.PI/4;
+    private static List<Triangle> sTriangleList = null;
+
+    /**
+     * Returns the triangles of the model, loading them the first time.
+     */
+    static synchronized List<Triangle> getTriangleList() throws IOException {
+        if (sTriangleList == null) {
+            sTriangleList = TriFile.read(new File(System.getProperty("model", DEFAULT_MODEL)));
+        }
+
+        return sTriangleList;
+    }
+
+    /**
+     * Returns a bounding box with all the model's triangles and its tree built
+     * by the given builder.
+     */
+    static BoundingBox makeBoundingBox(HierarchyBuilder builder) throws IOException {
+        BoundingBox boundingBox = new BoundingBox();
+        for (Triangle triangle : getTriangleList()) {
+            boundingBox.addTriangle(triangle);
+        }
+        boundingBox.createTree(builder);
+
+        return boundingBox;
+    }
+
+    /**
+     * Returns a renderer with the model loaded and prepared, looking at the model
+     * from a fixed position.
+     */
+    static Renderer makeRenderer(int superSample, Material material) throws IOException {
+        Renderer renderer = new Renderer(superSample);
+        for (Triangle triangle : getTriangleList()) {
+            renderer.addTriangle(triangle);
+        }
+        renderer.lookAt(EYE, TARGET, null);
+        renderer.setFov(FOV, FOV);
+        renderer.setMaterial(material);
+        renderer.prepareGeometry();
+
+        return renderer;
+    }
+
+    /**
+     * Returns a fixed set of rays from the eye toward the model, as
+     * a direction per ray. The same seed always gives the same rays.
+     */
+    static Vector[] makeRays(int count, long seed) {
+        Random random = new Random(seed);
+        Vector forward = TARGET.subtract(EYE);
+        Vector[] rays = new Vector[count];
+
+        for (int i = 0; i < count; i++) {
+            rays[i] = forward.add(Vector.make(
+                        random.nextGaussian()*0.1,
+                        random.nextGaussian()*0.1,
+                        random.nextGaussian()*0.1));
+        }
+
+        return rays;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures full-frame renders of the model at fixed resolutions and sample counts,
+ * with both the Phong and ambient occlusion materials.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FrameBenchmark {
+    @Param({"256", "512"})
+    public int mSize;
+
+    @Param({"1", "2"})
+    public int mSuperSample;
+
+    @Param({"phong", "ao"})
+    public String mMaterial;
+
+    private Renderer mRenderer;
+
+    @Setup
+    public void setup() throws IOException {
+        Material material = mMaterial.equals("ao")
+            ? new AmbientOcclusionMaterial(Color.WHITE, 4, 4)
+            : PhongMaterial.DEFAULT;
+        mRenderer = BenchmarkScene.makeRenderer(mSuperSample, material);
+    }
+
+    @Benchmark
+    public BufferedImage render() {
+        return mRenderer.render(mSize, mSize, 0, 0, 1.0f/mSize, 1.0f/mSize);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the ray/box and ray/triangle intersection kernels on their own, using
+ * a fixed set of rays and the boxes and triangles of the model.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KernelBenchmark {
+    private static final int RAY_COUNT = 1024;
+    private Vector[] mRays;
+    private BoundingBox[] mBoxes;
+    private Triangle[] mTriangles;
+    private Renderer mRenderer;
+    private RenderStats mRenderStats;
+
+    @Setup
+    public void setup() throws IOException {
+        mRays = BenchmarkScene.makeRays(RAY_COUNT, 0);
+
+        // One leaf box and one triangle per ray, taken from across the model.
+        BoundingBox root = BenchmarkScene.makeBoundingBox(HierarchyBuilder.MIDPOINT);
+        List<Triangle> triangleList = BenchmarkScene.getTriangleList();
+        mBoxes = new BoundingBox[RAY_COUNT];
+        mTriangles = new Triangle[RAY_COUNT];
+        for (int i = 0; i < RAY_COUNT; i++) {
+            BoundingBox box = root;
+            for (int depth = 0; !box.getChildList().isEmpty(); depth++) {
+                box = box.getChildList().get((i >> (depth % 10)) & 1);
+            }
+            mBoxes[i] = box;
+            mTriangles[i] = triangleList.get((int) ((long) i*triangleList.size()/RAY_COUNT));
+        }
+
+        mRenderer = new Renderer(1);
+        mRenderer.setCullBackfacingTriangles(false);
+        mRenderStats = new RenderStats();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAY_COUNT)
+    public void rayBox(Blackhole blackhole) {
+        for (int i = 0; i < RAY_COUNT; i++) {
+            blackhole.consume(mBoxes[i].intersectsRay(BenchmarkScene.EYE, mRays[i],
+                        Double.MAX_VALUE, false));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAY_COUNT)
+    public void rayTriangle(Blackhole blackhole) {
+        for (int i = 0; i < RAY_COUNT; i++) {
+            Intersection intersection = new Intersection();
+            mRenderer.intersectTriangle(BenchmarkScene.EYE, mRays[i], mTriangles[i],
+                    intersection, mRenderStats, false);
+            blackhole.consume(intersection);
+        }
+    }
+}
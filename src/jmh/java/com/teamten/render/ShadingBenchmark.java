@@ -0,0 +1,88 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the ambient occlusion material on its own, shading a fixed set of
+ * primary hits on the model. This includes the occlusion rays it traces.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ShadingBenchmark {
+    private static final int HIT_COUNT = 256;
+    private RayTracer mRayTracer;
+    private Vector[] mRays;
+    private Intersection[] mIntersections;
+
+    @Setup
+    public void setup() throws IOException {
+        Renderer renderer = BenchmarkScene.makeRenderer(1,
+                new AmbientOcclusionMaterial(Color.WHITE, 4, 4));
+        mRayTracer = renderer.makeRayTracer(new RenderStats());
+
+        // Keep the rays that hit the model.
+        List<Vector> rayList = new ArrayList<Vector>();
+        List<Intersection> intersectionList = new ArrayList<Intersection>();
+        for (Vector ray : BenchmarkScene.makeRays(HIT_COUNT*4, 1)) {
+            Intersection intersection = mRayTracer.intersect(BenchmarkScene.EYE, ray, false);
+            if (intersection.getTriangle() != null && rayList.size() < HIT_COUNT) {
+                rayList.add(ray);
+                intersectionList.add(intersection);
+            }
+        }
+        if (rayList.size() < HIT_COUNT) {
+            throw new IllegalStateException("Only " + rayList.size() + " rays hit the model");
+        }
+        mRays = rayList.toArray(new Vector[HIT_COUNT]);
+        mIntersections = intersectionList.toArray(new Intersection[HIT_COUNT]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HIT_COUNT)
+    public void ambientOcclusion(Blackhole blackhole) {
+        for (int i = 0; i < HIT_COUNT; i++) {
+            blackhole.consume(mRayTracer.shade(mRays[i], mIntersections[i], false));
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+/**
+ * A material that can shade a point into a {@link ColorAccumulator} that the caller
+ * reuses, so that the render loop's shading stage doesn't allocate. The renderer
+ * uses this instead of {@link #shade(RayTracer, Vector, Intersection, Light[], boolean)}
+ * when the material implements it.
+ */
+public interface AccumulatingMaterial extends Material {
+    /**
+     * Set the color of the shaded point into "color", which is otherwise like
+     * {@link #shade(RayTracer, Vector, Intersection, Light[], boolean)}.
+     *
+     * @param eye vector from eye, not normalized.
+     */
+    void shade(RayTracer rayTracer, Vector eye, Intersection intersection,
+            Light[] lightList, ColorAccumulator color, boolean debug);
+}
@@ -23,9 +23,13 @@ package com.teamten.render;
 import com.teamten.math.Vector;
 
 /**
- * Implements the ambient occlusion material.
+ * Implements the ambient occlusion material. Shading into an accumulator traces
+ * its rays with {@link RayTracer#isOccluded} and allocates nothing for
+ * non-instanced triangles.
  */
-public class AmbientOcclusionMaterial implements Material {
+public class AmbientOcclusionMaterial implements DeferredRayMaterial, AccumulatingMaterial {
+    // How far along the normal the occlusion rays start.
+    private static final double RAY_ORIGIN_OFFSET = 0.0001;
     private final Color mSurfaceColor;
     private final int mGridWidth;
     private final int mGridHeight;
@@ -46,68 +50,60 @@ public class AmbientOcclusionMaterial implements Material {
     public Color shade(RayTracer rayTracer, Vector eye, Intersection intersection,
             Light[] lightList, boolean debug) {
 
-        // Lights are ignored.
+        ColorAccumulator color = new ColorAccumulator();
+        shade(rayTracer, eye, intersection, lightList, color, debug);
 
-        Vector point = intersection.getPoint();
-        Vector normal = intersection.getNormal();
-
-        // Move past the original intersection point in case we have backface culling
-        // disabled. This epsilon is a bit disturbing.
-        point = point.add(normal.multiply(0.0001));
+        return color.toColor();
+    }
 
-        // Find one triangle edge.
-        Vector vertex0 = intersection.getTriangle().get(0).getPoint();
-        Vector vertex1 = intersection.getTriangle().get(1).getPoint();
-        Vector edge = vertex1.subtract(vertex0);
+    @Override // AccumulatingMaterial
+    public void shade(RayTracer rayTracer, Vector eye, Intersection intersection,
+            Light[] lightList, ColorAccumulator color, boolean debug) {
 
-        // Calculate two vectors for the surface plane. Doesn't matter which
-        // way they face, so pick one edge and cross to get the third.
-        Vector x = edge.normalize();
-        Vector z = x.cross(normal);
+        // Lights are ignored. Same as addRays(), but in scalars so that nothing
+        // is allocated.
+        double nx = intersection.getNormal(0);
+        double ny = intersection.getNormal(1);
+        double nz = intersection.getNormal(2);
+        Vector point = intersection.getPoint();
+        double ox = point.get(0) + nx*RAY_ORIGIN_OFFSET;
+        double oy = point.get(1) + ny*RAY_ORIGIN_OFFSET;
+        double oz = point.get(2) + nz*RAY_ORIGIN_OFFSET;
+
+        // Two vectors for the surface plane.
+        double xx = intersection.getTangent(0);
+        double xy = intersection.getTangent(1);
+        double xz = intersection.getTangent(2);
+        double zx = xy*nz - xz*ny;
+        double zy = xz*nx - xx*nz;
+        double zz = xx*ny - xy*nx;
 
         double brightness = 0.0;
         double total = 0.0;
 
         for (int i = 0; i < mRayCount; i++) {
-            double dx;
-            double dy;
-            double dz;
-
-            // Generate rays within the unit hemisphere.
-            if (false) {
-                // Uniform random sampling.
-                do {
-                    dx = Math.random()*2 - 1;
-                    dy = Math.random();
-                    dz = Math.random()*2 - 1;
-                } while (dx*dx + dy*dy + dz*dz > 1);
-            } else {
-                // Uniform grid sampling. Pick point on cylinder.
-                /*
-                double latitude = Math.random()*Math.PI/2;
-                double longitude = Math.random()*Math.PI*2;
-                */
-                double latitude = (i % mGridWidth + Math.random()) / mGridWidth * Math.PI/2;
-                double longitude = (i / mGridWidth + Math.random()) / mGridHeight * Math.PI*2;
-
-                double dist = Math.cos(latitude);
-                dx = Math.sin(longitude)*dist;
-                dy = Math.sin(latitude);
-                dz = Math.cos(longitude)*dist;
-            }
-
-            Vector v = normal.multiply(dy).add(x.multiply(dx)).add(z.multiply(dz)).normalize();
+            double latitude = getLatitude(i);
+            double longitude = getLongitude(i);
+            double dist = Math.cos(latitude);
+            double dx = Math.sin(longitude)*dist;
+            double dy = Math.sin(latitude);
+            double dz = Math.cos(longitude)*dist;
+
+            double vx = nx*dy + xx*dx + zx*dz;
+            double vy = ny*dy + xy*dx + zy*dz;
+            double vz = nz*dy + xz*dx + zz*dz;
+            double scale = 1/Math.sqrt(vx*vx + vy*vy + vz*vz);
+            vx *= scale;
+            vy *= scale;
+            vz *= scale;
 
             // Cosine law, like diffuse.
-            double contribution = v.dot(normal);
+            double contribution = vx*nx + vy*ny + vz*nz;
             total += contribution;
 
             // We only care about rays that hit the sky (Y >= 0).
-            if (v.get(1) >= 0) {
-                Intersection newIntersection = rayTracer.intersect(point, v, debug);
-                if (newIntersection.getTriangle() == null) {
-                    brightness += contribution;
-                }
+            if (vy >= 0 && !rayTracer.isOccluded(ox, oy, oz, vx, vy, vz, debug)) {
+                brightness += contribution;
             }
         }
 
@@ -116,6 +112,105 @@ public class AmbientOcclusionMaterial implements Material {
             brightness /= total;
         }
 
-        return mSurfaceColor.multiply(brightness);
+        color.set(mSurfaceColor);
+        color.multiply(brightness);
+    }
+
+    @Override // DeferredRayMaterial
+    public int getMaxRayCount() {
+        return mRayCount;
+    }
+
+    @Override // DeferredRayMaterial
+    public Color addRays(Vector eye, Intersection intersection, Light[] lightList,
+            RayQueue rayQueue, int sample) {
+
+        Vector point = getRayOrigin(intersection);
+        Vector normal = intersection.getNormal();
+        Vector x = intersection.getTangent();
+        Vector z = x.cross(normal);
+
+        // Need the total before the rays can be weighted.
+        Vector[] directions = new Vector[mRayCount];
+        double total = 0.0;
+        for (int i = 0; i < mRayCount; i++) {
+            directions[i] = getRayDirection(i, normal, x, z);
+            total += directions[i].dot(normal);
+        }
+
+        if (total != 0) {
+            for (Vector v : directions) {
+                if (v.get(1) >= 0) {
+                    rayQueue.add(point, v, sample, mSurfaceColor.multiply(v.dot(normal)/total));
+                }
+            }
+        }
+
+        return Color.BLACK;
+    }
+
+    /**
+     * Returns the point that the occlusion rays start from.
+     */
+    private static Vector getRayOrigin(Intersection intersection) {
+        // Move past the original intersection point in case we have backface culling
+        // disabled. This epsilon is a bit disturbing.
+        return intersection.getPoint().add(intersection.getNormal().multiply(RAY_ORIGIN_OFFSET));
+    }
+
+    /**
+     * Returns the normalized direction of occlusion ray i, given the normal and two
+     * vectors in the surface plane.
+     */
+    private Vector getRayDirection(int i, Vector normal, Vector x, Vector z) {
+        double dx;
+        double dy;
+        double dz;
+
+        // Generate rays within the unit hemisphere.
+        if (false) {
+            // Uniform random sampling.
+            do {
+                dx = Math.random()*2 - 1;
+                dy = Math.random();
+                dz = Math.random()*2 - 1;
+            } while (dx*dx + dy*dy + dz*dz > 1);
+        } else {
+            // Uniform grid sampling. Pick point on cylinder.
+            /*
+            double latitude = Math.random()*Math.PI/2;
+            double longitude = Math.random()*Math.PI*2;
+            */
+            double latitude = getLatitude(i);
+            double longitude = getLongitude(i);
+
+            double dist = Math.cos(latitude);
+            dx = Math.sin(longitude)*dist;
+            dy = Math.sin(latitude);
+            dz = Math.cos(longitude)*dist;
+        }
+
+        // Combine in scalars so that only the result is allocated.
+        double vx = normal.get(0)*dy + x.get(0)*dx + z.get(0)*dz;
+        double vy = normal.get(1)*dy + x.get(1)*dx + z.get(1)*dz;
+        double vz = normal.get(2)*dy + x.get(2)*dx + z.get(2)*dz;
+        double scale = 1/Math.sqrt(vx*vx + vy*vy + vz*vz);
+
+        return Vector.make(vx*scale, vy*scale, vz*scale);
+    }
+
+    /**
+     * Returns a random latitude, from 0 at the horizon to pi/2 at the pole, within
+     * the grid cell of ray i.
+     */
+    private double getLatitude(int i) {
+        return (i % mGridWidth + Math.random()) / mGridWidth * Math.PI/2;
+    }
+
+    /**
+     * Returns a random longitude, from 0 to 2*pi, within the grid cell of ray i.
+     */
+    private double getLongitude(int i) {
+        return (i / mGridWidth + Math.random()) / mGridHeight * Math.PI*2;
     }
 }
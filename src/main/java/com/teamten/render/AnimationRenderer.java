@@ -0,0 +1,204 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+import java.awt.image.BufferedImage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders a sequence of frames along a camera path to numbered PNG files. All frames
+ * share the renderer's hierarchy and one thread pool, and each frame is encoded and
+ * written on a separate thread while the next one is traced.
+ */
+public class AnimationRenderer {
+    // Frames that may be waiting to be written while the next one is traced.
+    private static final int MAX_PENDING_FRAMES = 2;
+    private final Renderer mRenderer;
+    private RenderStats mRenderStats = new RenderStats();
+
+    /**
+     * Where the camera is for each frame.
+     */
+    public interface CameraPath {
+        /**
+         * Set the renderer's camera for the frame, usually with {@link Renderer#lookAt}.
+         */
+        void setCamera(Renderer renderer, int frame);
+    }
+
+    /**
+     * Renders with the renderer, whose geometry must already have been prepared
+     * with {@link Renderer#prepareGeometry}.
+     */
+    public AnimationRenderer(Renderer renderer) {
+        mRenderer = renderer;
+    }
+
+    /**
+     * Make a path that circles the eye once around the vertical axis through the
+     * target, in frameCount steps, starting at the given eye.
+     */
+    public static CameraPath makeTurntable(final Vector eye, final Vector target,
+            final int frameCount) {
+
+        return new CameraPath() {
+            @Override // CameraPath
+            public void setCamera(Renderer renderer, int frame) {
+                double angle = 2*Math.PI*frame/frameCount;
+                double cos = Math.cos(angle);
+                double sin = Math.sin(angle);
+                Vector offset = eye.subtract(target);
+                double x = offset.get(0)*cos + offset.get(2)*sin;
+                double z = -offset.get(0)*sin + offset.get(2)*cos;
+
+                renderer.lookAt(target.add(Vector.make(x, offset.get(1), z)), target, null);
+            }
+        };
+    }
+
+    /**
+     * Returns the total statistics of the frames of the most recent call to {@link #render}.
+     */
+    public RenderStats getRenderStats() {
+        return mRenderStats;
+    }
+
+    /**
+     * Render frames 0 to frameCount - 1 and write each to a file named by formatting
+     * the frame number with the pattern, such as "frame%04d.png".
+     */
+    public void render(CameraPath cameraPath, int frameCount, int width, int height,
+            String filenamePattern) throws IOException, InterruptedException {
+
+        ExecutorService renderExecutorService = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        ExecutorService encoderExecutorService = Executors.newSingleThreadExecutor();
+        Deque<Future<Void>> pendingFrames = new ArrayDeque<Future<Void>>();
+        RenderStats renderStats = new RenderStats();
+        long beforeTime = System.currentTimeMillis();
+        long encoderWaitMs = 0;
+
+        ExecutorService previousExecutorService = mRenderer.getExecutorService();
+        mRenderer.setExecutorService(renderExecutorService);
+        try {
+            for (int frame = 0; frame < frameCount; frame++) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                cameraPath.setCamera(mRenderer, frame);
+                BufferedImage image = mRenderer.render(width, height,
+                        0, 0, 1f/width, 1f/height);
+                renderStats.merge(mRenderer.getRenderStats());
+
+                // An interrupted render returns a partial image, which must not be written.
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                // Don't let frames pile up if encoding is slower than tracing.
+                if (pendingFrames.size() == MAX_PENDING_FRAMES) {
+                    long beforeWaitTime = System.currentTimeMillis();
+                    waitForFrame(pendingFrames.removeFirst());
+                    encoderWaitMs += System.currentTimeMillis() - beforeWaitTime;
+                }
+
+                File file = new File(String.format(filenamePattern, frame));
+                pendingFrames.addLast(encoderExecutorService.submit(makeWriter(image, file)));
+            }
+
+            while (!pendingFrames.isEmpty()) {
+                waitForFrame(pendingFrames.removeFirst());
+            }
+        } finally {
+            mRenderer.setExecutorService(previousExecutorService);
+            renderExecutorService.shutdown();
+
+            // Frames still waiting to be written are dropped.
+            encoderExecutorService.shutdownNow();
+        }
+
+        mRenderStats = renderStats;
+        System.out.printf("Rendered %,d frames in %,d ms (%,d ms tracing, %,d ms waiting for the encoder)%n",
+                frameCount, System.currentTimeMillis() - beforeTime,
+                renderStats.getRenderTimeMs(), encoderWaitMs);
+    }
+
+    /**
+     * Make a task that encodes the image to the file.
+     */
+    private static Callable<Void> makeWriter(final BufferedImage image, final File file) {
+        return new Callable<Void>() {
+            @Override // Callable
+            public Void call() throws IOException {
+                int width = image.getWidth();
+                int height = image.getHeight();
+                int[] argb = new int[width];
+
+                OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file));
+                try {
+                    PngWriter pngWriter = new PngWriter(outputStream, width, height);
+                    for (int y = 0; y < height; y++) {
+                        image.getRGB(0, y, width, 1, argb, 0, width);
+                        pngWriter.writeRow(argb);
+                    }
+                    pngWriter.close();
+                } finally {
+                    outputStream.close();
+                }
+
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Wait for the frame to be written, passing on its exception.
+     */
+    private static void waitForFrame(Future<Void> future) throws IOException, InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+}
@@ -35,8 +35,10 @@ public class BoundingBox {
     private static final int MIN_TRIANGLES = 5;
     private Vector mMin;
     private Vector mMax;
-    private final List<Triangle> mTriangleList = new ArrayList<Triangle>();
+    private final List<Triangle> mTriangleList;
     private final List<BoundingBox> mChildList = new ArrayList<BoundingBox>();
+    // Cone around the normals of all triangles, set by createTree().
+    private double[] mNormalCone = null;
 
     /**
      * Create an infinite empty box.
@@ -44,6 +46,18 @@ public class BoundingBox {
     public BoundingBox() {
         mMin = null;
         mMax = null;
+        mTriangleList = new ArrayList<Triangle>();
+    }
+
+    /**
+     * Create a box with the given bounds and triangles, which may stick out of it.
+     * The list is kept rather than copied, so builders can give each node a view of
+     * a shared list, and it must not be changed afterward.
+     */
+    BoundingBox(Vector min, Vector max, List<Triangle> triangleList) {
+        mMin = min;
+        mMax = max;
+        mTriangleList = triangleList;
     }
 
     public void addTriangle(Triangle triangle) {
@@ -86,6 +100,24 @@ public class BoundingBox {
         return mChildList;
     }
 
+    void addChild(BoundingBox child) {
+        mChildList.add(child);
+    }
+
+    /**
+     * Returns the minimum corner of the box, or null if the box is empty.
+     */
+    public Vector getMin() {
+        return mMin;
+    }
+
+    /**
+     * Returns the maximum corner of the box, or null if the box is empty.
+     */
+    public Vector getMax() {
+        return mMax;
+    }
+
     /**
      * Return the diagonal size of the bounding box.
      */
@@ -124,15 +156,24 @@ public class BoundingBox {
             System.out.printf("    Bounding box is %s to %s%n", mMin, mMax);
         }
 
+        return intersectsRay(mMin, mMax, r0, r, maxT, debug);
+    }
+
+    /**
+     * Returns whether the ray intersects the box from boxMin to boxMax, before maxT.
+     */
+    static boolean intersectsRay(Vector boxMin, Vector boxMax, Vector r0, Vector r,
+            double maxT, boolean debug) {
+
         // Keep a segment along the ray between minT and maxT.
         double minT = 0;
 
         // Go through each dimension.
-        for (int i = 0; i < mMin.getSize() && minT <= maxT; i++) {
+        for (int i = 0; i < boxMin.getSize() && minT <= maxT; i++) {
             double v0 = r0.get(i);
             double v = r.get(i);
-            double min = mMin.get(i);
-            double max = mMax.get(i);
+            double min = boxMin.get(i);
+            double max = boxMax.get(i);
 
             if (v >= -1e-6 && v <= 1e-6) {
                 // Parallel to slab. Don't update minT or maxT, but do check to
@@ -171,11 +212,87 @@ public class BoundingBox {
     }
 
     /**
-     * Build a tree below this node. Call this after having called addTriangle()
-     * for all triangles.
+     * Like {@link #intersectsRay(Vector, Vector, double, boolean)}, for the ray from
+     * (ox,oy,oz) toward (dx,dy,dz), without making vectors.
+     */
+    boolean intersectsRay(double ox, double oy, double oz, double dx, double dy, double dz,
+            double maxT) {
+
+        return mMin != null && PackedHierarchy.intersectsBox(
+                mMin.get(0), mMin.get(1), mMin.get(2), mMax.get(0), mMax.get(1), mMax.get(2),
+                ox, oy, oz, dx, dy, dz, maxT);
+    }
+
+    /**
+     * Build a tree below this node with the {@link HierarchyBuilder#MIDPOINT} builder.
+     * Call this after having called addTriangle() for all triangles.
      */
     public void createTree() {
-        splitBoxInDimension(0, 0);
+        createTree(HierarchyBuilder.MIDPOINT);
+    }
+
+    /**
+     * Build a tree below this node with the given builder. Call this after having
+     * called addTriangle() for all triangles. With spatial splits, a triangle may
+     * be in several leaves, but this node's list still has each triangle once.
+     */
+    public void createTree(HierarchyBuilder builder) {
+        switch (builder) {
+            case MIDPOINT:
+                splitBoxInDimension(0, 0);
+                break;
+
+            case SPATIAL_SPLIT:
+                SpatialSplitBuilder.build(this);
+                break;
+
+            case LINEAR:
+                LinearBuilder.build(this);
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown hierarchy builder " + builder);
+        }
+        computeNormalCones();
+    }
+
+    /**
+     * Compute the normal cone of this node and its children.
+     */
+    private void computeNormalCones() {
+        double[] normals = new double[mTriangleList.size()*3];
+        for (int i = 0; i < mTriangleList.size(); i++) {
+            Vector normal = mTriangleList.get(i).getNormal();
+            for (int j = 0; j < 3; j++) {
+                normals[i*3 + j] = normal.get(j);
+            }
+        }
+        mNormalCone = NormalCone.compute(normals, mTriangleList.size());
+
+        for (BoundingBox child : mChildList) {
+            child.computeNormalCones();
+        }
+    }
+
+    /**
+     * Whether all the triangles in the box face away from the ray direction r, so
+     * that none can be hit when back-facing triangles are culled. Always false
+     * before {@link #createTree} is called.
+     */
+    public boolean isBackfacing(Vector r) {
+        return isBackfacing(r.get(0), r.get(1), r.get(2), r.length());
+    }
+
+    /**
+     * Like {@link #isBackfacing(Vector)}, for the direction (dx,dy,dz) of the given length.
+     */
+    boolean isBackfacing(double dx, double dy, double dz, double length) {
+        if (mNormalCone == null) {
+            return false;
+        }
+
+        return NormalCone.isBackfacing(mNormalCone[0], mNormalCone[1], mNormalCone[2],
+                mNormalCone[3], dx, dy, dz, length);
     }
 
     /**
@@ -191,12 +308,9 @@ public class BoundingBox {
         /**
          * If we've gone three recursions in a row without decreasing the
          * number of triangles, then we're not making progress and must stop.
+         * The large leaves this leaves behind show up in {@link HierarchyStats}.
          */
         if (sameCount == 3) {
-            if (mTriangleList.size() > 10) {
-                System.out.printf("Warning: Can't break box with %d triangles.%n",
-                        mTriangleList.size());
-            }
             return;
         }
 
@@ -0,0 +1,71 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+/**
+ * Lets a render be stopped early, either explicitly with {@link #cancel} or when a
+ * deadline passes. Renders check it before starting each row, so rows in progress
+ * still finish. Subclasses can add their own conditions by overriding
+ * {@link #isCancelled}.
+ */
+public class CancellationToken {
+    private final long mDeadlineNanos;
+    private final boolean mHasDeadline;
+    private volatile boolean mCancelled = false;
+
+    /**
+     * Make a token that's only cancelled by {@link #cancel}.
+     */
+    public CancellationToken() {
+        mDeadlineNanos = 0;
+        mHasDeadline = false;
+    }
+
+    private CancellationToken(long deadlineNanos) {
+        mDeadlineNanos = deadlineNanos;
+        mHasDeadline = true;
+    }
+
+    /**
+     * Make a token that's cancelled once this many milliseconds have passed,
+     * or earlier by {@link #cancel}.
+     */
+    public static CancellationToken withTimeout(long timeoutMs) {
+        return new CancellationToken(System.nanoTime() + timeoutMs*1000000);
+    }
+
+    /**
+     * Stop the render. Can be called from any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Whether the render should stop. Called from render threads.
+     */
+    public boolean isCancelled() {
+        if (!mCancelled && mHasDeadline && System.nanoTime() - mDeadlineNanos >= 0) {
+            mCancelled = true;
+        }
+
+        return mCancelled;
+    }
+}
@@ -21,30 +21,50 @@
 package com.teamten.render;
 
 /**
- * Represents an immutable ARGB color.
+ * Represents an immutable ARGB color. See {@link ColorAccumulator} for adding up
+ * colors without allocating.
  */
 public class Color {
     public static final Color BLACK = new Color(1, 0, 0, 0);
     public static final Color WHITE = new Color(1, 1, 1, 1);
 
-    // In order ARGB, values 0.0 to 1.0.
-    private final double[] mValues = new double[4];
+    // Values 0.0 to 1.0. Fields rather than an array so that each color is one allocation.
+    private final double mAlpha;
+    private final double mRed;
+    private final double mGreen;
+    private final double mBlue;
 
     public Color(double alpha, double red, double green, double blue) {
-        mValues[0] = alpha;
-        mValues[1] = red;
-        mValues[2] = green;
-        mValues[3] = blue;
+        mAlpha = alpha;
+        mRed = red;
+        mGreen = green;
+        mBlue = blue;
+    }
+
+    public double getAlpha() {
+        return mAlpha;
+    }
+
+    public double getRed() {
+        return mRed;
+    }
+
+    public double getGreen() {
+        return mGreen;
+    }
+
+    public double getBlue() {
+        return mBlue;
     }
 
     /**
      * Returns the pair-wise sum of the colors. Alpha is unaffected by other's alpha.
      */
     public Color add(Color other) {
-        return new Color(mValues[0],
-                mValues[1] + other.mValues[1],
-                mValues[2] + other.mValues[2],
-                mValues[3] + other.mValues[3]);
+        return new Color(mAlpha,
+                mRed + other.mRed,
+                mGreen + other.mGreen,
+                mBlue + other.mBlue);
     }
 
     /**
@@ -52,10 +72,10 @@ public class Color {
      */
     public Color multiply(Color other) {
         return new Color(
-                mValues[0] * other.mValues[0],
-                mValues[1] * other.mValues[1],
-                mValues[2] * other.mValues[2],
-                mValues[3] * other.mValues[3]);
+                mAlpha * other.mAlpha,
+                mRed * other.mRed,
+                mGreen * other.mGreen,
+                mBlue * other.mBlue);
     }
 
     /**
@@ -63,7 +83,7 @@ public class Color {
      * not the transparency.
      */
     public Color multiply(double scalar) {
-        return new Color(mValues[0], mValues[1]*scalar, mValues[2]*scalar, mValues[3]*scalar);
+        return new Color(mAlpha, mRed*scalar, mGreen*scalar, mBlue*scalar);
     }
 
     /**
@@ -71,10 +91,10 @@ public class Color {
      */
     public Color clamp() {
         return new Color(
-                clampScalar(mValues[0]),
-                clampScalar(mValues[1]),
-                clampScalar(mValues[2]),
-                clampScalar(mValues[3]));
+                clampScalar(mAlpha),
+                clampScalar(mRed),
+                clampScalar(mGreen),
+                clampScalar(mBlue));
     }
 
     /**
@@ -94,16 +114,16 @@ public class Color {
      * Return the packed 32-bit ARGB representation.
      */
     public int toArgb() {
-        int alpha = (int) (mValues[0] * 255);
-        int red = (int) (mValues[1] * 255);
-        int green = (int) (mValues[2] * 255);
-        int blue = (int) (mValues[3] * 255);
+        int alpha = (int) (mAlpha * 255);
+        int red = (int) (mRed * 255);
+        int green = (int) (mGreen * 255);
+        int blue = (int) (mBlue * 255);
 
         return (alpha << 24) | (red << 16) | (green << 8) | blue;
     }
 
     @Override // Object
     public String toString() {
-        return "<" + mValues[0] + "," + mValues[1] + "," + mValues[2] + "," + mValues[3] + ">";
+        return "<" + mAlpha + "," + mRed + "," + mGreen + "," + mBlue + ">";
     }
 }
@@ -0,0 +1,115 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+/**
+ * A mutable ARGB color, for adding up colors in inner loops without allocating a
+ * {@link Color} for each step. Each render thread keeps its own. The operations
+ * match those of {@link Color}, so the results are the same to the bit.
+ */
+public class ColorAccumulator {
+    private double mAlpha;
+    private double mRed;
+    private double mGreen;
+    private double mBlue;
+
+    /**
+     * Start as transparent black.
+     */
+    public ColorAccumulator() {
+        // Nothing to do.
+    }
+
+    public double getAlpha() {
+        return mAlpha;
+    }
+
+    public double getRed() {
+        return mRed;
+    }
+
+    public double getGreen() {
+        return mGreen;
+    }
+
+    public double getBlue() {
+        return mBlue;
+    }
+
+    public void set(double alpha, double red, double green, double blue) {
+        mAlpha = alpha;
+        mRed = red;
+        mGreen = green;
+        mBlue = blue;
+    }
+
+    public void set(Color color) {
+        set(color.getAlpha(), color.getRed(), color.getGreen(), color.getBlue());
+    }
+
+    /**
+     * Add the color. Alpha is unaffected, like {@link Color#add}.
+     */
+    public void add(Color color) {
+        mRed += color.getRed();
+        mGreen += color.getGreen();
+        mBlue += color.getBlue();
+    }
+
+    /**
+     * Add the other accumulator's color. Alpha is unaffected.
+     */
+    public void add(ColorAccumulator other) {
+        mRed += other.mRed;
+        mGreen += other.mGreen;
+        mBlue += other.mBlue;
+    }
+
+    /**
+     * Add the pair-wise product of the two colors times the scalar, like adding
+     * a.multiply(b).multiply(scalar). Alpha is unaffected.
+     */
+    public void addProduct(Color a, Color b, double scalar) {
+        mRed += a.getRed()*b.getRed()*scalar;
+        mGreen += a.getGreen()*b.getGreen()*scalar;
+        mBlue += a.getBlue()*b.getBlue()*scalar;
+    }
+
+    /**
+     * Multiply the color components by a scalar, but not the transparency.
+     */
+    public void multiply(double scalar) {
+        mRed *= scalar;
+        mGreen *= scalar;
+        mBlue *= scalar;
+    }
+
+    /**
+     * Returns the current color as an immutable color.
+     */
+    public Color toColor() {
+        return new Color(mAlpha, mRed, mGreen, mBlue);
+    }
+
+    @Override // Object
+    public String toString() {
+        return "<" + mAlpha + "," + mRed + "," + mGreen + "," + mBlue + ">";
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+/**
+ * A material whose rays, like the occlusion rays of {@link AmbientOcclusionMaterial},
+ * can be traced by {@link Renderer#renderWavefront} in batches along with the rays of
+ * other points, instead of one point at a time inside {@link #shade}. The color of a
+ * point is its direct color plus the colors of its rays that hit nothing.
+ */
+public interface DeferredRayMaterial extends Material {
+    /**
+     * Returns the most rays that {@link #addRays} adds for one point.
+     */
+    int getMaxRayCount();
+
+    /**
+     * Add the rays of the point to the queue, for this sample, and return the
+     * color of the point that doesn't depend on them. The intersection must not
+     * be empty.
+     *
+     * @param eye vector from eye, not normalized.
+     */
+    Color addRays(Vector eye, Intersection intersection, Light[] lightList,
+            RayQueue rayQueue, int sample);
+}
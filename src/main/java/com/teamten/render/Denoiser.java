@@ -0,0 +1,364 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Removes noise from a shaded image, such as that of ambient occlusion with few rays,
+ * while keeping geometric edges sharp. It's the edge-avoiding a-trous wavelet filter of
+ * "Edge-Avoiding A-Trous Wavelet Transform for fast Global Illumination Filtering"
+ * (Dammertz et al., 2010): a 5x5 blur is applied several times with its taps spread
+ * twice as far each time, and each tap is weighted down when the G-buffer shows that
+ * it's on a different surface, by instance, normal and depth, or when its color is
+ * too different.
+ */
+public class Denoiser {
+    private static final int DEFAULT_ITERATION_COUNT = 4;
+    // The B3 spline, from the center out.
+    private static final double[] KERNEL = { 3/8., 1/4., 1/16. };
+    private static final int KERNEL_RADIUS = KERNEL.length - 1;
+    // How quickly the weight drops as the normals diverge.
+    private static final double NORMAL_EXPONENT = 64;
+    // Depth differences, relative to what the depth slope predicts, that are tolerated.
+    private static final double DEPTH_SIGMA = 1;
+    // Color differences that are tolerated in the first iteration. Halved every iteration.
+    private static final double COLOR_SIGMA = 1.0;
+    // Rows per task.
+    private static final int BAND_HEIGHT = 16;
+    private final int mIterationCount;
+
+    /**
+     * Make a denoiser with the default number of iterations.
+     */
+    public Denoiser() {
+        this(DEFAULT_ITERATION_COUNT);
+    }
+
+    /**
+     * Make a denoiser that filters the image this many times. The filter
+     * reaches 2^(iterationCount + 1) pixels in each direction.
+     */
+    public Denoiser(int iterationCount) {
+        mIterationCount = iterationCount;
+    }
+
+    /**
+     * Filter the colors of an image, in place, using the G-buffer it was shaded from
+     * as a guide.
+     */
+    public void denoise(FrameBuffer frameBuffer, GBuffer gBuffer) {
+        denoise(frameBuffer, gBuffer, null);
+    }
+
+    /**
+     * Like {@link #denoise(FrameBuffer, GBuffer)}, but filter on the given executor,
+     * which is left running, or on a pool made for this call if it's null. If the
+     * thread is interrupted, the image is left as of the last complete iteration and
+     * the thread's interrupt flag stays set.
+     */
+    public void denoise(FrameBuffer frameBuffer, GBuffer gBuffer,
+            ExecutorService executorService) {
+
+        Guide guide = new Guide(gBuffer);
+
+        boolean ownExecutorService = executorService == null;
+        if (ownExecutorService) {
+            executorService = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors());
+        }
+
+        float[] colors = frameBuffer.getData();
+        float[] source = colors;
+        float[] destination = new float[colors.length];
+        try {
+            for (int iteration = 0; iteration < mIterationCount; iteration++) {
+                if (!filter(executorService, guide, source, destination, iteration)) {
+                    // The destination is partly written, so keep the source.
+                    break;
+                }
+
+                float[] swap = source;
+                source = destination;
+                destination = swap;
+            }
+        } finally {
+            if (ownExecutorService) {
+                executorService.shutdown();
+            }
+        }
+
+        if (source != colors) {
+            System.arraycopy(source, 0, colors, 0, colors.length);
+        }
+    }
+
+    /**
+     * Run one iteration of the filter over the whole image, in parallel bands of rows.
+     * Always waits until no band is writing the destination.
+     *
+     * @return whether the iteration completed, which it doesn't if the thread is
+     * interrupted.
+     */
+    private boolean filter(ExecutorService executorService, final Guide guide,
+            final float[] source, final float[] destination, final int iteration) {
+
+        int bandCount = (guide.mHeight + BAND_HEIGHT - 1)/BAND_HEIGHT;
+        final CountDownLatch remainingBands = new CountDownLatch(bandCount);
+        final AtomicBoolean stopped = new AtomicBoolean();
+
+        for (int y = 0; y < guide.mHeight; y += BAND_HEIGHT) {
+            final int firstRow = y;
+            final int lastRow = Math.min(y + BAND_HEIGHT, guide.mHeight);
+
+            executorService.submit(new Runnable() {
+                @Override // Runnable
+                public void run() {
+                    try {
+                        if (!stopped.get()) {
+                            for (int row = firstRow; row < lastRow; row++) {
+                                filterRow(guide, source, destination, iteration, row);
+                            }
+                        }
+                    } finally {
+                        remainingBands.countDown();
+                    }
+                }
+            });
+        }
+
+        // Bands that have started must finish before the arrays can be reused, so
+        // an interrupt only stops the bands that haven't started.
+        boolean interrupted = false;
+        while (true) {
+            try {
+                remainingBands.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+                stopped.set(true);
+            }
+        }
+
+        if (interrupted) {
+            System.out.println("Denoising interrupted...");
+            Thread.currentThread().interrupt();
+        }
+
+        return !interrupted;
+    }
+
+    private void filterRow(Guide guide, float[] source, float[] destination,
+            int iteration, int y) {
+
+        int width = guide.mWidth;
+        int height = guide.mHeight;
+        int step = 1 << iteration;
+        double colorSigma = COLOR_SIGMA/step;
+        double colorFactor = 1/(colorSigma*colorSigma);
+
+        for (int x = 0; x < width; x++) {
+            int p = y*width + x;
+
+            // Background isn't filtered.
+            if (!guide.mHit[p]) {
+                System.arraycopy(source, p*4, destination, p*4, 4);
+                continue;
+            }
+
+            double luminance = getLuminance(source, p);
+            double total = 0;
+            double red = 0;
+            double green = 0;
+            double blue = 0;
+
+            for (int dy = -KERNEL_RADIUS; dy <= KERNEL_RADIUS; dy++) {
+                int qy = y + dy*step;
+                if (qy < 0 || qy >= height) {
+                    continue;
+                }
+
+                for (int dx = -KERNEL_RADIUS; dx <= KERNEL_RADIUS; dx++) {
+                    int qx = x + dx*step;
+                    if (qx < 0 || qx >= width) {
+                        continue;
+                    }
+
+                    int q = qy*width + qx;
+                    double weight = KERNEL[Math.abs(dx)]*KERNEL[Math.abs(dy)];
+                    if (q != p) {
+                        weight *= guide.getWeight(p, q, dx*step, dy*step);
+                        if (weight == 0) {
+                            continue;
+                        }
+
+                        double difference = getLuminance(source, q) - luminance;
+                        weight *= Math.exp(-difference*difference*colorFactor);
+                    }
+
+                    red += source[q*4 + 1]*weight;
+                    green += source[q*4 + 2]*weight;
+                    blue += source[q*4 + 3]*weight;
+                    total += weight;
+                }
+            }
+
+            // The center tap always has weight, so total isn't zero.
+            destination[p*4] = source[p*4];
+            destination[p*4 + 1] = (float) (red/total);
+            destination[p*4 + 2] = (float) (green/total);
+            destination[p*4 + 3] = (float) (blue/total);
+        }
+    }
+
+    private static double getLuminance(float[] colors, int pixel) {
+        return 0.2126*colors[pixel*4 + 1] + 0.7152*colors[pixel*4 + 2]
+            + 0.0722*colors[pixel*4 + 3];
+    }
+
+    /**
+     * The parts of the G-buffer that guide the filter, one value per pixel. Pixels
+     * with several samples use the average depth and normal of the samples that hit
+     * something, and the triangle and instance of the first of those.
+     */
+    private static class Guide {
+        final int mWidth;
+        final int mHeight;
+        final boolean[] mHit;
+        final int[] mTriangleIds;
+        final int[] mInstanceIds;
+        final double[] mDepths;
+        // Three per pixel.
+        final double[] mNormals;
+        // Change in depth per pixel, in x and y. Two per pixel.
+        final double[] mDepthSlopes;
+
+        Guide(GBuffer gBuffer) {
+            mWidth = gBuffer.getWidth();
+            mHeight = gBuffer.getHeight();
+            int pixelCount = mWidth*mHeight;
+            mHit = new boolean[pixelCount];
+            mTriangleIds = new int[pixelCount];
+            mInstanceIds = new int[pixelCount];
+            mDepths = new double[pixelCount];
+            mNormals = new double[pixelCount*3];
+            mDepthSlopes = new double[pixelCount*2];
+
+            for (int y = 0; y < mHeight; y++) {
+                for (int x = 0; x < mWidth; x++) {
+                    int p = y*mWidth + x;
+                    int hitCount = 0;
+                    double nx = 0;
+                    double ny = 0;
+                    double nz = 0;
+
+                    for (int sample = 0; sample < gBuffer.getSampleCount(); sample++) {
+                        int triangleId = gBuffer.getTriangleId(x, y, sample);
+                        if (triangleId == GBuffer.NO_TRIANGLE) {
+                            continue;
+                        }
+                        if (hitCount == 0) {
+                            mTriangleIds[p] = triangleId;
+                            mInstanceIds[p] = gBuffer.getInstanceId(x, y, sample);
+                        }
+                        hitCount++;
+                        mDepths[p] += gBuffer.getDepth(x, y, sample);
+                        nx += gBuffer.getNormal(x, y, sample, 0);
+                        ny += gBuffer.getNormal(x, y, sample, 1);
+                        nz += gBuffer.getNormal(x, y, sample, 2);
+                    }
+
+                    if (hitCount > 0) {
+                        mHit[p] = true;
+                        mDepths[p] /= hitCount;
+                        double length = Math.sqrt(nx*nx + ny*ny + nz*nz);
+                        if (length > 0) {
+                            mNormals[p*3] = nx/length;
+                            mNormals[p*3 + 1] = ny/length;
+                            mNormals[p*3 + 2] = nz/length;
+                        }
+                    }
+                }
+            }
+
+            // Take the smaller of the one-sided differences so that slopes don't
+            // jump at depth edges.
+            for (int y = 0; y < mHeight; y++) {
+                for (int x = 0; x < mWidth; x++) {
+                    int p = y*mWidth + x;
+                    if (mHit[p]) {
+                        mDepthSlopes[p*2] = getSlope(p, x > 0 ? p - 1 : -1,
+                                x < mWidth - 1 ? p + 1 : -1);
+                        mDepthSlopes[p*2 + 1] = getSlope(p, y > 0 ? p - mWidth : -1,
+                                y < mHeight - 1 ? p + mWidth : -1);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Smallest depth change from pixel p to either neighbor, or zero if neither
+         * is on the same instance.
+         */
+        private double getSlope(int p, int before, int after) {
+            double slope = Double.POSITIVE_INFINITY;
+            if (before >= 0 && mHit[before] && mInstanceIds[before] == mInstanceIds[p]) {
+                slope = Math.abs(mDepths[p] - mDepths[before]);
+            }
+            if (after >= 0 && mHit[after] && mInstanceIds[after] == mInstanceIds[p]) {
+                slope = Math.min(slope, Math.abs(mDepths[after] - mDepths[p]));
+            }
+
+            return slope == Double.POSITIVE_INFINITY ? 0 : slope;
+        }
+
+        /**
+         * How much pixel q, which is (dx,dy) from p, looks like it's on the same surface
+         * as p, from 0 to 1.
+         */
+        double getWeight(int p, int q, int dx, int dy) {
+            if (!mHit[q] || mInstanceIds[q] != mInstanceIds[p]) {
+                return 0;
+            }
+
+            // A triangle is flat, so its pixels are always on the same surface.
+            if (mTriangleIds[q] == mTriangleIds[p]) {
+                return 1;
+            }
+
+            double dot = mNormals[p*3]*mNormals[q*3] + mNormals[p*3 + 1]*mNormals[q*3 + 1]
+                + mNormals[p*3 + 2]*mNormals[q*3 + 2];
+            if (dot <= 0) {
+                return 0;
+            }
+            double normalWeight = Math.pow(dot, NORMAL_EXPONENT);
+
+            // Compare to the depth expected by following the slope from p.
+            double expected = Math.abs(mDepthSlopes[p*2]*dx) + Math.abs(mDepthSlopes[p*2 + 1]*dy);
+            double tolerance = DEPTH_SIGMA*expected + mDepths[p]*1e-4;
+            double depthWeight = Math.exp(-Math.abs(mDepths[q] - mDepths[p])/tolerance);
+
+            return normalWeight*depthWeight;
+        }
+    }
+}
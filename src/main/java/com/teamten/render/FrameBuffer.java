@@ -0,0 +1,141 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * An image of unclamped floating-point colors. Render threads each write their own
+ * rows, so no locking is needed, and colors keep their full range until the image is
+ * tone-mapped and quantized by {@link #toImage}.
+ */
+public class FrameBuffer {
+    private static final int FLOATS_PER_PIXEL = 4;
+    // Largest array that virtual machines reliably allocate.
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private final int mWidth;
+    private final int mHeight;
+    // Alpha, red, green and blue of each pixel, by rows.
+    private final float[] mData;
+
+    /**
+     * @throws IllegalArgumentException if the image has more than about 536 million
+     * pixels, which don't fit in one array.
+     */
+    public FrameBuffer(int width, int height) {
+        long size = (long) width*height*FLOATS_PER_PIXEL;
+        if (size > MAX_ARRAY_SIZE) {
+            throw new IllegalArgumentException(String.format(
+                        "Image of %,d by %,d pixels is too large for a frame buffer, "
+                        + "use Renderer.renderPng instead", width, height));
+        }
+
+        mWidth = width;
+        mHeight = height;
+        mData = new float[(int) size];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Set the color of a pixel.
+     */
+    public void set(int x, int y, Color color) {
+        int index = (y*mWidth + x)*FLOATS_PER_PIXEL;
+        mData[index] = (float) color.getAlpha();
+        mData[index + 1] = (float) color.getRed();
+        mData[index + 2] = (float) color.getGreen();
+        mData[index + 3] = (float) color.getBlue();
+    }
+
+    /**
+     * Set the color of a pixel from an accumulator.
+     */
+    public void set(int x, int y, ColorAccumulator color) {
+        int index = (y*mWidth + x)*FLOATS_PER_PIXEL;
+        mData[index] = (float) color.getAlpha();
+        mData[index + 1] = (float) color.getRed();
+        mData[index + 2] = (float) color.getGreen();
+        mData[index + 3] = (float) color.getBlue();
+    }
+
+    /**
+     * Add the color to a pixel. Alpha is replaced, like {@link Color#add}.
+     */
+    public void add(int x, int y, Color color) {
+        int index = (y*mWidth + x)*FLOATS_PER_PIXEL;
+        mData[index] = (float) color.getAlpha();
+        mData[index + 1] += (float) color.getRed();
+        mData[index + 2] += (float) color.getGreen();
+        mData[index + 3] += (float) color.getBlue();
+    }
+
+    /**
+     * Returns the color of a pixel.
+     */
+    public Color get(int x, int y) {
+        int index = (y*mWidth + x)*FLOATS_PER_PIXEL;
+
+        return new Color(mData[index], mData[index + 1], mData[index + 2], mData[index + 3]);
+    }
+
+    /**
+     * The array of all pixels, four floats (alpha, red, green, blue) per pixel, by rows.
+     */
+    float[] getData() {
+        return mData;
+    }
+
+    /**
+     * Tone-map and quantize row y into packed ARGB pixels.
+     */
+    public void toArgb(int y, ToneMapping toneMapping, int[] argb) {
+        int index = y*mWidth*FLOATS_PER_PIXEL;
+        for (int x = 0; x < mWidth; x++) {
+            argb[x] = toneMapping.toArgb(mData[index], mData[index + 1], mData[index + 2],
+                    mData[index + 3]);
+            index += FLOATS_PER_PIXEL;
+        }
+    }
+
+    /**
+     * Tone-map and quantize the whole image. The pixels are written straight into
+     * the image's array, skipping its color model.
+     */
+    public BufferedImage toImage(ToneMapping toneMapping) {
+        BufferedImage image = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+        for (int i = 0; i < pixels.length; i++) {
+            int index = i*FLOATS_PER_PIXEL;
+            pixels[i] = toneMapping.toArgb(mData[index], mData[index + 1], mData[index + 2],
+                    mData[index + 3]);
+        }
+
+        return image;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+/**
+ * A pyramid from the eye that contains a group of primary rays, used to find the
+ * parts of a hierarchy that none of them can hit. Only the four side planes are
+ * kept, since all rays start at the eye.
+ */
+class Frustum {
+    // Margin for rounding, so that boxes touching a side aren't culled.
+    private static final double EPSILON = 1e-9;
+    private final Vector mEye;
+    // Unit inward normals of the side planes, which all go through the eye.
+    private final Vector[] mNormals = new Vector[4];
+
+    /**
+     * Make the frustum from the eye through four corner directions, in order
+     * around the edge. Sides whose corners are the same don't cull anything.
+     */
+    Frustum(Vector eye, Vector[] corners) {
+        mEye = eye;
+
+        Vector center = corners[0].add(corners[1]).add(corners[2]).add(corners[3]);
+        for (int i = 0; i < 4; i++) {
+            Vector normal = corners[i].cross(corners[(i + 1)%4]);
+            double length = normal.length();
+            if (length == 0) {
+                mNormals[i] = Vector.make(0, 0, 0);
+            } else {
+                normal = normal.multiply(1/length);
+                mNormals[i] = normal.dot(center) < 0 ? normal.negate() : normal;
+            }
+        }
+    }
+
+    /**
+     * Whether any part of the box is inside the frustum. May return true for some
+     * boxes that are outside, but never false for one that's inside.
+     */
+    boolean intersectsBox(double minX, double minY, double minZ,
+            double maxX, double maxY, double maxZ) {
+
+        double ex = mEye.get(0);
+        double ey = mEye.get(1);
+        double ez = mEye.get(2);
+
+        for (Vector normal : mNormals) {
+            double nx = normal.get(0);
+            double ny = normal.get(1);
+            double nz = normal.get(2);
+
+            // The corner furthest along the normal.
+            double px = nx >= 0 ? maxX : minX;
+            double py = ny >= 0 ? maxY : minY;
+            double pz = nz >= 0 ? maxZ : minZ;
+
+            if (nx*(px - ex) + ny*(py - ey) + nz*(pz - ez) < -EPSILON) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Distance from the eye to the closest point of the box, or zero if the eye is
+     * inside it. Used to visit boxes front to back.
+     */
+    double getDistance(double minX, double minY, double minZ,
+            double maxX, double maxY, double maxZ) {
+
+        double dx = Math.max(0, Math.max(minX - mEye.get(0), mEye.get(0) - maxX));
+        double dy = Math.max(0, Math.max(minY - mEye.get(1), mEye.get(1) - maxY));
+        double dz = Math.max(0, Math.max(minZ - mEye.get(2), mEye.get(2) - maxZ));
+
+        return Math.sqrt(dx*dx + dy*dy + dz*dz);
+    }
+
+    /**
+     * Like {@link #getDistance(double, double, double, double, double, double)} for
+     * a box given by its corners.
+     */
+    double getDistance(Vector min, Vector max) {
+        return getDistance(min.get(0), min.get(1), min.get(2), max.get(0), max.get(1), max.get(2));
+    }
+
+    /**
+     * Like {@link #intersectsBox(double, double, double, double, double, double)}
+     * for a box given by its corners, or empty if they're null.
+     */
+    boolean intersectsBox(Vector min, Vector max) {
+        return min != null && intersectsBox(min.get(0), min.get(1), min.get(2),
+                max.get(0), max.get(1), max.get(2));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+import java.util.Arrays;
+
+/**
+ * Stores the primary hit of every sample of an image: the triangle, hit point,
+ * normal and depth. Made by {@link Renderer#renderGBuffer} and shaded by
+ * {@link Renderer#shade(GBuffer)}. Everything is kept in primitive arrays, indexed
+ * by sample, with the samples of a pixel next to each other.
+ */
+public class GBuffer {
+    /**
+     * Triangle ID of samples that hit nothing.
+     */
+    public static final int NO_TRIANGLE = -1;
+    /**
+     * Instance ID of samples whose triangle isn't instanced.
+     */
+    public static final int NO_INSTANCE = -1;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mSampleCount;
+    private final Vector mEye;
+    private final int[] mTriangleIds;
+    private final int[] mInstanceIds;
+    private final boolean[] mBackfacing;
+    private final double[] mDepths;
+    // Three values per sample.
+    private final double[] mPoints;
+    private final double[] mNormals;
+
+    /**
+     * Make an empty G-buffer.
+     *
+     * @param superSample the square root of the number of samples per pixel.
+     * @param eye the position of the eye in world space.
+     */
+    GBuffer(int width, int height, int superSample, Vector eye) {
+        mWidth = width;
+        mHeight = height;
+        mSampleCount = superSample*superSample;
+        mEye = eye;
+
+        int size = width*height*mSampleCount;
+        mTriangleIds = new int[size];
+        mInstanceIds = new int[size];
+        mBackfacing = new boolean[size];
+        mDepths = new double[size];
+        mPoints = new double[size*3];
+        mNormals = new double[size*3];
+
+        Arrays.fill(mTriangleIds, NO_TRIANGLE);
+        Arrays.fill(mInstanceIds, NO_INSTANCE);
+        Arrays.fill(mDepths, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Width of the image in pixels.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Height of the image in pixels.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Number of samples per pixel.
+     */
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Position of the eye in world space.
+     */
+    public Vector getEye() {
+        return mEye;
+    }
+
+    /**
+     * Record the hit of a sample.
+     *
+     * @param triangleId the index of the triangle in the scene, or in its mesh if instanced.
+     * @param instanceId the index of the instance, or {@link #NO_INSTANCE}.
+     */
+    void set(int x, int y, int sample, int triangleId, int instanceId,
+            Intersection intersection) {
+        int index = getIndex(x, y, sample);
+        Vector point = intersection.getPoint();
+        Vector normal = intersection.getNormal();
+
+        mTriangleIds[index] = triangleId;
+        mInstanceIds[index] = instanceId;
+        mBackfacing[index] = intersection.isBackfacing();
+        mDepths[index] = intersection.getMinT();
+        for (int i = 0; i < 3; i++) {
+            mPoints[index*3 + i] = point.get(i);
+            mNormals[index*3 + i] = normal.get(i);
+        }
+    }
+
+    /**
+     * Index of the triangle hit by the sample, or {@link #NO_TRIANGLE}. For instanced
+     * triangles this is the index within the instance's mesh.
+     */
+    public int getTriangleId(int x, int y, int sample) {
+        return mTriangleIds[getIndex(x, y, sample)];
+    }
+
+    /**
+     * Index of the instance hit by the sample, or {@link #NO_INSTANCE}.
+     */
+    public int getInstanceId(int x, int y, int sample) {
+        return mInstanceIds[getIndex(x, y, sample)];
+    }
+
+    /**
+     * Parametric distance along the sample's primary ray to the hit, as returned by
+     * {@link Intersection#getMinT}, or infinity if there was no hit.
+     */
+    public double getDepth(int x, int y, int sample) {
+        return mDepths[getIndex(x, y, sample)];
+    }
+
+    /**
+     * Component i (0 to 2) of the normal at the hit.
+     */
+    public double getNormal(int x, int y, int sample, int i) {
+        return mNormals[getIndex(x, y, sample)*3 + i];
+    }
+
+    /**
+     * Recreate the intersection of a sample that hit a triangle.
+     *
+     * @param triangle the triangle whose ID was recorded for the sample.
+     * @param instance the instance whose ID was recorded for the sample, or null.
+     */
+    Intersection getIntersection(int x, int y, int sample, Triangle triangle, Instance instance) {
+        int index = getIndex(x, y, sample);
+
+        // The intersection keeps instanced points in mesh space.
+        Vector point = Vector.make(mPoints[index*3], mPoints[index*3 + 1], mPoints[index*3 + 2]);
+        if (instance != null) {
+            point = instance.pointToMesh(point);
+        }
+
+        Intersection intersection = new Intersection();
+        intersection.update(triangle, point, mDepths[index], mBackfacing[index]);
+        if (instance != null) {
+            intersection.setInstance(instance);
+        }
+        intersection.setNormal(
+                Vector.make(mNormals[index*3], mNormals[index*3 + 1], mNormals[index*3 + 2]));
+
+        return intersection;
+    }
+
+    private int getIndex(int x, int y, int sample) {
+        return (y*mWidth + x)*mSampleCount + sample;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+/**
+ * The algorithm used to build the bounding box hierarchy.
+ */
+public enum HierarchyBuilder {
+    /**
+     * Split each box at its middle, cycling through the axes, and put each triangle
+     * in exactly one child. Fast to build.
+     */
+    MIDPOINT,
+
+    /**
+     * Pick splits by the surface area heuristic, either partitioning the triangles or
+     * splitting space so that a triangle straddling the plane is referenced from both
+     * sides with clipped bounds. Slower to build, but long thin triangles no longer
+     * make sibling boxes overlap.
+     */
+    SPATIAL_SPLIT,
+
+    /**
+     * Sort the triangles along a Morton curve through their centroids and split where
+     * their codes differ, without searching for good splits. The fastest to build, for
+     * scenes that change every frame, but rays visit more nodes.
+     */
+    LINEAR,
+}
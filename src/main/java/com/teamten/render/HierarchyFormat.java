@@ -0,0 +1,49 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+/**
+ * How the bounding box hierarchy is stored while rendering.
+ */
+public enum HierarchyFormat {
+    /**
+     * The tree of {@link BoundingBox} objects, with double-precision bounds, and
+     * the original triangles.
+     */
+    TREE,
+
+    /**
+     * Flattened into arrays of single-precision node bounds, vertex positions and
+     * vertex normals. Node bounds are rounded outward so that no hits are missed.
+     */
+    FLOAT,
+
+    /**
+     * Like {@link #FLOAT}, but each node's bounds are stored in 16 bits per
+     * coordinate relative to its parent's bounds.
+     */
+    QUANTIZED_16,
+
+    /**
+     * Like {@link #FLOAT}, but each node's bounds are stored in 8 bits per
+     * coordinate relative to its parent's bounds. Smallest, but the boxes are
+     * looser, so rays visit more nodes.
+     */
+    QUANTIZED_8,
+}
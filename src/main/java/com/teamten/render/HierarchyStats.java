@@ -0,0 +1,391 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Measures the quality of a built bounding box hierarchy: its expected cost by
+ * the surface area heuristic, the sizes and depths of its leaves, how much sibling
+ * boxes overlap, and which leaves cost the most. Run as a program to compare the
+ * builders on a model.
+ */
+public class HierarchyStats {
+    /**
+     * Bucket i of the leaf size histogram counts leaves with i triangles. The last
+     * bucket catches everything larger.
+     */
+    public static final int LEAF_SIZE_HISTOGRAM_SIZE = 33;
+    /**
+     * Bucket i of the depth histogram counts leaves at depth i, the root being at
+     * depth 0. The last bucket catches everything deeper.
+     */
+    public static final int DEPTH_HISTOGRAM_SIZE = 65;
+    // Cost of visiting a node, relative to testing a triangle. Same as the builders.
+    private static final double TRAVERSAL_COST = 1;
+    private static final int WORST_LEAF_COUNT = 10;
+    private int mNodeCount;
+    private int mLeafCount;
+    private int mTriangleCount;
+    private long mReferenceCount;
+    private double mSahCost;
+    private int mMaxDepth;
+    private long mLeafDepthSum;
+    private final long[] mLeafSizeHistogram = new long[LEAF_SIZE_HISTOGRAM_SIZE];
+    private final long[] mDepthHistogram = new long[DEPTH_HISTOGRAM_SIZE];
+    private int mSiblingCount;
+    private double mOverlapRatioSum;
+    private double mOverlapArea;
+    private double mParentArea;
+    private final List<Leaf> mWorstLeafList = new ArrayList<Leaf>();
+
+    /**
+     * A leaf and its share of the SAH cost.
+     */
+    public static class Leaf {
+        private final BoundingBox mBoundingBox;
+        private final int mDepth;
+        private final double mCost;
+
+        private Leaf(BoundingBox boundingBox, int depth, double cost) {
+            mBoundingBox = boundingBox;
+            mDepth = depth;
+            mCost = cost;
+        }
+
+        public BoundingBox getBoundingBox() {
+            return mBoundingBox;
+        }
+
+        public int getDepth() {
+            return mDepth;
+        }
+
+        /**
+         * The leaf's share of {@link HierarchyStats#getSahCost}.
+         */
+        public double getCost() {
+            return mCost;
+        }
+
+        @Override // Object
+        public String toString() {
+            return String.format("%,d triangles at depth %d, cost %.3f, %s to %s",
+                    mBoundingBox.getTriangleList().size(), mDepth, mCost,
+                    mBoundingBox.getMin(), mBoundingBox.getMax());
+        }
+    }
+
+    private HierarchyStats() {
+        // Use analyze().
+    }
+
+    /**
+     * Measure the tree below the root, which must have been built with
+     * {@link BoundingBox#createTree}.
+     */
+    public static HierarchyStats analyze(BoundingBox root) {
+        HierarchyStats stats = new HierarchyStats();
+        stats.mTriangleCount = root.getTriangleList().size();
+
+        double rootArea = getArea(root);
+        if (rootArea > 0) {
+            // Min-heap of the most costly leaves so far.
+            PriorityQueue<Leaf> worstLeaves = new PriorityQueue<Leaf>(WORST_LEAF_COUNT + 1,
+                    new LeafCostComparator());
+            stats.addNode(root, 0, rootArea, worstLeaves);
+
+            stats.mWorstLeafList.addAll(worstLeaves);
+            Collections.sort(stats.mWorstLeafList,
+                    Collections.reverseOrder(new LeafCostComparator()));
+        }
+
+        return stats;
+    }
+
+    private void addNode(BoundingBox node, int depth, double rootArea,
+            PriorityQueue<Leaf> worstLeaves) {
+
+        double area = getArea(node);
+        List<BoundingBox> childList = node.getChildList();
+        mNodeCount++;
+
+        if (childList.isEmpty()) {
+            int size = node.getTriangleList().size();
+            double cost = area/rootArea*size;
+            mLeafCount++;
+            mReferenceCount += size;
+            mSahCost += cost;
+            mLeafDepthSum += depth;
+            mLeafSizeHistogram[Math.min(size, LEAF_SIZE_HISTOGRAM_SIZE - 1)]++;
+            mDepthHistogram[Math.min(depth, DEPTH_HISTOGRAM_SIZE - 1)]++;
+
+            worstLeaves.add(new Leaf(node, depth, cost));
+            if (worstLeaves.size() > WORST_LEAF_COUNT) {
+                worstLeaves.remove();
+            }
+        } else {
+            mSahCost += area/rootArea*TRAVERSAL_COST;
+
+            // Rays entering the parent visit both children wherever they overlap.
+            if (area > 0) {
+                double overlapArea = 0;
+                for (int i = 0; i < childList.size(); i++) {
+                    for (int j = i + 1; j < childList.size(); j++) {
+                        overlapArea += getOverlapArea(childList.get(i), childList.get(j));
+                    }
+                }
+                mSiblingCount++;
+                mOverlapRatioSum += overlapArea/area;
+                mOverlapArea += overlapArea;
+                mParentArea += area;
+            }
+
+            for (BoundingBox child : childList) {
+                addNode(child, depth + 1, rootArea, worstLeaves);
+            }
+        }
+
+        mMaxDepth = Math.max(mMaxDepth, depth);
+    }
+
+    /**
+     * Number of boxes in the tree, including the root.
+     */
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Number of boxes without children.
+     */
+    public int getLeafCount() {
+        return mLeafCount;
+    }
+
+    /**
+     * Number of distinct triangles in the tree.
+     */
+    public int getTriangleCount() {
+        return mTriangleCount;
+    }
+
+    /**
+     * Number of triangles in all leaves, which is larger than the triangle count
+     * when builders put triangles in several leaves.
+     */
+    public long getReferenceCount() {
+        return mReferenceCount;
+    }
+
+    /**
+     * Expected cost of a ray that hits the root by the surface area heuristic, in
+     * triangle tests. Each node costs the chance that a ray that hits the root also
+     * hits it, which is the ratio of their surface areas, times the cost of visiting
+     * it or of testing its triangles.
+     */
+    public double getSahCost() {
+        return mSahCost;
+    }
+
+    /**
+     * Depth of the deepest node, the root being at depth 0.
+     */
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * Average depth of the leaves.
+     */
+    public double getAverageLeafDepth() {
+        return mLeafCount == 0 ? 0 : (double) mLeafDepthSum/mLeafCount;
+    }
+
+    /**
+     * Returns a copy of the leaf size histogram. See {@link #LEAF_SIZE_HISTOGRAM_SIZE}.
+     */
+    public long[] getLeafSizeHistogram() {
+        return mLeafSizeHistogram.clone();
+    }
+
+    /**
+     * Returns a copy of the leaf depth histogram. See {@link #DEPTH_HISTOGRAM_SIZE}.
+     */
+    public long[] getDepthHistogram() {
+        return mDepthHistogram.clone();
+    }
+
+    /**
+     * Average over internal nodes of the surface area where their children overlap,
+     * as a fraction of the node's surface area.
+     */
+    public double getAverageOverlapRatio() {
+        return mSiblingCount == 0 ? 0 : mOverlapRatioSum/mSiblingCount;
+    }
+
+    /**
+     * Total surface area where siblings overlap as a fraction of the total surface
+     * area of their parents, so that large nodes count more.
+     */
+    public double getWeightedOverlapRatio() {
+        return mParentArea == 0 ? 0 : mOverlapArea/mParentArea;
+    }
+
+    /**
+     * Returns the leaves with the largest share of the SAH cost, most costly first.
+     */
+    public List<Leaf> getWorstLeafList() {
+        return Collections.unmodifiableList(mWorstLeafList);
+    }
+
+    /**
+     * Print a multi-line summary to stdout.
+     */
+    public void print() {
+        System.out.printf("Nodes:                       %,d (%,d leaves)%n", mNodeCount, mLeafCount);
+        System.out.printf("Triangles:                   %,d (%,d in leaves, %.2f per triangle)%n",
+                mTriangleCount, mReferenceCount,
+                mTriangleCount == 0 ? 0.0 : (double) mReferenceCount/mTriangleCount);
+        System.out.printf("SAH cost:                    %.2f%n", mSahCost);
+        System.out.printf("Depth:                       %d max, %.1f average leaf%n",
+                mMaxDepth, getAverageLeafDepth());
+        System.out.printf("Sibling overlap:             %.1f%% average, %.1f%% by area%n",
+                getAverageOverlapRatio()*100, getWeightedOverlapRatio()*100);
+        for (int i = 0; i < LEAF_SIZE_HISTOGRAM_SIZE; i++) {
+            if (mLeafSizeHistogram[i] != 0) {
+                System.out.printf("Leaves with %3d%s triangles:  %,d%n", i,
+                        i == LEAF_SIZE_HISTOGRAM_SIZE - 1 ? "+" : " ", mLeafSizeHistogram[i]);
+            }
+        }
+        for (int i = 0; i < DEPTH_HISTOGRAM_SIZE; i++) {
+            if (mDepthHistogram[i] != 0) {
+                System.out.printf("Leaves at depth %2d%s:         %,d%n", i,
+                        i == DEPTH_HISTOGRAM_SIZE - 1 ? "+" : " ", mDepthHistogram[i]);
+            }
+        }
+        System.out.println("Worst leaves:");
+        for (Leaf leaf : mWorstLeafList) {
+            System.out.println("    " + leaf);
+        }
+    }
+
+    @Override // Object
+    public String toString() {
+        return String.format("%,d nodes, %,d leaves, SAH cost %.2f, depth %d, %.1f%% overlap",
+                mNodeCount, mLeafCount, mSahCost, mMaxDepth, getWeightedOverlapRatio()*100);
+    }
+
+    /**
+     * Build the hierarchy of a ".tri" model with each builder, or those named after
+     * the file, and print their stats and a comparison.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: HierarchyStats model.tri[.gz] [builder ...]");
+            System.exit(1);
+        }
+
+        List<Triangle> triangleList = TriFile.read(new File(args[0]));
+        List<HierarchyBuilder> builderList = new ArrayList<HierarchyBuilder>();
+        for (int i = 1; i < args.length; i++) {
+            builderList.add(HierarchyBuilder.valueOf(args[i]));
+        }
+        if (builderList.isEmpty()) {
+            Collections.addAll(builderList, HierarchyBuilder.values());
+        }
+
+        List<String> summaryList = new ArrayList<String>();
+        for (HierarchyBuilder builder : builderList) {
+            BoundingBox root = new BoundingBox();
+            for (Triangle triangle : triangleList) {
+                root.addTriangle(triangle);
+            }
+
+            long beforeTime = System.currentTimeMillis();
+            root.createTree(builder);
+            long buildTimeMs = System.currentTimeMillis() - beforeTime;
+
+            HierarchyStats stats = analyze(root);
+            System.out.printf("%s, built in %,d ms:%n", builder, buildTimeMs);
+            stats.print();
+            System.out.println();
+
+            summaryList.add(String.format("%-15s %,8d ms  %s", builder, buildTimeMs, stats));
+        }
+
+        for (String summary : summaryList) {
+            System.out.println(summary);
+        }
+    }
+
+    /**
+     * Orders leaves by increasing cost.
+     */
+    private static class LeafCostComparator implements Comparator<Leaf> {
+        @Override // Comparator
+        public int compare(Leaf leaf1, Leaf leaf2) {
+            return Double.compare(leaf1.mCost, leaf2.mCost);
+        }
+    }
+
+    private static double getArea(BoundingBox boundingBox) {
+        Vector min = boundingBox.getMin();
+        Vector max = boundingBox.getMax();
+        if (min == null) {
+            return 0;
+        }
+
+        double dx = max.get(0) - min.get(0);
+        double dy = max.get(1) - min.get(1);
+        double dz = max.get(2) - min.get(2);
+
+        return 2*(dx*dy + dy*dz + dz*dx);
+    }
+
+    /**
+     * Surface area of the intersection of the two boxes, or 0 if they don't intersect.
+     */
+    private static double getOverlapArea(BoundingBox box1, BoundingBox box2) {
+        if (box1.getMin() == null || box2.getMin() == null) {
+            return 0;
+        }
+
+        double[] size = new double[3];
+        for (int axis = 0; axis < 3; axis++) {
+            size[axis] = Math.min(box1.getMax().get(axis), box2.getMax().get(axis))
+                - Math.max(box1.getMin().get(axis), box2.getMin().get(axis));
+            if (size[axis] < 0) {
+                return 0;
+            }
+        }
+
+        return 2*(size[0]*size[1] + size[1]*size[2] + size[2]*size[0]);
+    }
+}
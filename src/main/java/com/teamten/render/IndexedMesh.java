@@ -0,0 +1,206 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Triangles stored compactly as index triples into a list of vertices, each vertex
+ * being a position and a normal in single precision. Vertices added more than once,
+ * like those shared by neighboring triangles of a closed mesh, are only stored once.
+ * Triangle objects are only made by {@link #makeTriangleList}, and share their
+ * {@link Vertex} objects.
+ */
+public class IndexedMesh {
+    private static final int FLOATS_PER_VERTEX = 3;
+    private static final int INITIAL_CAPACITY = 16;
+    private float[] mPoints = new float[INITIAL_CAPACITY*FLOATS_PER_VERTEX];
+    private float[] mNormals = new float[INITIAL_CAPACITY*FLOATS_PER_VERTEX];
+    private int mVertexCount = 0;
+    private int[] mIndices = new int[INITIAL_CAPACITY*Triangle.NUM_VERTICES];
+    private int mTriangleCount = 0;
+    // Open-addressing hash table of vertex index + 1, zero for empty slots. Never
+    // more than half full. The size is a power of two.
+    private int[] mVertexTable = new int[INITIAL_CAPACITY*2];
+
+    /**
+     * Returns the index of the vertex with this position and normal, adding it if
+     * no identical vertex has been added yet.
+     */
+    public int addVertex(float x, float y, float z, float nx, float ny, float nz) {
+        int mask = mVertexTable.length - 1;
+        int slot = hash(x, y, z, nx, ny, nz) & mask;
+        while (mVertexTable[slot] != 0) {
+            int index = mVertexTable[slot] - 1;
+            if (isVertex(index, x, y, z, nx, ny, nz)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (mVertexCount*FLOATS_PER_VERTEX == mPoints.length) {
+            mPoints = Arrays.copyOf(mPoints, mPoints.length*2);
+            mNormals = Arrays.copyOf(mNormals, mNormals.length*2);
+        }
+
+        int index = mVertexCount++;
+        int offset = index*FLOATS_PER_VERTEX;
+        mPoints[offset] = x;
+        mPoints[offset + 1] = y;
+        mPoints[offset + 2] = z;
+        mNormals[offset] = nx;
+        mNormals[offset + 1] = ny;
+        mNormals[offset + 2] = nz;
+        mVertexTable[slot] = index + 1;
+
+        if (mVertexCount*2 > mVertexTable.length) {
+            rehash(mVertexTable.length*2);
+        }
+
+        return index;
+    }
+
+    /**
+     * Add a triangle of the vertices at these indices, in clockwise order like
+     * {@link Triangle}.
+     *
+     * @throws IllegalArgumentException if an index isn't that of a vertex.
+     */
+    public void addTriangle(int index1, int index2, int index3) {
+        checkIndex(index1);
+        checkIndex(index2);
+        checkIndex(index3);
+
+        if (mTriangleCount*Triangle.NUM_VERTICES == mIndices.length) {
+            mIndices = Arrays.copyOf(mIndices, mIndices.length*2);
+        }
+
+        int offset = mTriangleCount*Triangle.NUM_VERTICES;
+        mIndices[offset] = index1;
+        mIndices[offset + 1] = index2;
+        mIndices[offset + 2] = index3;
+        mTriangleCount++;
+    }
+
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+
+    public int getTriangleCount() {
+        return mTriangleCount;
+    }
+
+    /**
+     * Approximate number of bytes used by the mesh, including unused capacity.
+     */
+    public long getMemorySize() {
+        return 4L*(mPoints.length + mNormals.length + mIndices.length + mVertexTable.length);
+    }
+
+    /**
+     * Make the triangles of the mesh, leaving out degenerate ones. Triangles that
+     * share a vertex share its {@link Vertex} object.
+     */
+    public List<Triangle> makeTriangleList() {
+        return makeTriangleList(false);
+    }
+
+    /**
+     * Make the triangles of the mesh like {@link #makeTriangleList()}, optionally
+     * with their normals encoded as by {@link Vertex#withEncodedNormal()}.
+     */
+    public List<Triangle> makeTriangleList(boolean encodedNormals) {
+        Vertex[] vertices = new Vertex[mVertexCount];
+        for (int i = 0; i < mVertexCount; i++) {
+            int offset = i*FLOATS_PER_VERTEX;
+            Vector point = Vector.make(mPoints[offset], mPoints[offset + 1], mPoints[offset + 2]);
+            if (encodedNormals) {
+                vertices[i] = new Vertex(point, OctahedralNormal.encode(
+                            mNormals[offset], mNormals[offset + 1], mNormals[offset + 2]));
+            } else {
+                vertices[i] = new Vertex(point,
+                        Vector.make(mNormals[offset], mNormals[offset + 1], mNormals[offset + 2]));
+            }
+        }
+
+        List<Triangle> triangleList = new ArrayList<Triangle>(mTriangleCount);
+        for (int i = 0; i < mTriangleCount; i++) {
+            int offset = i*Triangle.NUM_VERTICES;
+            try {
+                triangleList.add(new Triangle(vertices[mIndices[offset]],
+                            vertices[mIndices[offset + 1]], vertices[mIndices[offset + 2]]));
+            } catch (DegenerateTriangleException e) {
+                // Skip.
+            }
+        }
+
+        return triangleList;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mVertexCount) {
+            throw new IllegalArgumentException("Vertex index " + index + " not in mesh of "
+                    + mVertexCount + " vertices");
+        }
+    }
+
+    private boolean isVertex(int index, float x, float y, float z, float nx, float ny, float nz) {
+        int offset = index*FLOATS_PER_VERTEX;
+
+        // Compare bits so that the table's idea of equality matches hash().
+        return Float.floatToIntBits(mPoints[offset]) == Float.floatToIntBits(x)
+            && Float.floatToIntBits(mPoints[offset + 1]) == Float.floatToIntBits(y)
+            && Float.floatToIntBits(mPoints[offset + 2]) == Float.floatToIntBits(z)
+            && Float.floatToIntBits(mNormals[offset]) == Float.floatToIntBits(nx)
+            && Float.floatToIntBits(mNormals[offset + 1]) == Float.floatToIntBits(ny)
+            && Float.floatToIntBits(mNormals[offset + 2]) == Float.floatToIntBits(nz);
+    }
+
+    private void rehash(int size) {
+        int[] vertexTable = new int[size];
+        int mask = size - 1;
+        for (int index = 0; index < mVertexCount; index++) {
+            int offset = index*FLOATS_PER_VERTEX;
+            int slot = hash(mPoints[offset], mPoints[offset + 1], mPoints[offset + 2],
+                    mNormals[offset], mNormals[offset + 1], mNormals[offset + 2]) & mask;
+            while (vertexTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            vertexTable[slot] = index + 1;
+        }
+        mVertexTable = vertexTable;
+    }
+
+    private static int hash(float x, float y, float z, float nx, float ny, float nz) {
+        int hash = Float.floatToIntBits(x);
+        hash = hash*31 + Float.floatToIntBits(y);
+        hash = hash*31 + Float.floatToIntBits(z);
+        hash = hash*31 + Float.floatToIntBits(nx);
+        hash = hash*31 + Float.floatToIntBits(ny);
+        hash = hash*31 + Float.floatToIntBits(nz);
+
+        // Spread the high bits into the low ones, which pick the slot.
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+import com.teamten.math.Matrix;
+import com.teamten.math.Vector;
+
+/**
+ * A mesh placed in the scene by a transform.
+ */
+class Instance {
+    private final int mIndex;
+    private final Mesh mMesh;
+    private final Matrix mTransform;
+    private final Matrix mInverse;
+    // Columns of the inverse's linear part, for transforming normals.
+    private final Vector[] mInverseColumns = new Vector[3];
+    private final Vector mInverseTranslation;
+    // Largest factor by which the transform stretches lengths along an axis.
+    private final double mScale;
+    private Vector mMin = null;
+    private Vector mMax = null;
+
+    /**
+     * @param index the position of the instance in the renderer's list.
+     * @param transform transforms from mesh space to world space.
+     */
+    Instance(int index, Mesh mesh, Matrix transform) {
+        mIndex = index;
+        mMesh = mesh;
+        mTransform = transform;
+        mInverse = transform.getInverse();
+
+        mInverseColumns[0] = mInverse.transformVector(Vector.X);
+        mInverseColumns[1] = mInverse.transformVector(Vector.Y);
+        mInverseColumns[2] = mInverse.transformVector(Vector.Z);
+        mInverseTranslation = mInverse.transform(Vector.make(0, 0, 0));
+
+        mScale = Math.max(transform.transformVector(Vector.X).length(),
+                Math.max(transform.transformVector(Vector.Y).length(),
+                    transform.transformVector(Vector.Z).length()));
+    }
+
+    int getIndex() {
+        return mIndex;
+    }
+
+    Mesh getMesh() {
+        return mMesh;
+    }
+
+    /**
+     * Compute the world-space bounds of the instance. Call after the mesh is prepared.
+     */
+    void prepare() {
+        mMin = null;
+        mMax = null;
+
+        BoundingBox boundingBox = mMesh.getBoundingBox();
+        if (boundingBox.getMin() == null) {
+            return;
+        }
+
+        // Transform all eight corners.
+        for (int corner = 0; corner < 8; corner++) {
+            Vector p = Vector.make(
+                    ((corner & 1) == 0 ? boundingBox.getMin() : boundingBox.getMax()).get(0),
+                    ((corner & 2) == 0 ? boundingBox.getMin() : boundingBox.getMax()).get(1),
+                    ((corner & 4) == 0 ? boundingBox.getMin() : boundingBox.getMax()).get(2));
+            p = mTransform.transform(p);
+
+            if (mMin == null) {
+                mMin = p;
+                mMax = p;
+            } else {
+                for (int i = 0; i < 3; i++) {
+                    if (p.get(i) < mMin.get(i)) {
+                        mMin = mMin.with(i, p.get(i));
+                    }
+                    if (p.get(i) > mMax.get(i)) {
+                        mMax = mMax.with(i, p.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * World-space minimum corner, or null if the mesh is empty.
+     */
+    Vector getMin() {
+        return mMin;
+    }
+
+    /**
+     * World-space maximum corner, or null if the mesh is empty.
+     */
+    Vector getMax() {
+        return mMax;
+    }
+
+    /**
+     * Largest factor by which the transform scales lengths along the mesh's axes.
+     */
+    double getScale() {
+        return mScale;
+    }
+
+    /**
+     * Distance from the world-space point to the instance's bounds, or zero if the
+     * point is inside them.
+     */
+    double getDistance(Vector point) {
+        return getDistance(point.get(0), point.get(1), point.get(2));
+    }
+
+    /**
+     * Like {@link #getDistance(Vector)}, for the point (x,y,z).
+     */
+    double getDistance(double x, double y, double z) {
+        if (mMin == null) {
+            return 0;
+        }
+
+        double distanceSquared = 0;
+        for (int i = 0; i < 3; i++) {
+            double coordinate = i == 0 ? x : i == 1 ? y : z;
+            double delta = Math.max(0, Math.max(mMin.get(i) - coordinate,
+                        coordinate - mMax.get(i)));
+            distanceSquared += delta*delta;
+        }
+
+        return Math.sqrt(distanceSquared);
+    }
+
+    /**
+     * Transform a point from world space to mesh space.
+     */
+    Vector pointToMesh(Vector point) {
+        return mInverse.transform(point);
+    }
+
+    /**
+     * Transform a direction from world space to mesh space. Its length changes with
+     * any scale in the transform, which keeps the ray's parametric distances the same.
+     */
+    Vector vectorToMesh(Vector vector) {
+        return mInverse.transformVector(vector);
+    }
+
+    /**
+     * Component on this axis (0 to 2) of the point (x,y,z) transformed from world
+     * space to mesh space, without making vectors.
+     */
+    double pointToMesh(int axis, double x, double y, double z) {
+        return vectorToMesh(axis, x, y, z) + mInverseTranslation.get(axis);
+    }
+
+    /**
+     * Component on this axis (0 to 2) of the direction (x,y,z) transformed from world
+     * space to mesh space, without making vectors.
+     */
+    double vectorToMesh(int axis, double x, double y, double z) {
+        return mInverseColumns[0].get(axis)*x + mInverseColumns[1].get(axis)*y
+            + mInverseColumns[2].get(axis)*z;
+    }
+
+    /**
+     * Transform a point from mesh space to world space.
+     */
+    Vector pointToWorld(Vector point) {
+        return mTransform.transform(point);
+    }
+
+    /**
+     * Transform a direction from mesh space to world space.
+     */
+    Vector vectorToWorld(Vector vector) {
+        return mTransform.transformVector(vector);
+    }
+
+    /**
+     * Transform a normal from mesh space to world space, using the inverse
+     * transpose. The result is normalized.
+     */
+    Vector normalToWorld(Vector normal) {
+        return Vector.make(
+                mInverseColumns[0].dot(normal),
+                mInverseColumns[1].dot(normal),
+                mInverseColumns[2].dot(normal)).normalize();
+    }
+}
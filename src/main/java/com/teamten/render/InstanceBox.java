@@ -0,0 +1,133 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Top level of the two-level hierarchy: an axis-aligned box around instances,
+ * with nested boxes. The leaves point to instances, whose meshes have their
+ * own bounding box hierarchies.
+ */
+class InstanceBox {
+    private static final int MAX_LEAF_INSTANCES = 2;
+    private Vector mMin = null;
+    private Vector mMax = null;
+    private final List<Instance> mInstanceList = new ArrayList<Instance>();
+    private final List<InstanceBox> mChildList = new ArrayList<InstanceBox>();
+
+    /**
+     * Add a prepared instance to this box.
+     */
+    void addInstance(Instance instance) {
+        if (instance.getMin() == null) {
+            // Empty mesh.
+            return;
+        }
+
+        if (mMin == null) {
+            mMin = instance.getMin();
+            mMax = instance.getMax();
+        } else {
+            for (int i = 0; i < 3; i++) {
+                if (instance.getMin().get(i) < mMin.get(i)) {
+                    mMin = mMin.with(i, instance.getMin().get(i));
+                }
+                if (instance.getMax().get(i) > mMax.get(i)) {
+                    mMax = mMax.with(i, instance.getMax().get(i));
+                }
+            }
+        }
+
+        mInstanceList.add(instance);
+    }
+
+    List<Instance> getInstanceList() {
+        return mInstanceList;
+    }
+
+    List<InstanceBox> getChildList() {
+        return mChildList;
+    }
+
+    /**
+     * Returns whether the ray intersects the box before maxT.
+     */
+    boolean intersectsRay(Vector r0, Vector r, double maxT, boolean debug) {
+        return mMin != null && BoundingBox.intersectsRay(mMin, mMax, r0, r, maxT, debug);
+    }
+
+    /**
+     * Like {@link #intersectsRay(Vector, Vector, double, boolean)}, for the ray from
+     * (ox,oy,oz) toward (dx,dy,dz), without making vectors.
+     */
+    boolean intersectsRay(double ox, double oy, double oz, double dx, double dy, double dz,
+            double maxT) {
+
+        return mMin != null && PackedHierarchy.intersectsBox(
+                mMin.get(0), mMin.get(1), mMin.get(2), mMax.get(0), mMax.get(1), mMax.get(2),
+                ox, oy, oz, dx, dy, dz, maxT);
+    }
+
+    /**
+     * Build the tree below this box by splitting the instances at the median
+     * along the longest axis.
+     */
+    void createTree() {
+        if (mInstanceList.size() <= MAX_LEAF_INSTANCES) {
+            return;
+        }
+
+        Vector boxSize = mMax.subtract(mMin);
+        int splitDimension = 0;
+        for (int i = 1; i < 3; i++) {
+            if (boxSize.get(i) > boxSize.get(splitDimension)) {
+                splitDimension = i;
+            }
+        }
+
+        final int dimension = splitDimension;
+        List<Instance> sortedList = new ArrayList<Instance>(mInstanceList);
+        Collections.sort(sortedList, new Comparator<Instance>() {
+            @Override // Comparator
+            public int compare(Instance i1, Instance i2) {
+                return Double.compare(
+                        i1.getMin().get(dimension) + i1.getMax().get(dimension),
+                        i2.getMin().get(dimension) + i2.getMax().get(dimension));
+            }
+        });
+
+        InstanceBox lessBox = new InstanceBox();
+        InstanceBox moreBox = new InstanceBox();
+        int half = sortedList.size()/2;
+        for (int i = 0; i < sortedList.size(); i++) {
+            (i < half ? lessBox : moreBox).addInstance(sortedList.get(i));
+        }
+
+        mChildList.add(lessBox);
+        mChildList.add(moreBox);
+        lessBox.createTree();
+        moreBox.createTree();
+    }
+}
@@ -30,6 +30,22 @@ public class Intersection {
     private Vector mPoint = null;
     private double mMinT = Double.MAX_VALUE;
     private boolean mBackfacing = false;
+    private Vector mNormal = null;
+    // The normal's components, valid if mHasNormal. Kept apart from mNormal so
+    // that shading doesn't have to make a vector.
+    private boolean mHasNormal = false;
+    private double mNormalX;
+    private double mNormalY;
+    private double mNormalZ;
+    // Set when the triangle belongs to an instanced mesh, in which case the
+    // triangle and mPoint are in mesh space.
+    private Instance mInstance = null;
+    private Vector mWorldPoint = null;
+    private int mTriangleId = -1;
+    // Scratch for decoding encoded vertex normals, made the first time one is seen.
+    private double[] mVertexNormal = null;
+    // State of packed hierarchy traversals, made by the first one.
+    private PackedHierarchy.Traversal mTraversal = null;
 
     /**
      * Set all the fields at once.
@@ -44,6 +60,77 @@ public class Intersection {
         mPoint = point;
         mMinT = minT;
         mBackfacing = backfacing;
+        mNormal = null;
+        mHasNormal = false;
+        mInstance = null;
+        mWorldPoint = null;
+        mTriangleId = -1;
+    }
+
+    /**
+     * Forget the hit, so that the intersection can be used for another ray. The
+     * traversal state is kept, which is what makes reusing an intersection cheaper
+     * than making a new one.
+     */
+    void reset() {
+        update(null, null, Double.MAX_VALUE, false);
+    }
+
+    /**
+     * Returns the state that packed hierarchies use to trace rays into this intersection.
+     */
+    PackedHierarchy.Traversal getTraversal() {
+        if (mTraversal == null) {
+            mTraversal = new PackedHierarchy.Traversal();
+        }
+
+        return mTraversal;
+    }
+
+    /**
+     * Record the index of the triangle in the packed hierarchy it came from.
+     */
+    void setTriangleId(int triangleId) {
+        mTriangleId = triangleId;
+    }
+
+    /**
+     * Returns the index of the triangle in the packed hierarchy it came from, or -1
+     * if it didn't come from one.
+     */
+    int getTriangleId() {
+        return mTriangleId;
+    }
+
+    /**
+     * Record that the triangle that was set by the last {@link #update} call belongs
+     * to this instance, and that the point was in the instance's mesh space.
+     */
+    void setInstance(Instance instance) {
+        mInstance = instance;
+        mNormal = null;
+        mHasNormal = false;
+        mWorldPoint = null;
+    }
+
+    /**
+     * Returns the instance whose mesh contains the triangle, or null if the triangle
+     * isn't instanced.
+     */
+    Instance getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Set the normal that {@link #getNormal()} will return, for when it's already
+     * known, such as when restoring an intersection from a G-buffer.
+     */
+    void setNormal(Vector normal) {
+        mNormal = normal;
+        mNormalX = normal.get(0);
+        mNormalY = normal.get(1);
+        mNormalZ = normal.get(2);
+        mHasNormal = true;
     }
 
     /**
@@ -54,10 +141,44 @@ public class Intersection {
     }
 
     /**
-     * Get the point in 3D space of the intersection.
+     * Get the point in 3D space of the intersection, in world space.
      */
     public Vector getPoint() {
-        return mPoint;
+        if (mInstance == null) {
+            return mPoint;
+        }
+
+        if (mWorldPoint == null) {
+            mWorldPoint = mInstance.pointToWorld(mPoint);
+        }
+
+        return mWorldPoint;
+    }
+
+    /**
+     * Returns a unit vector in world space along the triangle's first edge. It's in
+     * the plane of the triangle.
+     */
+    public Vector getTangent() {
+        Vector edge = mTriangle.getEdge(0);
+        if (mInstance != null) {
+            edge = mInstance.vectorToWorld(edge);
+        }
+
+        return edge.normalize();
+    }
+
+    /**
+     * Component on this axis (0 to 2) of the tangent returned by {@link #getTangent()}.
+     * Doesn't allocate unless the triangle is instanced.
+     */
+    public double getTangent(int axis) {
+        if (mInstance != null) {
+            return getTangent().get(axis);
+        }
+
+        Vector edge = mTriangle.getEdge(0);
+        return edge.get(axis)/edge.length();
     }
 
     /**
@@ -77,34 +198,98 @@ public class Intersection {
     /**
      * Utility method for getting the normal of the triangle at the intersection
      * point (interpolating the vertex normals), taking into account whether it's
-     * backfacing.
+     * backfacing. The normal is in world space. The result is cached.
      */
     public Vector getNormal() {
-        //   0: dot((point - v1), cache->h[1]) / dot((v0 - v1), cache->h[1]);
-        //   1: dot((point - v2), cache->h[2]) / dot((v1 - v2), cache->h[2]);
-        //   2: Different to make 1.
-        // Compute barycentric coordinates.
-        double b[] = new double[Triangle.NUM_VERTICES];
-        for (int i = 0; i < Triangle.NUM_VERTICES; i++) {
-            int next = (i + 1) % Triangle.NUM_VERTICES;
+        if (mNormal == null) {
+            computeNormal();
+            mNormal = Vector.make(mNormalX, mNormalY, mNormalZ);
+        }
+
+        return mNormal;
+    }
 
-            Vector edgeNormal = mTriangle.getEdgeNormal(next);
-            double numerator = mPoint.subtract(mTriangle.get(next).getPoint()).dot(edgeNormal);
-            double denomenator = mTriangle.getEdge(i).negate().dot(edgeNormal);
-            b[i] = numerator / denomenator;
+    /**
+     * Component on this axis (0 to 2) of the normal returned by {@link #getNormal()}.
+     * Doesn't allocate unless the triangle is instanced, or for the first encoded
+     * vertex normals seen by this intersection. The result is cached.
+     */
+    public double getNormal(int axis) {
+        computeNormal();
+
+        return axis == 0 ? mNormalX : axis == 1 ? mNormalY : mNormalZ;
+    }
+
+    private void computeNormal() {
+        if (mHasNormal) {
+            return;
         }
 
         // Normal is weighted average of vertex normals by barycentric coordinates.
-        Vector normal = Vector.make(0, 0, 0);
+        double x = 0;
+        double y = 0;
+        double z = 0;
         for (int i = 0; i < Triangle.NUM_VERTICES; i++) {
-            normal = normal.add(mTriangle.get(i).getNormal().multiply(b[i]));
+            double b = getBarycentric(i);
+            Vertex vertex = mTriangle.get(i);
+            if (vertex.hasEncodedNormal()) {
+                if (mVertexNormal == null) {
+                    mVertexNormal = new double[3];
+                }
+                vertex.decodeNormal(mVertexNormal);
+                x += mVertexNormal[0]*b;
+                y += mVertexNormal[1]*b;
+                z += mVertexNormal[2]*b;
+            } else {
+                Vector normal = vertex.getNormal();
+                x += normal.get(0)*b;
+                y += normal.get(1)*b;
+                z += normal.get(2)*b;
+            }
+        }
+        double scale = 1/Math.sqrt(x*x + y*y + z*z);
+        x *= scale;
+        y *= scale;
+        z *= scale;
+
+        if (mInstance != null) {
+            Vector normal = mInstance.normalToWorld(Vector.make(x, y, z));
+            x = normal.get(0);
+            y = normal.get(1);
+            z = normal.get(2);
         }
-        normal = normal.normalize();
 
         if (mBackfacing) {
-            normal = normal.negate();
+            x = -x;
+            y = -y;
+            z = -z;
+        }
+
+        mNormalX = x;
+        mNormalY = y;
+        mNormalZ = z;
+        mHasNormal = true;
+    }
+
+    /**
+     * Barycentric coordinate of the point for vertex i.
+     */
+    private double getBarycentric(int i) {
+        //   0: dot((point - v1), cache->h[1]) / dot((v0 - v1), cache->h[1]);
+        //   1: dot((point - v2), cache->h[2]) / dot((v1 - v2), cache->h[2]);
+        //   2: Different to make 1.
+        int next = (i + 1) % Triangle.NUM_VERTICES;
+
+        Vector edgeNormal = mTriangle.getEdgeNormal(next);
+        Vector nextPoint = mTriangle.get(next).getPoint();
+        Vector edge = mTriangle.getEdge(i);
+        double numerator = 0;
+        double denomenator = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            numerator += (mPoint.get(axis) - nextPoint.get(axis))*edgeNormal.get(axis);
+            denomenator += -edge.get(axis)*edgeNormal.get(axis);
         }
 
-        return normal;
+        return numerator / denomenator;
     }
 }
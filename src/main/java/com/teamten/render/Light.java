@@ -24,7 +24,9 @@ import com.teamten.math.Matrix;
 import com.teamten.math.Vector;
 
 /**
- * Represents a light source and the algorithm to light a point.
+ * Represents a light source and the algorithm to light a point. Renderers call these
+ * for every shaded point, so implementations should return cached objects rather
+ * than allocate.
  */
 public interface Light {
     /**
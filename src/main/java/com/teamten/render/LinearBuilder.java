@@ -0,0 +1,442 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds a linear bounding volume hierarchy (LBVH), as described in "Fast BVH
+ * Construction on GPUs" (Lauterbach et al., 2009). Triangles are sorted along a
+ * Morton curve through their centroids, which puts nearby triangles next to each
+ * other, and then each range of the sorted list is split where the Morton codes
+ * of its triangles first differ. There's no search for good splits, so trees are
+ * built much faster than by the other builders, but are somewhat worse to trace.
+ */
+class LinearBuilder {
+    // Bits of the Morton code per axis, for 63 bits in total.
+    private static final int BITS_PER_AXIS = 21;
+    private static final int MAX_LEAF_TRIANGLES = 4;
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+    // Below this many triangles, build on one thread.
+    private static final int MIN_PARALLEL_SIZE = 1 << 16;
+    private final List<Triangle> mSortedTriangleList;
+    // Bounds of each triangle in sorted order, six per triangle.
+    private final double[] mTriangleBounds;
+    private final long[] mCodes;
+
+    private LinearBuilder(List<Triangle> sortedTriangleList, double[] triangleBounds,
+            long[] codes) {
+
+        mSortedTriangleList = sortedTriangleList;
+        mTriangleBounds = triangleBounds;
+        mCodes = codes;
+    }
+
+    /**
+     * Build the tree below the root, which must have all its triangles and no children.
+     */
+    static void build(BoundingBox root) {
+        if (root.getMin() == null) {
+            return;
+        }
+
+        final List<Triangle> triangleList = root.getTriangleList();
+        int count = triangleList.size();
+        int threadCount = getThreadCount(count);
+        ExecutorService executorService = threadCount == 1
+            ? null
+            : Executors.newFixedThreadPool(threadCount);
+
+        try {
+            final double[] bounds = new double[count*6];
+            final long[] codes = new long[count];
+            int[] order = new int[count];
+            computeCodes(triangleList, bounds, codes, threadCount, executorService);
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+
+            sort(codes, order, threadCount, executorService);
+
+            Triangle[] sortedTriangles = new Triangle[count];
+            double[] sortedBounds = new double[count*6];
+            for (int i = 0; i < count; i++) {
+                sortedTriangles[i] = triangleList.get(order[i]);
+                System.arraycopy(bounds, order[i]*6, sortedBounds, i*6, 6);
+            }
+
+            LinearBuilder builder = new LinearBuilder(Arrays.asList(sortedTriangles),
+                    sortedBounds, codes);
+            if (count > MAX_LEAF_TRIANGLES) {
+                int split = builder.findSplit(0, count);
+                root.addChild(builder.makeNode(0, split, new double[6]));
+                root.addChild(builder.makeNode(split, count, new double[6]));
+            }
+        } finally {
+            if (executorService != null) {
+                executorService.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Fill in the bounds of each triangle, six per triangle, and the Morton code of
+     * its centroid, quantized within the bounds of all centroids.
+     */
+    private static void computeCodes(final List<Triangle> triangleList, final double[] bounds,
+            final long[] codes, final int blockCount, ExecutorService executorService) {
+
+        final int count = triangleList.size();
+
+        // Six per block: the minimum and maximum centroid on each axis.
+        final double[] blockCentroidBounds = new double[blockCount*6];
+        runBlocks(blockCount, executorService, new BlockTask() {
+            @Override // BlockTask
+            public void run(int block) {
+                double[] centroidBounds = makeEmptyBounds();
+                int end = getBlockEnd(count, block, blockCount);
+                for (int i = getBlockEnd(count, block - 1, blockCount); i < end; i++) {
+                    Triangle triangle = triangleList.get(i);
+                    Vector p0 = triangle.get(0).getPoint();
+                    Vector p1 = triangle.get(1).getPoint();
+                    Vector p2 = triangle.get(2).getPoint();
+                    for (int axis = 0; axis < 3; axis++) {
+                        double v0 = p0.get(axis);
+                        double v1 = p1.get(axis);
+                        double v2 = p2.get(axis);
+                        double min = v0 < v1 ? (v0 < v2 ? v0 : v2) : (v1 < v2 ? v1 : v2);
+                        double max = v0 > v1 ? (v0 > v2 ? v0 : v2) : (v1 > v2 ? v1 : v2);
+                        bounds[i*6 + axis] = min;
+                        bounds[i*6 + axis + 3] = max;
+
+                        double centroid = (min + max)/2;
+                        if (centroid < centroidBounds[axis]) {
+                            centroidBounds[axis] = centroid;
+                        }
+                        if (centroid > centroidBounds[axis + 3]) {
+                            centroidBounds[axis + 3] = centroid;
+                        }
+                    }
+                }
+                System.arraycopy(centroidBounds, 0, blockCentroidBounds, block*6, 6);
+            }
+        });
+
+        final double[] centroidBounds = makeEmptyBounds();
+        for (int block = 0; block < blockCount; block++) {
+            for (int axis = 0; axis < 3; axis++) {
+                centroidBounds[axis] = Math.min(centroidBounds[axis],
+                        blockCentroidBounds[block*6 + axis]);
+                centroidBounds[axis + 3] = Math.max(centroidBounds[axis + 3],
+                        blockCentroidBounds[block*6 + axis + 3]);
+            }
+        }
+
+        runBlocks(blockCount, executorService, new BlockTask() {
+            @Override // BlockTask
+            public void run(int block) {
+                double maxCoordinate = (1 << BITS_PER_AXIS) - 1;
+                int end = getBlockEnd(count, block, blockCount);
+                for (int i = getBlockEnd(count, block - 1, blockCount); i < end; i++) {
+                    long code = 0;
+                    for (int axis = 0; axis < 3; axis++) {
+                        double extent = centroidBounds[axis + 3] - centroidBounds[axis];
+                        double centroid = (bounds[i*6 + axis] + bounds[i*6 + axis + 3])/2;
+                        long coordinate = extent == 0 ? 0
+                            : (long) ((centroid - centroidBounds[axis])/extent*maxCoordinate);
+                        code |= spreadBits(coordinate) << (2 - axis);
+                    }
+                    codes[i] = code;
+                }
+            }
+        });
+    }
+
+    /**
+     * Make the node of the sorted triangles from start (inclusive) to end (exclusive)
+     * and its subtree, putting its bounds into "bounds".
+     */
+    private BoundingBox makeNode(int start, int end, double[] bounds) {
+        List<BoundingBox> childList = new ArrayList<BoundingBox>(2);
+        if (end - start <= MAX_LEAF_TRIANGLES) {
+            System.arraycopy(mTriangleBounds, start*6, bounds, 0, 6);
+            for (int i = start + 1; i < end; i++) {
+                for (int axis = 0; axis < 3; axis++) {
+                    bounds[axis] = Math.min(bounds[axis], mTriangleBounds[i*6 + axis]);
+                    bounds[axis + 3] = Math.max(bounds[axis + 3], mTriangleBounds[i*6 + axis + 3]);
+                }
+            }
+        } else {
+            int split = findSplit(start, end);
+            double[] rightBounds = new double[6];
+            childList.add(makeNode(start, split, bounds));
+            childList.add(makeNode(split, end, rightBounds));
+            for (int axis = 0; axis < 3; axis++) {
+                bounds[axis] = Math.min(bounds[axis], rightBounds[axis]);
+                bounds[axis + 3] = Math.max(bounds[axis + 3], rightBounds[axis + 3]);
+            }
+        }
+
+        BoundingBox node = new BoundingBox(Vector.make(bounds[0], bounds[1], bounds[2]),
+                Vector.make(bounds[3], bounds[4], bounds[5]),
+                mSortedTriangleList.subList(start, end));
+        for (BoundingBox child : childList) {
+            node.addChild(child);
+        }
+
+        return node;
+    }
+
+    /**
+     * Returns the index of the first triangle of the second child of the range: the
+     * first one whose code has the highest bit that differs across the range. Ranges
+     * of identical codes are split in the middle.
+     */
+    private int findSplit(int start, int end) {
+        long first = mCodes[start];
+        long last = mCodes[end - 1];
+        if (first == last) {
+            return (start + end)/2;
+        }
+
+        long bit = Long.highestOneBit(first ^ last);
+
+        // Binary search for the first code with the bit set.
+        int low = start + 1;
+        int high = end - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if ((mCodes[middle] & bit) != 0) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Returns the value with two zero bits inserted after each of its lowest
+     * {@link #BITS_PER_AXIS} bits, so that the bits of three values can be interleaved.
+     */
+    private static long spreadBits(long value) {
+        value &= 0x1FFFFFL;
+        value = (value | value << 32) & 0x1F00000000FFFFL;
+        value = (value | value << 16) & 0x1F0000FF0000FFL;
+        value = (value | value << 8) & 0x100F00F00F00F00FL;
+        value = (value | value << 4) & 0x10C30C30C30C30C3L;
+        value = (value | value << 2) & 0x1249249249249249L;
+
+        return value;
+    }
+
+    /**
+     * Sort the keys, which must not be negative, and the values with them, by a
+     * least-significant-digit radix sort. Each pass counts digits and scatters on
+     * all processors, each working on its own block of the array, which keeps the
+     * sort stable.
+     */
+    static void sort(long[] keys, int[] values) {
+        int threadCount = getThreadCount(keys.length);
+        ExecutorService executorService = threadCount == 1
+            ? null
+            : Executors.newFixedThreadPool(threadCount);
+
+        try {
+            sort(keys, values, threadCount, executorService);
+        } finally {
+            if (executorService != null) {
+                executorService.shutdown();
+            }
+        }
+    }
+
+    private static void sort(long[] keys, int[] values, int threadCount,
+            ExecutorService executorService) {
+
+        int count = keys.length;
+        long[] fromKeys = keys;
+        int[] fromValues = values;
+        long[] toKeys = new long[count];
+        int[] toValues = new int[count];
+        int[][] histograms = new int[threadCount][RADIX];
+
+        for (int shift = 0; shift < Long.SIZE - 1; shift += RADIX_BITS) {
+            countDigits(fromKeys, shift, histograms, executorService);
+
+            // Skip digits that are the same in all keys.
+            boolean allSame = false;
+            for (int digit = 0; digit < RADIX && !allSame; digit++) {
+                int digitCount = 0;
+                for (int[] histogram : histograms) {
+                    digitCount += histogram[digit];
+                }
+                allSame = digitCount == count;
+            }
+            if (allSame) {
+                continue;
+            }
+
+            // Turn the counts into where each block's keys with each digit go.
+            int offset = 0;
+            for (int digit = 0; digit < RADIX; digit++) {
+                for (int[] histogram : histograms) {
+                    int digitCount = histogram[digit];
+                    histogram[digit] = offset;
+                    offset += digitCount;
+                }
+            }
+
+            scatter(fromKeys, fromValues, toKeys, toValues, shift, histograms,
+                    executorService);
+
+            long[] tempKeys = fromKeys;
+            fromKeys = toKeys;
+            toKeys = tempKeys;
+            int[] tempValues = fromValues;
+            fromValues = toValues;
+            toValues = tempValues;
+        }
+
+        // An odd number of passes leaves the result in the scratch arrays.
+        if (fromKeys != keys) {
+            System.arraycopy(fromKeys, 0, keys, 0, count);
+            System.arraycopy(fromValues, 0, values, 0, count);
+        }
+    }
+
+    /**
+     * Number of threads to work on this many triangles or keys.
+     */
+    private static int getThreadCount(int count) {
+        return count < MIN_PARALLEL_SIZE ? 1 : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static double[] makeEmptyBounds() {
+        return new double[] {
+            Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+        };
+    }
+
+    /**
+     * Count the digits at the shift in each block of keys, one block per histogram.
+     */
+    private static void countDigits(final long[] keys, final int shift,
+            final int[][] histograms, ExecutorService executorService) {
+
+        final int blockCount = histograms.length;
+        runBlocks(blockCount, executorService, new BlockTask() {
+            @Override // BlockTask
+            public void run(int block) {
+                int[] histogram = histograms[block];
+                Arrays.fill(histogram, 0);
+                int end = getBlockEnd(keys.length, block, blockCount);
+                for (int i = getBlockEnd(keys.length, block - 1, blockCount); i < end; i++) {
+                    histogram[(int) (keys[i] >>> shift) & (RADIX - 1)]++;
+                }
+            }
+        });
+    }
+
+    /**
+     * Move each block's keys and values to where the histograms say their digits go.
+     */
+    private static void scatter(final long[] fromKeys, final int[] fromValues,
+            final long[] toKeys, final int[] toValues, final int shift,
+            final int[][] histograms, ExecutorService executorService) {
+
+        final int blockCount = histograms.length;
+        runBlocks(blockCount, executorService, new BlockTask() {
+            @Override // BlockTask
+            public void run(int block) {
+                int[] offsets = histograms[block];
+                int end = getBlockEnd(fromKeys.length, block, blockCount);
+                for (int i = getBlockEnd(fromKeys.length, block - 1, blockCount); i < end; i++) {
+                    int to = offsets[(int) (fromKeys[i] >>> shift) & (RADIX - 1)]++;
+                    toKeys[to] = fromKeys[i];
+                    toValues[to] = fromValues[i];
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the end (exclusive) of the block of the array, or 0 for block -1.
+     */
+    private static int getBlockEnd(int count, int block, int blockCount) {
+        return (int) ((long) count*(block + 1)/blockCount);
+    }
+
+    /**
+     * Work done on one block of an array.
+     */
+    private interface BlockTask {
+        void run(int block);
+    }
+
+    /**
+     * Run the task on every block, on the executor if it's not null, and wait for them all.
+     */
+    private static void runBlocks(int blockCount, ExecutorService executorService,
+            final BlockTask blockTask) {
+
+        if (executorService == null) {
+            for (int block = 0; block < blockCount; block++) {
+                blockTask.run(block);
+            }
+            return;
+        }
+
+        List<Callable<Void>> callableList = new ArrayList<Callable<Void>>(blockCount);
+        for (int block = 0; block < blockCount; block++) {
+            final int finalBlock = block;
+            callableList.add(new Callable<Void>() {
+                @Override // Callable
+                public Void call() {
+                    blockTask.run(finalBlock);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> future : executorService.invokeAll(callableList)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while sorting", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Sort failed", e.getCause());
+        }
+    }
+}
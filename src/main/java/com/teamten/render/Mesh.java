@@ -0,0 +1,168 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of triangles in their own coordinate system, with their own bounding box
+ * hierarchy. A mesh can be placed in a scene any number of times with
+ * {@link Renderer#addInstance}, and its triangles and hierarchy are only stored once.
+ *
+ * <p>A mesh can also have simplified levels of detail, which the renderer uses
+ * for rays that see the mesh from far enough away that the difference is smaller
+ * than a pixel.
+ */
+public class Mesh {
+    // Don't simplify below this many triangles.
+    private static final int MIN_LEVEL_TRIANGLES = 64;
+    private final List<Triangle> mTriangleList;
+    private final Map<Triangle,Integer> mTriangleIndexMap = new IdentityHashMap<Triangle,Integer>();
+    // Triangles of all levels, in order, so that they each have an index.
+    private final List<Triangle> mAllTriangleList;
+    private int mLevelOfDetailCount = 0;
+    private final List<BoundingBox> mBoundingBoxes = new ArrayList<BoundingBox>();
+    private final List<Double> mLevelErrors = new ArrayList<Double>();
+
+    public Mesh(List<Triangle> triangleList) {
+        mTriangleList = new ArrayList<Triangle>(triangleList);
+        mAllTriangleList = new ArrayList<Triangle>(mTriangleList);
+        for (int i = 0; i < mTriangleList.size(); i++) {
+            mTriangleIndexMap.put(mTriangleList.get(i), i);
+        }
+    }
+
+    /**
+     * Number of simplified versions of the mesh to make, in addition to the full
+     * one. Each has about a quarter of the triangles of the previous one. Defaults
+     * to zero. Must be set before the mesh is first rendered.
+     */
+    public void setLevelOfDetailCount(int levelOfDetailCount) {
+        mLevelOfDetailCount = levelOfDetailCount;
+    }
+
+    /**
+     * Returns the triangles of the mesh, in mesh space.
+     */
+    public List<Triangle> getTriangleList() {
+        return mTriangleList;
+    }
+
+    /**
+     * Returns the index of the triangle, which is its index in {@link #getTriangleList()}
+     * for the full level, and past the end of it for simplified levels.
+     */
+    int getTriangleIndex(Triangle triangle) {
+        return mTriangleIndexMap.get(triangle);
+    }
+
+    /**
+     * Returns the triangle with this index, as returned by {@link #getTriangleIndex}.
+     */
+    Triangle getTriangle(int index) {
+        return mAllTriangleList.get(index);
+    }
+
+    /**
+     * Build the bounding box hierarchy of each level if it hasn't been built yet.
+     *
+     * @param builder how to build the hierarchies.
+     * @return whether the hierarchies were built by this call.
+     */
+    synchronized boolean prepare(HierarchyBuilder builder) {
+        if (!mBoundingBoxes.isEmpty()) {
+            return false;
+        }
+
+        mBoundingBoxes.add(makeBoundingBox(mTriangleList, builder));
+        mLevelErrors.add(0.0);
+
+        // Each level continues simplifying the previous one.
+        if (mLevelOfDetailCount > 0) {
+            MeshSimplifier simplifier = new MeshSimplifier(mTriangleList);
+            for (int level = 1; level <= mLevelOfDetailCount; level++) {
+                int targetTriangleCount = mTriangleList.size() >> (2*level);
+                if (targetTriangleCount < MIN_LEVEL_TRIANGLES) {
+                    break;
+                }
+                simplifier.simplify(targetTriangleCount);
+
+                List<Triangle> levelTriangleList = simplifier.getTriangleList();
+                for (Triangle triangle : levelTriangleList) {
+                    mTriangleIndexMap.put(triangle, mAllTriangleList.size());
+                    mAllTriangleList.add(triangle);
+                }
+                mBoundingBoxes.add(makeBoundingBox(levelTriangleList, builder));
+                mLevelErrors.add(simplifier.getError());
+            }
+        }
+
+        return true;
+    }
+
+    private static BoundingBox makeBoundingBox(List<Triangle> triangleList,
+            HierarchyBuilder builder) {
+        BoundingBox boundingBox = new BoundingBox();
+        for (Triangle triangle : triangleList) {
+            boundingBox.addTriangle(triangle);
+        }
+        boundingBox.createTree(builder);
+
+        return boundingBox;
+    }
+
+    /**
+     * Returns the number of levels, including the full one. Call {@link #prepare} first.
+     */
+    int getLevelCount() {
+        return mBoundingBoxes.size();
+    }
+
+    /**
+     * Returns the coarsest level whose distance from the full mesh is at most
+     * maxError, in mesh space. Level 0 is the full mesh.
+     */
+    int getLevel(double maxError) {
+        for (int level = mLevelErrors.size() - 1; level > 0; level--) {
+            if (mLevelErrors.get(level) <= maxError) {
+                return level;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns the root of the full level's hierarchy, in mesh space. Call
+     * {@link #prepare} first.
+     */
+    BoundingBox getBoundingBox() {
+        return mBoundingBoxes.get(0);
+    }
+
+    /**
+     * Returns the root of the level's hierarchy, in mesh space.
+     */
+    BoundingBox getBoundingBox(int level) {
+        return mBoundingBoxes.get(level);
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Simplifies a triangle mesh by collapsing edges in order of quadric error
+ * (Garland and Heckbert). Each vertex keeps the sum of the squared distances to
+ * the planes of its original triangles, and an edge's cost is the smallest value
+ * of that sum over the position that the merged vertex can take.
+ *
+ * <p>Vertices are shared by position, so the input's triangles must share exact
+ * coordinates where they meet. Edges with only one triangle get extra planes
+ * perpendicular to their triangle so that open borders don't shrink.
+ * Simplification can be continued with smaller targets to make successively
+ * coarser levels.
+ */
+class MeshSimplifier {
+    // Weight of the planes that keep borders in place.
+    private static final double BOUNDARY_WEIGHT = 1000;
+    // Number of values in the upper half of a symmetric 4x4 matrix.
+    private static final int QUADRIC_SIZE = 10;
+    private final int mVertexCount;
+    private final double[] mPositions;
+    private final double[] mNormals;
+    private final double[] mQuadrics;
+    private final int[] mVersions;
+    private final boolean[] mRemovedVertices;
+    private final int[] mTriangles;
+    private final boolean[] mRemovedTriangles;
+    // Triangles that use each vertex. May include removed triangles.
+    private final List<List<Integer>> mVertexTriangles = new ArrayList<List<Integer>>();
+    private final PriorityQueue<Collapse> mQueue = new PriorityQueue<Collapse>();
+    private final boolean mFlatShaded;
+    private int mTriangleCount;
+    private double mError = 0;
+
+    /**
+     * A candidate edge collapse. It's stale if either vertex has changed since it
+     * was computed.
+     */
+    private static class Collapse implements Comparable<Collapse> {
+        final int mV1;
+        final int mV2;
+        final int mVersion1;
+        final int mVersion2;
+        final double mCost;
+        final double[] mPosition;
+
+        Collapse(int v1, int v2, int version1, int version2, double cost, double[] position) {
+            mV1 = v1;
+            mV2 = v2;
+            mVersion1 = version1;
+            mVersion2 = version2;
+            mCost = cost;
+            mPosition = position;
+        }
+
+        @Override // Comparable
+        public int compareTo(Collapse other) {
+            return Double.compare(mCost, other.mCost);
+        }
+    }
+
+    /**
+     * Key for sharing vertices by exact position.
+     */
+    private static class Point {
+        final double mX;
+        final double mY;
+        final double mZ;
+
+        Point(Vector v) {
+            mX = v.get(0);
+            mY = v.get(1);
+            mZ = v.get(2);
+        }
+
+        @Override // Object
+        public boolean equals(Object o) {
+            if (!(o instanceof Point)) {
+                return false;
+            }
+            Point other = (Point) o;
+            return Double.compare(mX, other.mX) == 0 && Double.compare(mY, other.mY) == 0 &&
+                Double.compare(mZ, other.mZ) == 0;
+        }
+
+        @Override // Object
+        public int hashCode() {
+            return (Double.hashCode(mX)*31 + Double.hashCode(mY))*31 + Double.hashCode(mZ);
+        }
+    }
+
+    MeshSimplifier(List<Triangle> triangleList) {
+        // Share vertices by position.
+        Map<Point,Integer> vertexMap = new HashMap<Point,Integer>();
+        List<Vector> pointList = new ArrayList<Vector>();
+        mTriangles = new int[triangleList.size()*3];
+        boolean flatShaded = true;
+        for (int t = 0; t < triangleList.size(); t++) {
+            Triangle triangle = triangleList.get(t);
+            for (int v = 0; v < Triangle.NUM_VERTICES; v++) {
+                Vertex vertex = triangle.get(v);
+                Point point = new Point(vertex.getPoint());
+                Integer index = vertexMap.get(point);
+                if (index == null) {
+                    index = pointList.size();
+                    vertexMap.put(point, index);
+                    pointList.add(vertex.getPoint());
+                }
+                mTriangles[t*3 + v] = index;
+                if (vertex.getNormal().dot(triangle.getNormal()) < 0.9999) {
+                    flatShaded = false;
+                }
+            }
+        }
+        mFlatShaded = flatShaded;
+
+        mVertexCount = pointList.size();
+        mPositions = new double[mVertexCount*3];
+        mNormals = new double[mVertexCount*3];
+        mQuadrics = new double[mVertexCount*QUADRIC_SIZE];
+        mVersions = new int[mVertexCount];
+        mRemovedVertices = new boolean[mVertexCount];
+        mRemovedTriangles = new boolean[triangleList.size()];
+        mTriangleCount = triangleList.size();
+        for (int v = 0; v < mVertexCount; v++) {
+            for (int i = 0; i < 3; i++) {
+                mPositions[v*3 + i] = pointList.get(v).get(i);
+            }
+            mVertexTriangles.add(new ArrayList<Integer>());
+        }
+
+        // Sum the planes and normals of each vertex's triangles, and count the
+        // triangles of each edge to find borders.
+        Map<Long,Integer> edgeCounts = new HashMap<Long,Integer>();
+        for (int t = 0; t < triangleList.size(); t++) {
+            Triangle triangle = triangleList.get(t);
+            double[] normal = getNormal(t, -1, null);
+            for (int v = 0; v < Triangle.NUM_VERTICES; v++) {
+                int vertex = mTriangles[t*3 + v];
+                mVertexTriangles.get(vertex).add(t);
+                for (int i = 0; i < 3; i++) {
+                    mNormals[vertex*3 + i] += triangle.get(v).getNormal().get(i);
+                }
+                if (normal != null) {
+                    addPlane(vertex, normal, vertex, 1);
+                }
+
+                Long edge = getEdgeKey(vertex, mTriangles[t*3 + (v + 1)%3]);
+                Integer count = edgeCounts.get(edge);
+                edgeCounts.put(edge, count == null ? 1 : count + 1);
+            }
+        }
+
+        // Keep borders in place.
+        for (int t = 0; t < triangleList.size(); t++) {
+            double[] normal = getNormal(t, -1, null);
+            if (normal == null) {
+                continue;
+            }
+            for (int v = 0; v < Triangle.NUM_VERTICES; v++) {
+                int v1 = mTriangles[t*3 + v];
+                int v2 = mTriangles[t*3 + (v + 1)%3];
+                if (edgeCounts.get(getEdgeKey(v1, v2)) == 1) {
+                    double[] edge = new double[3];
+                    for (int i = 0; i < 3; i++) {
+                        edge[i] = mPositions[v2*3 + i] - mPositions[v1*3 + i];
+                    }
+                    double[] borderNormal = normalize(cross(edge, normal));
+                    if (borderNormal != null) {
+                        addPlane(v1, borderNormal, v1, BOUNDARY_WEIGHT);
+                        addPlane(v2, borderNormal, v1, BOUNDARY_WEIGHT);
+                    }
+                }
+            }
+        }
+
+        for (Long edge : edgeCounts.keySet()) {
+            addCollapse((int) (edge/mVertexCount), (int) (edge%mVertexCount));
+        }
+    }
+
+    /**
+     * Collapse edges until there are at most targetTriangleCount triangles or no
+     * edges can be collapsed without flipping a triangle.
+     */
+    void simplify(int targetTriangleCount) {
+        while (mTriangleCount > targetTriangleCount && !mQueue.isEmpty()) {
+            Collapse collapse = mQueue.poll();
+
+            if (!mRemovedVertices[collapse.mV1] && !mRemovedVertices[collapse.mV2] &&
+                    mVersions[collapse.mV1] == collapse.mVersion1 &&
+                    mVersions[collapse.mV2] == collapse.mVersion2) {
+
+                collapse(collapse);
+            }
+        }
+    }
+
+    /**
+     * Number of triangles left.
+     */
+    int getTriangleCount() {
+        return mTriangleCount;
+    }
+
+    /**
+     * Estimate of the largest distance between the simplified surface and the
+     * original one: the square root of the largest quadric error of any collapse.
+     */
+    double getError() {
+        return mError;
+    }
+
+    /**
+     * Make the triangles that are left. Vertex normals are the triangle's normal if
+     * the input was flat-shaded, and otherwise the average of the merged vertices'
+     * normals.
+     */
+    List<Triangle> getTriangleList() {
+        List<Triangle> triangleList = new ArrayList<Triangle>(mTriangleCount);
+
+        for (int t = 0; t < mRemovedTriangles.length; t++) {
+            if (mRemovedTriangles[t]) {
+                continue;
+            }
+
+            double[] normal = getNormal(t, -1, null);
+            if (normal == null) {
+                continue;
+            }
+            Vertex[] vertices = new Vertex[Triangle.NUM_VERTICES];
+            for (int v = 0; v < Triangle.NUM_VERTICES; v++) {
+                int vertex = mTriangles[t*3 + v];
+                double[] vertexNormal = mFlatShaded ? null : normalize(new double[] {
+                    mNormals[vertex*3], mNormals[vertex*3 + 1], mNormals[vertex*3 + 2]
+                });
+                if (vertexNormal == null) {
+                    vertexNormal = normal;
+                }
+                vertices[v] = new Vertex(
+                        Vector.make(mPositions[vertex*3], mPositions[vertex*3 + 1],
+                            mPositions[vertex*3 + 2]),
+                        Vector.make(vertexNormal[0], vertexNormal[1], vertexNormal[2]));
+            }
+
+            try {
+                triangleList.add(new Triangle(vertices));
+            } catch (DegenerateTriangleException e) {
+                // Skip.
+            }
+        }
+
+        return triangleList;
+    }
+
+    /**
+     * Merge the collapse's second vertex into its first, unless that would flip
+     * a triangle.
+     */
+    private void collapse(Collapse collapse) {
+        int v1 = collapse.mV1;
+        int v2 = collapse.mV2;
+
+        // Make sure no remaining triangle flips over.
+        for (int v : new int[] { v1, v2 }) {
+            for (int t : mVertexTriangles.get(v)) {
+                if (mRemovedTriangles[t] || (uses(t, v1) && uses(t, v2))) {
+                    continue;
+                }
+                double[] before = getNormal(t, -1, null);
+                double[] after = getNormal(t, v, collapse.mPosition);
+                if (before != null && (after == null ||
+                            before[0]*after[0] + before[1]*after[1] + before[2]*after[2] < 0)) {
+                    return;
+                }
+            }
+        }
+
+        // Move the first vertex and give it the second one's planes and normal.
+        for (int i = 0; i < 3; i++) {
+            mPositions[v1*3 + i] = collapse.mPosition[i];
+            mNormals[v1*3 + i] += mNormals[v2*3 + i];
+        }
+        for (int i = 0; i < QUADRIC_SIZE; i++) {
+            mQuadrics[v1*QUADRIC_SIZE + i] += mQuadrics[v2*QUADRIC_SIZE + i];
+        }
+
+        // Drop the triangles on the edge and move the others to the first vertex.
+        for (int t : mVertexTriangles.get(v2)) {
+            if (mRemovedTriangles[t]) {
+                continue;
+            }
+            if (uses(t, v1)) {
+                mRemovedTriangles[t] = true;
+                mTriangleCount--;
+            } else {
+                for (int v = 0; v < Triangle.NUM_VERTICES; v++) {
+                    if (mTriangles[t*3 + v] == v2) {
+                        mTriangles[t*3 + v] = v1;
+                    }
+                }
+                mVertexTriangles.get(v1).add(t);
+            }
+        }
+        mVertexTriangles.get(v2).clear();
+        mRemovedVertices[v2] = true;
+        mVersions[v1]++;
+        mError = Math.max(mError, Math.sqrt(Math.max(collapse.mCost, 0)));
+
+        // Recompute the collapses of the edges around the first vertex.
+        Set<Integer> neighbors = new HashSet<Integer>();
+        for (int t : mVertexTriangles.get(v1)) {
+            if (!mRemovedTriangles[t]) {
+                for (int v = 0; v < Triangle.NUM_VERTICES; v++) {
+                    neighbors.add(mTriangles[t*3 + v]);
+                }
+            }
+        }
+        neighbors.remove(v1);
+        for (int neighbor : neighbors) {
+            // Other collapses of the neighbor stay valid, so don't bump its version.
+            addCollapse(v1, neighbor);
+        }
+    }
+
+    private boolean uses(int t, int vertex) {
+        return mTriangles[t*3] == vertex || mTriangles[t*3 + 1] == vertex ||
+            mTriangles[t*3 + 2] == vertex;
+    }
+
+    /**
+     * Queue the collapse of the edge between the two vertices, at the position
+     * with the smallest error.
+     */
+    private void addCollapse(int v1, int v2) {
+        double[] q = new double[QUADRIC_SIZE];
+        for (int i = 0; i < QUADRIC_SIZE; i++) {
+            q[i] = mQuadrics[v1*QUADRIC_SIZE + i] + mQuadrics[v2*QUADRIC_SIZE + i];
+        }
+
+        // Solve for the minimum with Cramer's rule.
+        double det = det3(q[0], q[1], q[2], q[1], q[4], q[5], q[2], q[5], q[7]);
+        double scale = q[0] + q[4] + q[7];
+        double[] position = null;
+        if (Math.abs(det) > 1e-10*scale*scale*scale) {
+            position = new double[] {
+                -det3(q[3], q[1], q[2], q[6], q[4], q[5], q[8], q[5], q[7])/det,
+                -det3(q[0], q[3], q[2], q[1], q[6], q[5], q[2], q[8], q[7])/det,
+                -det3(q[0], q[1], q[3], q[1], q[4], q[6], q[2], q[5], q[8])/det,
+            };
+        }
+
+        // Otherwise use the best of the ends and the middle.
+        if (position == null) {
+            double bestCost = Double.POSITIVE_INFINITY;
+            for (double f : new double[] { 0, 0.5, 1 }) {
+                double[] candidate = new double[3];
+                for (int i = 0; i < 3; i++) {
+                    candidate[i] = mPositions[v1*3 + i]*(1 - f) + mPositions[v2*3 + i]*f;
+                }
+                double cost = evaluate(q, candidate);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    position = candidate;
+                }
+            }
+        }
+
+        mQueue.add(new Collapse(v1, v2, mVersions[v1], mVersions[v2], evaluate(q, position),
+                    position));
+    }
+
+    /**
+     * Add the plane through vertex "pointVertex" with the given unit normal to the
+     * quadric of "vertex".
+     */
+    private void addPlane(int vertex, double[] normal, int pointVertex, double weight) {
+        double a = normal[0];
+        double b = normal[1];
+        double c = normal[2];
+        double d = -(a*mPositions[pointVertex*3] + b*mPositions[pointVertex*3 + 1] +
+                c*mPositions[pointVertex*3 + 2]);
+
+        int base = vertex*QUADRIC_SIZE;
+        mQuadrics[base] += weight*a*a;
+        mQuadrics[base + 1] += weight*a*b;
+        mQuadrics[base + 2] += weight*a*c;
+        mQuadrics[base + 3] += weight*a*d;
+        mQuadrics[base + 4] += weight*b*b;
+        mQuadrics[base + 5] += weight*b*c;
+        mQuadrics[base + 6] += weight*b*d;
+        mQuadrics[base + 7] += weight*c*c;
+        mQuadrics[base + 8] += weight*c*d;
+        mQuadrics[base + 9] += weight*d*d;
+    }
+
+    /**
+     * The sum of squared distances from p to the quadric's planes.
+     */
+    private static double evaluate(double[] q, double[] p) {
+        double x = p[0];
+        double y = p[1];
+        double z = p[2];
+
+        return q[0]*x*x + 2*q[1]*x*y + 2*q[2]*x*z + 2*q[3]*x +
+            q[4]*y*y + 2*q[5]*y*z + 2*q[6]*y +
+            q[7]*z*z + 2*q[8]*z + q[9];
+    }
+
+    private static double det3(double a, double b, double c,
+            double d, double e, double f,
+            double g, double h, double i) {
+
+        return a*(e*i - f*h) - b*(d*i - f*g) + c*(d*h - e*g);
+    }
+
+    /**
+     * The unit normal of triangle t, with "movedVertex" at "position" if it's not -1.
+     * Uses the same winding as {@link Triangle#getNormal}. Returns null if the
+     * triangle is degenerate.
+     */
+    private double[] getNormal(int t, int movedVertex, double[] position) {
+        double[][] points = new double[3][];
+        for (int v = 0; v < Triangle.NUM_VERTICES; v++) {
+            int vertex = mTriangles[t*3 + v];
+            points[v] = vertex == movedVertex ? position : new double[] {
+                mPositions[vertex*3], mPositions[vertex*3 + 1], mPositions[vertex*3 + 2]
+            };
+        }
+
+        double[] edge0 = new double[3];
+        double[] edge1 = new double[3];
+        for (int i = 0; i < 3; i++) {
+            edge0[i] = points[1][i] - points[0][i];
+            edge1[i] = points[2][i] - points[1][i];
+        }
+
+        return normalize(cross(edge1, edge0));
+    }
+
+    private static double[] cross(double[] a, double[] b) {
+        return new double[] {
+            a[1]*b[2] - a[2]*b[1],
+            a[2]*b[0] - a[0]*b[2],
+            a[0]*b[1] - a[1]*b[0]
+        };
+    }
+
+    /**
+     * Returns the unit vector in the direction of v, or null if v is zero.
+     */
+    private static double[] normalize(double[] v) {
+        double length = Math.sqrt(v[0]*v[0] + v[1]*v[1] + v[2]*v[2]);
+        if (length == 0) {
+            return null;
+        }
+
+        return new double[] { v[0]/length, v[1]/length, v[2]/length };
+    }
+
+    /**
+     * Key for the undirected edge between two vertices.
+     */
+    private Long getEdgeKey(int v1, int v2) {
+        return (long) Math.min(v1, v2)*mVertexCount + Math.max(v1, v2);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+/**
+ * A cone that contains the normals of a group of triangles, used to skip groups
+ * whose triangles all face away from a ray. Stored as the cone's unit axis and
+ * the sine of its half-angle, which makes the test a single dot product.
+ */
+class NormalCone {
+    /**
+     * Sine stored for groups that can't be culled, which no ray passes.
+     */
+    static final double NO_CULLING = 2;
+    // Margin for rounding in the test.
+    private static final double EPSILON = 1e-6;
+
+    private NormalCone() {
+        // Not instantiable.
+    }
+
+    /**
+     * Compute the cone of "count" unit normals, stored as x, y, z in "normals".
+     * The axis is rounded to float precision so that it can be stored as floats.
+     *
+     * @return the axis x, y, z and the sine of the half-angle, which is
+     * {@link #NO_CULLING} if the normals span a half-space or more.
+     */
+    static double[] compute(double[] normals, int count) {
+        double x = 0;
+        double y = 0;
+        double z = 0;
+        for (int i = 0; i < count; i++) {
+            x += normals[i*3];
+            y += normals[i*3 + 1];
+            z += normals[i*3 + 2];
+        }
+
+        double length = Math.sqrt(x*x + y*y + z*z);
+        if (length == 0) {
+            return new double[] { 0, 0, 0, NO_CULLING };
+        }
+        x = (float) (x/length);
+        y = (float) (y/length);
+        z = (float) (z/length);
+        length = Math.sqrt(x*x + y*y + z*z);
+
+        // Find the widest normal.
+        double minCosine = 1;
+        for (int i = 0; i < count; i++) {
+            double cosine = (x*normals[i*3] + y*normals[i*3 + 1] + z*normals[i*3 + 2])/length;
+            minCosine = Math.min(minCosine, cosine);
+        }
+
+        double sine = minCosine <= 0 ? NO_CULLING : Math.sqrt(1 - minCosine*minCosine);
+
+        return new double[] { x, y, z, sine };
+    }
+
+    /**
+     * Whether every normal in the cone faces away from the ray direction (dx,dy,dz),
+     * meaning its dot product with the direction is positive.
+     *
+     * @param length the length of the ray direction.
+     */
+    static boolean isBackfacing(double axisX, double axisY, double axisZ, double sine,
+            double dx, double dy, double dz, double length) {
+
+        // The direction must be within 90 degrees minus the half-angle of the axis.
+        return axisX*dx + axisY*dy + axisZ*dz > (sine + EPSILON)*length;
+    }
+}
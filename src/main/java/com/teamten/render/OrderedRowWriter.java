@@ -0,0 +1,132 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Takes rows of an image as they're finished by render threads, in any order, and
+ * writes them to a {@link PngWriter} in order. Threads wait before rendering a row
+ * that's too far ahead of the next one to write, so only a window of rows is kept.
+ */
+class OrderedRowWriter {
+    private final PngWriter mPngWriter;
+    private final int mMaxPendingRows;
+    private final Map<Integer,int[]> mPendingRows = new HashMap<Integer,int[]>();
+    private int mNextRow = 0;
+    private IOException mException = null;
+    private boolean mStopped = false;
+
+    /**
+     * @param maxPendingRows how far ahead of the next row to write rows may be rendered.
+     */
+    OrderedRowWriter(PngWriter pngWriter, int maxPendingRows) {
+        mPngWriter = pngWriter;
+        mMaxPendingRows = maxPendingRows;
+    }
+
+    /**
+     * Wait until row y is close enough to the next row to write that it can be rendered.
+     * The row being waited for must already be assigned to another thread.
+     *
+     * @return false if the writer was stopped, in which case the row shouldn't be rendered.
+     */
+    synchronized boolean waitForRoom(int y) throws InterruptedException {
+        while (!mStopped && y >= mNextRow + mMaxPendingRows) {
+            wait();
+        }
+
+        return !mStopped;
+    }
+
+    /**
+     * Stop taking rows, because some row will never be added. Threads waiting for
+     * room are released.
+     */
+    synchronized void stop() {
+        mStopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Whether {@link #stop} was called.
+     */
+    synchronized boolean isStopped() {
+        return mStopped;
+    }
+
+    /**
+     * Number of rows written so far.
+     */
+    synchronized int getRowCount() {
+        return mNextRow;
+    }
+
+    /**
+     * Hand over finished row y, which is then written along with the rows after it
+     * that are ready.
+     */
+    synchronized void addRow(int y, int[] argb) {
+        if (mStopped) {
+            return;
+        }
+        mPendingRows.put(y, argb);
+
+        int[] row;
+        while ((row = mPendingRows.remove(mNextRow)) != null) {
+            // Keep going after a failure so that no thread waits forever.
+            if (mException == null) {
+                try {
+                    mPngWriter.writeRow(row);
+                } catch (IOException e) {
+                    mException = e;
+                }
+            }
+            mNextRow++;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Finish the file once all rows have been added. Throws the first error from
+     * writing rows, if any.
+     */
+    synchronized void close() throws IOException {
+        if (mException != null) {
+            mPngWriter.abort();
+            throw mException;
+        }
+
+        mPngWriter.close();
+    }
+
+    /**
+     * Close the stream without finishing the file, once all rows that will be added
+     * have been.
+     */
+    synchronized void abort() throws IOException {
+        mStopped = true;
+        mPngWriter.abort();
+    }
+}
@@ -0,0 +1,602 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Geometry stored in a file on disk, for scenes that don't fit in memory. The file
+ * holds a sequence of chunks, each a {@link PackedHierarchy} over a limited number
+ * of triangles, followed by an index of the chunks' bounds. Opening the file only
+ * reads the index. Chunks are memory-mapped the first time a ray reaches them, and
+ * the operating system pages their nodes and triangles in as traversal touches them
+ * and drops them again under memory pressure.
+ *
+ * <p>Rays are traced in batches: the batch is filtered down a small tree over the
+ * chunk bounds, and each chunk traces all the rays that reach it at once, so that
+ * its pages are brought in once per batch rather than once per ray.
+ *
+ * <p>Files are made with a {@link Writer}, which only keeps one chunk of triangles
+ * in memory. Chunks are made from consecutive triangles, so the input should be
+ * spatially coherent, as scans usually are, or chunks will overlap and every ray
+ * will visit many of them.
+ */
+public class OutOfCoreScene implements Closeable {
+    private static final int MAGIC = 0x55524f43;
+    private static final int VERSION = 2;
+    // Magic, version, chunk count, index offset.
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+    // Offset, size, first triangle, triangle count, bounds.
+    private static final int INDEX_ENTRY_SIZE = 8 + 4 + 4 + 4 + 6*4;
+    private static final int DEFAULT_CHUNK_TRIANGLES = 1 << 20;
+    private static final int MAX_LEAF_CHUNKS = 1;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mChunkCount;
+    private final long[] mChunkOffsets;
+    private final int[] mChunkSizes;
+    private final int[] mChunkFirstTriangles;
+    private final int mTriangleCount;
+    private final Vector[] mChunkMins;
+    private final Vector[] mChunkMaxs;
+    // Read without locking by every ray; set under the lock when a chunk is mapped.
+    private final AtomicReferenceArray<PackedHierarchy> mChunks;
+    // Tree over the chunks, depth-first so the first child follows its parent. For
+    // inner nodes, the index of the second child; for leaves, -(chunk + 1).
+    private final int[] mNodes;
+    // For inner nodes, the axis along which the first child's chunks come first.
+    private final byte[] mNodeAxes;
+    private final Vector[] mNodeMins;
+    private final Vector[] mNodeMaxs;
+    private int mNextNode;
+    private int mTreeDepth;
+    private int mMappedChunkCount;
+
+    /**
+     * Writes a scene file one chunk at a time.
+     */
+    public static class Writer implements Closeable {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final HierarchyFormat mFormat;
+        private final int mChunkTriangles;
+        private final List<Triangle> mTriangleList = new ArrayList<Triangle>();
+        private final List<ByteBuffer> mIndexEntries = new ArrayList<ByteBuffer>();
+        private int mTriangleCount;
+
+        /**
+         * Start a scene file with chunks of about a million triangles.
+         *
+         * @param format the format of the chunks' hierarchies, anything but
+         * {@link HierarchyFormat#TREE}.
+         */
+        public Writer(File file, HierarchyFormat format) throws IOException {
+            this(file, format, DEFAULT_CHUNK_TRIANGLES);
+        }
+
+        /**
+         * Start a scene file with chunks of at most chunkTriangles triangles.
+         */
+        public Writer(File file, HierarchyFormat format, int chunkTriangles)
+            throws IOException {
+
+            if (format == HierarchyFormat.TREE) {
+                throw new IllegalArgumentException("Can't write hierarchy as " + format);
+            }
+
+            mFile = new RandomAccessFile(file, "rw");
+            mFile.setLength(0);
+            mChannel = mFile.getChannel();
+            mFormat = format;
+            mChunkTriangles = chunkTriangles;
+
+            // Room for the header, which is written at the end.
+            mChannel.position(HEADER_SIZE);
+        }
+
+        /**
+         * Add a triangle to the scene. Triangles are written when a chunk fills up.
+         */
+        public void addTriangle(Triangle triangle) throws IOException {
+            mTriangleList.add(triangle);
+            if (mTriangleList.size() == mChunkTriangles) {
+                writeChunk();
+            }
+        }
+
+        /**
+         * Build the hierarchy of the pending triangles and write it as a chunk.
+         */
+        private void writeChunk() throws IOException {
+            BoundingBox boundingBox = new BoundingBox();
+            for (Triangle triangle : mTriangleList) {
+                boundingBox.addTriangle(triangle);
+            }
+            mTriangleList.clear();
+            boundingBox.createTree();
+
+            PackedHierarchy packedHierarchy = new PackedHierarchy(boundingBox, mFormat, false);
+            if (packedHierarchy.getTriangleCount() == 0) {
+                return;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(packedHierarchy.getSerializedSize());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            packedHierarchy.write(buffer);
+            buffer.flip();
+
+            long offset = mChannel.position();
+            writeFully(buffer);
+
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            entry.putLong(offset);
+            entry.putInt(buffer.capacity());
+            entry.putInt(mTriangleCount);
+            entry.putInt(packedHierarchy.getTriangleCount());
+            Vector min = packedHierarchy.getMin();
+            Vector max = packedHierarchy.getMax();
+            for (int i = 0; i < 3; i++) {
+                entry.putFloat((float) min.get(i));
+            }
+            for (int i = 0; i < 3; i++) {
+                entry.putFloat((float) max.get(i));
+            }
+            entry.flip();
+            mIndexEntries.add(entry);
+
+            if (mTriangleCount + packedHierarchy.getTriangleCount() < mTriangleCount) {
+                throw new IOException("Too many triangles for one scene");
+            }
+            mTriangleCount += packedHierarchy.getTriangleCount();
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        }
+
+        /**
+         * Write the last chunk, the index and the header, and close the file.
+         */
+        @Override // Closeable
+        public void close() throws IOException {
+            try {
+                if (!mTriangleList.isEmpty()) {
+                    writeChunk();
+                }
+
+                long indexOffset = mChannel.position();
+                for (ByteBuffer entry : mIndexEntries) {
+                    writeFully(entry);
+                }
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(mIndexEntries.size());
+                header.putLong(indexOffset);
+                header.flip();
+                mChannel.position(0);
+                writeFully(header);
+            } finally {
+                mFile.close();
+            }
+        }
+    }
+
+    /**
+     * Open a scene file made by a {@link Writer}. Only its index is read.
+     */
+    public OutOfCoreScene(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+
+        try {
+            ByteBuffer header = read(0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not an out-of-core scene: " + file);
+            }
+            mChunkCount = header.getInt();
+            long indexOffset = header.getLong();
+
+            mChunkOffsets = new long[mChunkCount];
+            mChunkSizes = new int[mChunkCount];
+            mChunkFirstTriangles = new int[mChunkCount];
+            mChunkMins = new Vector[mChunkCount];
+            mChunkMaxs = new Vector[mChunkCount];
+            mChunks = new AtomicReferenceArray<PackedHierarchy>(mChunkCount);
+
+            ByteBuffer index = read(indexOffset, mChunkCount*INDEX_ENTRY_SIZE);
+            int triangleCount = 0;
+            for (int chunk = 0; chunk < mChunkCount; chunk++) {
+                mChunkOffsets[chunk] = index.getLong();
+                mChunkSizes[chunk] = index.getInt();
+                mChunkFirstTriangles[chunk] = index.getInt();
+                triangleCount += index.getInt();
+                mChunkMins[chunk] = Vector.make(index.getFloat(), index.getFloat(), index.getFloat());
+                mChunkMaxs[chunk] = Vector.make(index.getFloat(), index.getFloat(), index.getFloat());
+            }
+            mTriangleCount = triangleCount;
+        } catch (IOException | RuntimeException e) {
+            mFile.close();
+            throw e;
+        }
+
+        // Build the tree over the chunks.
+        int nodeCount = Math.max(1, 2*mChunkCount - 1);
+        mNodes = new int[nodeCount];
+        mNodeAxes = new byte[nodeCount];
+        mNodeMins = new Vector[nodeCount];
+        mNodeMaxs = new Vector[nodeCount];
+        Integer[] chunks = new Integer[mChunkCount];
+        for (int chunk = 0; chunk < mChunkCount; chunk++) {
+            chunks[chunk] = chunk;
+        }
+        mNextNode = 0;
+        mTreeDepth = 0;
+        if (mChunkCount > 0) {
+            buildNode(chunks, 0, mChunkCount, 1);
+        }
+
+        System.out.printf("Out-of-core scene: %,d triangles in %,d chunks%n",
+                mTriangleCount, mChunkCount);
+    }
+
+    /**
+     * Read "size" bytes of the file at "offset".
+     */
+    private ByteBuffer read(long offset, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Out-of-core scene is truncated");
+            }
+        }
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Build the subtree over chunks[start] to chunks[end - 1] by splitting
+     * at the median center along the longest axis.
+     */
+    private void buildNode(Integer[] chunks, int start, int end, int depth) {
+        int node = mNextNode++;
+        mTreeDepth = Math.max(mTreeDepth, depth);
+
+        Vector min = mChunkMins[chunks[start]];
+        Vector max = mChunkMaxs[chunks[start]];
+        for (int i = start + 1; i < end; i++) {
+            min = componentMin(min, mChunkMins[chunks[i]]);
+            max = componentMax(max, mChunkMaxs[chunks[i]]);
+        }
+        mNodeMins[node] = min;
+        mNodeMaxs[node] = max;
+
+        if (end - start <= MAX_LEAF_CHUNKS) {
+            mNodes[node] = -(chunks[start] + 1);
+            return;
+        }
+
+        Vector size = max.subtract(min);
+        int longestAxis = 0;
+        for (int i = 1; i < 3; i++) {
+            if (size.get(i) > size.get(longestAxis)) {
+                longestAxis = i;
+            }
+        }
+
+        final int axis = longestAxis;
+        Arrays.sort(chunks, start, end, new Comparator<Integer>() {
+            @Override // Comparator
+            public int compare(Integer chunk1, Integer chunk2) {
+                return Double.compare(
+                        mChunkMins[chunk1].get(axis) + mChunkMaxs[chunk1].get(axis),
+                        mChunkMins[chunk2].get(axis) + mChunkMaxs[chunk2].get(axis));
+            }
+        });
+
+        int middle = (start + end)/2;
+        mNodeAxes[node] = (byte) axis;
+        buildNode(chunks, start, middle, depth + 1);
+        mNodes[node] = mNextNode;
+        buildNode(chunks, middle, end, depth + 1);
+    }
+
+    private static Vector componentMin(Vector a, Vector b) {
+        return Vector.make(Math.min(a.get(0), b.get(0)), Math.min(a.get(1), b.get(1)),
+                Math.min(a.get(2), b.get(2)));
+    }
+
+    private static Vector componentMax(Vector a, Vector b) {
+        return Vector.make(Math.max(a.get(0), b.get(0)), Math.max(a.get(1), b.get(1)),
+                Math.max(a.get(2), b.get(2)));
+    }
+
+    /**
+     * Number of triangles in the scene.
+     */
+    public int getTriangleCount() {
+        return mTriangleCount;
+    }
+
+    /**
+     * Number of chunks in the scene.
+     */
+    public int getChunkCount() {
+        return mChunkCount;
+    }
+
+    /**
+     * Number of chunks that rays have reached so far, and that are therefore mapped.
+     */
+    public synchronized int getMappedChunkCount() {
+        return mMappedChunkCount;
+    }
+
+    /**
+     * Returns the hierarchy of the chunk, mapping it the first time. Only mapping
+     * takes the lock, so rays don't contend for chunks that are already mapped.
+     */
+    private PackedHierarchy getChunk(int chunk) {
+        PackedHierarchy packedHierarchy = mChunks.get(chunk);
+
+        if (packedHierarchy == null) {
+            packedHierarchy = mapChunk(chunk);
+        }
+
+        return packedHierarchy;
+    }
+
+    /**
+     * Map the chunk unless another thread got to it first.
+     */
+    private synchronized PackedHierarchy mapChunk(int chunk) {
+        PackedHierarchy packedHierarchy = mChunks.get(chunk);
+
+        if (packedHierarchy == null) {
+            try {
+                ByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_ONLY,
+                        mChunkOffsets[chunk], mChunkSizes[chunk]);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                packedHierarchy = PackedHierarchy.read(buffer);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't map chunk " + chunk, e);
+            }
+            mChunks.set(chunk, packedHierarchy);
+            mMappedChunkCount++;
+        }
+
+        return packedHierarchy;
+    }
+
+    /**
+     * Intersect the ray (r0,r) with the scene, updating "intersection" if a closer
+     * hit is found. The intersection's triangle ID is set to the index of the hit
+     * triangle in the scene.
+     */
+    void intersect(Vector r0, Vector r, Intersection intersection, boolean cullBackfacing,
+            RenderStats stats) {
+
+        if (mChunkCount > 0) {
+            intersectNode(0, r0, r, intersection, cullBackfacing, stats);
+        }
+    }
+
+    /**
+     * Intersect a single ray with the node and its subtree, nearer child first.
+     */
+    private void intersectNode(int node, Vector r0, Vector r, Intersection intersection,
+            boolean cullBackfacing, RenderStats stats) {
+
+        stats.addNodeVisit();
+        if (!BoundingBox.intersectsRay(mNodeMins[node], mNodeMaxs[node], r0, r,
+                    intersection.getMinT(), false)) {
+
+            return;
+        }
+
+        if (mNodes[node] < 0) {
+            intersectChunk(-mNodes[node] - 1, r0, r, intersection, cullBackfacing, stats);
+        } else if (r.get(mNodeAxes[node]) >= 0) {
+            intersectNode(node + 1, r0, r, intersection, cullBackfacing, stats);
+            intersectNode(mNodes[node], r0, r, intersection, cullBackfacing, stats);
+        } else {
+            intersectNode(mNodes[node], r0, r, intersection, cullBackfacing, stats);
+            intersectNode(node + 1, r0, r, intersection, cullBackfacing, stats);
+        }
+    }
+
+    /**
+     * Intersect a single ray with the chunk, converting the triangle ID of a hit
+     * to the scene's numbering.
+     */
+    private void intersectChunk(int chunk, Vector r0, Vector r, Intersection intersection,
+            boolean cullBackfacing, RenderStats stats) {
+
+        double minT = intersection.getMinT();
+        getChunk(chunk).intersect(r0, r, intersection, cullBackfacing, stats);
+        if (intersection.getMinT() < minT) {
+            intersection.setTriangleId(mChunkFirstTriangles[chunk] + intersection.getTriangleId());
+        }
+    }
+
+    /**
+     * Whether the ray from (ox,oy,oz) toward (dx,dy,dz) hits any triangle before the
+     * intersection's minimum T. Stops at the first hit found. Like {@link
+     * PackedHierarchy#isOccluded}, it only uses the intersection for its traversal
+     * state, and allocates nothing once the chunks it reaches are mapped.
+     */
+    boolean isOccluded(double ox, double oy, double oz, double dx, double dy, double dz,
+            Intersection intersection, boolean cullBackfacing, RenderStats stats) {
+
+        return mChunkCount > 0 && isOccluded(0, ox, oy, oz, dx, dy, dz, intersection,
+                cullBackfacing, stats);
+    }
+
+    /**
+     * Whether the ray hits any triangle in the node's subtree, nearer child first.
+     */
+    private boolean isOccluded(int node, double ox, double oy, double oz,
+            double dx, double dy, double dz, Intersection intersection,
+            boolean cullBackfacing, RenderStats stats) {
+
+        stats.addNodeVisit();
+        Vector min = mNodeMins[node];
+        Vector max = mNodeMaxs[node];
+        if (!PackedHierarchy.intersectsBox(min.get(0), min.get(1), min.get(2),
+                    max.get(0), max.get(1), max.get(2),
+                    ox, oy, oz, dx, dy, dz, intersection.getMinT())) {
+
+            return false;
+        }
+
+        if (mNodes[node] < 0) {
+            return getChunk(-mNodes[node] - 1).isOccluded(ox, oy, oz, dx, dy, dz,
+                    intersection, cullBackfacing, stats);
+        }
+
+        int axis = mNodeAxes[node];
+        int near = node + 1;
+        int far = mNodes[node];
+        if ((axis == 0 ? dx : axis == 1 ? dy : dz) < 0) {
+            near = mNodes[node];
+            far = node + 1;
+        }
+
+        return isOccluded(near, ox, oy, oz, dx, dy, dz, intersection, cullBackfacing, stats)
+            || isOccluded(far, ox, oy, oz, dx, dy, dz, intersection, cullBackfacing, stats);
+    }
+
+    /**
+     * Intersect a batch of rays with the scene. Each ray i goes from r0s[i] toward
+     * rs[i] and updates intersections[i] like {@link #intersect(Vector, Vector,
+     * Intersection, boolean, RenderStats)}. Each chunk is visited once for all
+     * the rays that reach it.
+     */
+    void intersect(Vector[] r0s, Vector[] rs, Intersection[] intersections,
+            boolean cullBackfacing, RenderStats stats) {
+
+        if (mChunkCount == 0) {
+            return;
+        }
+
+        // The rays that reach the node at each depth, in one array for the whole
+        // batch. Depth 0 holds all the rays.
+        int rayCount = r0s.length;
+        int[] rays = new int[(mTreeDepth + 1)*rayCount];
+        for (int i = 0; i < rayCount; i++) {
+            rays[i] = i;
+        }
+
+        intersectNode(0, rays, 0, rayCount, r0s, rs, intersections, cullBackfacing, stats);
+    }
+
+    /**
+     * Intersect the first rayCount rays listed in "rays" at depth's section with the
+     * node and its subtree, nearer child first. The rays that reach the node are
+     * listed in the next depth's section for its children.
+     */
+    private void intersectNode(int node, int[] rays, int depth, int rayCount,
+            Vector[] r0s, Vector[] rs, Intersection[] intersections,
+            boolean cullBackfacing, RenderStats stats) {
+
+        // Keep the rays that hit this node, and which side most of them come from.
+        int batchSize = r0s.length;
+        int start = depth*batchSize;
+        int nodeStart = start + batchSize;
+        int nodeRayCount = 0;
+        int axis = mNodeAxes[node];
+        double direction = 0;
+        for (int i = 0; i < rayCount; i++) {
+            int ray = rays[start + i];
+            stats.addNodeVisit();
+            if (BoundingBox.intersectsRay(mNodeMins[node], mNodeMaxs[node], r0s[ray], rs[ray],
+                        intersections[ray].getMinT(), false)) {
+
+                rays[nodeStart + nodeRayCount++] = ray;
+                direction += rs[ray].get(axis);
+            }
+        }
+        if (nodeRayCount == 0) {
+            return;
+        }
+
+        if (mNodes[node] < 0) {
+            int chunk = -mNodes[node] - 1;
+            for (int i = 0; i < nodeRayCount; i++) {
+                int ray = rays[nodeStart + i];
+                intersectChunk(chunk, r0s[ray], rs[ray], intersections[ray],
+                        cullBackfacing, stats);
+            }
+        } else if (direction >= 0) {
+            intersectNode(node + 1, rays, depth + 1, nodeRayCount, r0s, rs, intersections,
+                    cullBackfacing, stats);
+            intersectNode(mNodes[node], rays, depth + 1, nodeRayCount, r0s, rs, intersections,
+                    cullBackfacing, stats);
+        } else {
+            intersectNode(mNodes[node], rays, depth + 1, nodeRayCount, r0s, rs, intersections,
+                    cullBackfacing, stats);
+            intersectNode(node + 1, rays, depth + 1, nodeRayCount, r0s, rs, intersections,
+                    cullBackfacing, stats);
+        }
+    }
+
+    /**
+     * Make a Triangle object for the triangle with this scene index.
+     */
+    Triangle getTriangle(int index) throws DegenerateTriangleException {
+        // Find the last chunk that starts at or before the index.
+        int chunk = Arrays.binarySearch(mChunkFirstTriangles, index);
+        if (chunk < 0) {
+            chunk = -chunk - 2;
+        }
+
+        return getChunk(chunk).getTriangle(index - mChunkFirstTriangles[chunk]);
+    }
+
+    /**
+     * Unmap the chunks and close the file. Mapped memory is returned when the
+     * garbage collector reclaims the buffers.
+     */
+    @Override // Closeable
+    public synchronized void close() throws IOException {
+        for (int chunk = 0; chunk < mChunkCount; chunk++) {
+            mChunks.set(chunk, null);
+        }
+        mFile.close();
+    }
+}
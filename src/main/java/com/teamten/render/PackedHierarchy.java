@@ -0,0 +1,1139 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A bounding box hierarchy flattened into primitive buffers, with single-precision
+ * geometry. The buffers can be on the Java heap or off of it, in which case the
+ * garbage collector doesn't see the geometry at all. Nodes are stored depth-first, so the first child of a node immediately
+ * follows it. Leaf triangles are stored contiguously in leaf order.
+ *
+ * <p>With {@link HierarchyFormat#FLOAT}, node bounds are floats rounded outward,
+ * so a ray that hits the double-precision box always hits the float one. With the
+ * quantized formats, only the root's bounds are floats, and each node's bounds are
+ * stored in 8 or 16 bits per coordinate as a fraction of its parent's decoded
+ * bounds, rounded outward the same way.
+ *
+ * <p>Each node also has a cone around its triangles' normals, so that subtrees
+ * whose triangles all face away from a ray can be skipped when back-facing
+ * triangles are culled.
+ *
+ * <p>Triangle objects for shading are made from the packed data when a ray hits them.
+ *
+ * <p>A hierarchy can be written to a byte buffer with {@link #write} and read back
+ * with {@link #read}, which uses the buffer's memory directly. This is how
+ * {@link OutOfCoreScene} maps its chunks from disk.
+ */
+class PackedHierarchy {
+    private static final int INITIAL_STACK_SIZE = 64;
+    // Most nodes that findEntryNodes() returns.
+    private static final int MAX_ENTRY_NODES = 4;
+    private static final int FLOATS_PER_BOUNDS = 6;
+    private static final int FLOATS_PER_TRIANGLE = 9;
+    // Axis x, y, z and sine of the half-angle.
+    private static final int FLOATS_PER_CONE = 4;
+    // Format, node count and triangle count.
+    private static final int SERIALIZED_HEADER_SIZE = 3*4;
+    private final HierarchyFormat mFormat;
+    private final int mNodeCount;
+    private final int mTriangleCount;
+    // Min x, y, z then max x, y, z for each node. For quantized formats, only the root.
+    private FloatBuffer mBounds;
+    // For quantized formats, min x, y, z then max x, y, z for each node, each
+    // mQuantizedBytes big-endian bytes, as a fraction of mQuantizedMax.
+    private ByteBuffer mQuantizedBounds;
+    private final int mQuantizedBytes;
+    private final int mQuantizedMax;
+    // Two per node. For leaves, the first triangle and the triangle count. For
+    // inner nodes, the index of the second child and -(split axis + 1).
+    private IntBuffer mNodes;
+    // Normal cone of each node. See NormalCone.
+    private FloatBuffer mCones;
+    // Three vertices for each triangle.
+    private FloatBuffer mPositions;
+    private FloatBuffer mVertexNormals;
+    // Geometric normal of each triangle.
+    private FloatBuffer mNormals;
+    private final EntryNodes mRootEntryNodes;
+    // Triangles that are another reference to a triangle earlier in leaf order, as
+    // made by spatial splits. Not serialized.
+    private final BitSet mRepeatedTriangles = new BitSet();
+    private final Set<Triangle> mPackedTriangles =
+        Collections.newSetFromMap(new IdentityHashMap<Triangle,Boolean>());
+    private int mNextNode;
+    private int mNextTriangle;
+
+    /**
+     * Flatten the tree below the root, which must have been built.
+     *
+     * @param format any format except {@link HierarchyFormat#TREE}.
+     * @param offHeap whether to keep the buffers outside the Java heap.
+     * @throws IllegalArgumentException if a buffer would be over 2 GB, which
+     * happens for the triangle buffers at about 59 million triangles.
+     */
+    PackedHierarchy(BoundingBox root, HierarchyFormat format, boolean offHeap) {
+
+        // Count nodes and triangles.
+        int nodeCount = 0;
+        int triangleCount = 0;
+        List<BoundingBox> nodeList = new ArrayList<BoundingBox>();
+        nodeList.add(root);
+        while (!nodeList.isEmpty()) {
+            BoundingBox node = nodeList.remove(nodeList.size() - 1);
+            nodeCount++;
+            if (node.getChildList().isEmpty()) {
+                triangleCount += node.getTriangleList().size();
+            }
+            nodeList.addAll(node.getChildList());
+        }
+
+        mFormat = format;
+        mQuantizedBytes = getQuantizedBytes(format);
+        mQuantizedMax = (1 << (8*mQuantizedBytes)) - 1;
+
+        mNodeCount = nodeCount;
+        mBounds = allocate((mQuantizedBytes == 0 ? mNodeCount : 1)*(long) FLOATS_PER_BOUNDS*4,
+                offHeap).asFloatBuffer();
+        mQuantizedBounds = allocate(mNodeCount*(long) FLOATS_PER_BOUNDS*mQuantizedBytes, offHeap);
+        mNodes = allocate(mNodeCount*2L*4, offHeap).asIntBuffer();
+        mCones = allocate(mNodeCount*(long) FLOATS_PER_CONE*4, offHeap).asFloatBuffer();
+        mPositions = allocate(triangleCount*(long) FLOATS_PER_TRIANGLE*4, offHeap).asFloatBuffer();
+        mVertexNormals = allocate(triangleCount*(long) FLOATS_PER_TRIANGLE*4, offHeap)
+            .asFloatBuffer();
+        mNormals = allocate(triangleCount*3L*4, offHeap).asFloatBuffer();
+
+        setFloatBounds(0, root.getMin(), root.getMax());
+        double[] rootBox = new double[FLOATS_PER_BOUNDS];
+        for (int i = 0; i < FLOATS_PER_BOUNDS; i++) {
+            rootBox[i] = mBounds.get(i);
+        }
+
+        mNextNode = 0;
+        mNextTriangle = 0;
+        packNode(root, rootBox);
+        mPackedTriangles.clear();
+        mTriangleCount = mNextTriangle;
+        mRootEntryNodes = makeRootEntryNodes();
+    }
+
+    /**
+     * Wrap buffers that were already filled, such as those read by {@link #read}.
+     */
+    private PackedHierarchy(HierarchyFormat format, int nodeCount, int triangleCount,
+            FloatBuffer bounds, ByteBuffer quantizedBounds, IntBuffer nodes, FloatBuffer cones,
+            FloatBuffer positions, FloatBuffer vertexNormals, FloatBuffer normals) {
+
+        mFormat = format;
+        mQuantizedBytes = getQuantizedBytes(format);
+        mQuantizedMax = (1 << (8*mQuantizedBytes)) - 1;
+        mNodeCount = nodeCount;
+        mTriangleCount = triangleCount;
+        mBounds = bounds;
+        mQuantizedBounds = quantizedBounds;
+        mNodes = nodes;
+        mCones = cones;
+        mPositions = positions;
+        mVertexNormals = vertexNormals;
+        mNormals = normals;
+        mRootEntryNodes = makeRootEntryNodes();
+    }
+
+    /**
+     * Number of bytes per coordinate of node bounds, or zero if they're floats.
+     */
+    private static int getQuantizedBytes(HierarchyFormat format) {
+        switch (format) {
+            case FLOAT:
+                return 0;
+
+            case QUANTIZED_16:
+                return 2;
+
+            case QUANTIZED_8:
+                return 1;
+
+            default:
+                throw new IllegalArgumentException("Can't pack hierarchy as " + format);
+        }
+    }
+
+    /**
+     * Number of bytes that {@link #write} will write.
+     */
+    int getSerializedSize() {
+        return checkSize(SERIALIZED_HEADER_SIZE + 4L*mBounds.capacity() +
+            padToInt(mQuantizedBounds.capacity()) + 4L*mNodes.capacity() + 4L*mCones.capacity() +
+            4L*mTriangleCount*(FLOATS_PER_TRIANGLE*2 + 3));
+    }
+
+    /**
+     * Write the hierarchy at the buffer's position, in the buffer's byte order.
+     * Unused triangle storage isn't written.
+     */
+    void write(ByteBuffer out) {
+        out.putInt(mFormat.ordinal());
+        out.putInt(mNodeCount);
+        out.putInt(mTriangleCount);
+        for (int i = 0; i < mBounds.capacity(); i++) {
+            out.putFloat(mBounds.get(i));
+        }
+        for (int i = 0; i < mQuantizedBounds.capacity(); i++) {
+            out.put(mQuantizedBounds.get(i));
+        }
+        for (int i = mQuantizedBounds.capacity(); i < padToInt(mQuantizedBounds.capacity()); i++) {
+            out.put((byte) 0);
+        }
+        for (int i = 0; i < mNodes.capacity(); i++) {
+            out.putInt(mNodes.get(i));
+        }
+        for (int i = 0; i < mCones.capacity(); i++) {
+            out.putFloat(mCones.get(i));
+        }
+        for (int i = 0; i < mTriangleCount*FLOATS_PER_TRIANGLE; i++) {
+            out.putFloat(mPositions.get(i));
+        }
+        for (int i = 0; i < mTriangleCount*FLOATS_PER_TRIANGLE; i++) {
+            out.putFloat(mVertexNormals.get(i));
+        }
+        for (int i = 0; i < mTriangleCount*3; i++) {
+            out.putFloat(mNormals.get(i));
+        }
+    }
+
+    /**
+     * Read a hierarchy written by {@link #write}, starting at the buffer's position and
+     * in its byte order. The hierarchy uses slices of the buffer rather than copying
+     * it, so for a mapped file, the pages are only read from disk when traversal
+     * touches them. Advances the buffer's position past the hierarchy.
+     */
+    static PackedHierarchy read(ByteBuffer in) {
+        HierarchyFormat format = HierarchyFormat.values()[in.getInt()];
+        int nodeCount = in.getInt();
+        int triangleCount = in.getInt();
+        int quantizedBytes = getQuantizedBytes(format);
+
+        FloatBuffer bounds = slice(in,
+                (quantizedBytes == 0 ? nodeCount : 1)*(long) FLOATS_PER_BOUNDS*4).asFloatBuffer();
+        ByteBuffer quantizedBounds = slice(in, nodeCount*(long) FLOATS_PER_BOUNDS*quantizedBytes);
+        slice(in, padToInt(quantizedBounds.capacity()) - quantizedBounds.capacity());
+        IntBuffer nodes = slice(in, nodeCount*2L*4).asIntBuffer();
+        FloatBuffer cones = slice(in, nodeCount*(long) FLOATS_PER_CONE*4).asFloatBuffer();
+        FloatBuffer positions = slice(in, triangleCount*(long) FLOATS_PER_TRIANGLE*4)
+            .asFloatBuffer();
+        FloatBuffer vertexNormals = slice(in, triangleCount*(long) FLOATS_PER_TRIANGLE*4)
+            .asFloatBuffer();
+        FloatBuffer normals = slice(in, triangleCount*3L*4).asFloatBuffer();
+
+        return new PackedHierarchy(format, nodeCount, triangleCount, bounds, quantizedBounds,
+                nodes, cones, positions, vertexNormals, normals);
+    }
+
+    /**
+     * Returns the next "size" bytes of the buffer, in its byte order, and skips them.
+     */
+    private static ByteBuffer slice(ByteBuffer in, long size) {
+        ByteBuffer slice = in.slice();
+        slice.limit(checkSize(size));
+        in.position(in.position() + (int) size);
+
+        return slice.slice().order(in.order());
+    }
+
+    /**
+     * Round up to a multiple of four, so that the buffers after the quantized bounds
+     * are aligned.
+     */
+    private static int padToInt(int size) {
+        return (size + 3) & ~3;
+    }
+
+    /**
+     * Allocate a buffer in native byte order, either on the heap or off of it.
+     */
+    private static ByteBuffer allocate(long size, boolean offHeap) {
+        int intSize = checkSize(size);
+        ByteBuffer byteBuffer = offHeap
+            ? ByteBuffer.allocateDirect(intSize)
+            : ByteBuffer.allocate(intSize);
+
+        return byteBuffer.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Returns the size of a buffer as an int.
+     *
+     * @throws IllegalArgumentException if the size is more than a buffer can hold,
+     * which is about 2 GB.
+     */
+    private static int checkSize(long size) {
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format(
+                        "Packed hierarchy buffer of %,d bytes is over the limit of %,d bytes",
+                        size, Integer.MAX_VALUE));
+        }
+
+        return (int) size;
+    }
+
+    /**
+     * Drop the storage of the hierarchy. It must not be used after this. Off-heap
+     * memory is returned when the garbage collector reclaims the small buffer
+     * objects, rather than after scanning the geometry itself.
+     */
+    void release() {
+        mBounds = null;
+        mQuantizedBounds = null;
+        mNodes = null;
+        mCones = null;
+        mPositions = null;
+        mVertexNormals = null;
+        mNormals = null;
+    }
+
+    /**
+     * Pack the node and its subtree, depth-first.
+     *
+     * @param parentBox the decoded bounds of the parent, used for quantization.
+     */
+    private void packNode(BoundingBox node, double[] parentBox) {
+        int index = mNextNode++;
+        int firstTriangle = mNextTriangle;
+
+        double[] box = parentBox;
+        if (mQuantizedBytes == 0) {
+            setFloatBounds(index, node.getMin(), node.getMax());
+        } else {
+            box = setQuantizedBounds(index, node.getMin(), node.getMax(), parentBox);
+        }
+
+        List<BoundingBox> childList = node.getChildList();
+        if (childList.isEmpty()) {
+            mNodes.put(index*2, mNextTriangle);
+            for (Triangle triangle : node.getTriangleList()) {
+                if (setTriangle(mNextTriangle, triangle)) {
+                    if (!mPackedTriangles.add(triangle)) {
+                        mRepeatedTriangles.set(mNextTriangle);
+                    }
+                    mNextTriangle++;
+                }
+            }
+            mNodes.put(index*2 + 1, mNextTriangle - mNodes.get(index*2));
+        } else {
+            if (childList.size() != 2) {
+                throw new IllegalArgumentException("Nodes must have zero or two children");
+            }
+            mNodes.put(index*2 + 1, -(getSplitAxis(childList.get(0), childList.get(1)) + 1));
+            packNode(childList.get(0), box);
+            mNodes.put(index*2, mNextNode);
+            packNode(childList.get(1), box);
+        }
+
+        // The subtree's triangles are contiguous, so its cone covers this range.
+        setCone(index, firstTriangle, mNextTriangle);
+    }
+
+    /**
+     * Store the normal cone of the node, whose triangles are the range from first
+     * (inclusive) to last (exclusive).
+     */
+    private void setCone(int node, int first, int last) {
+        double[] normals = new double[(last - first)*3];
+        for (int i = 0; i < normals.length; i++) {
+            normals[i] = mNormals.get(first*3 + i);
+        }
+        double[] cone = NormalCone.compute(normals, last - first);
+
+        int base = node*FLOATS_PER_CONE;
+        for (int i = 0; i < 3; i++) {
+            mCones.put(base + i, (float) cone[i]);
+        }
+        mCones.put(base + 3, roundUp(cone[3]));
+    }
+
+    /**
+     * Whether all triangles below the node face away from the ray direction.
+     */
+    private boolean isBackfacing(int node, double dx, double dy, double dz, double length) {
+        int base = node*FLOATS_PER_CONE;
+
+        return NormalCone.isBackfacing(mCones.get(base), mCones.get(base + 1),
+                mCones.get(base + 2), mCones.get(base + 3), dx, dy, dz, length);
+    }
+
+    /**
+     * The axis along which the centers of the two children differ the most, which
+     * is used to pick which child to visit first.
+     */
+    private static int getSplitAxis(BoundingBox child1, BoundingBox child2) {
+        if (child1.getMin() == null || child2.getMin() == null) {
+            return 0;
+        }
+
+        Vector delta = child2.getMin().add(child2.getMax()).subtract(
+                child1.getMin().add(child1.getMax()));
+        int axis = 0;
+        for (int i = 1; i < 3; i++) {
+            if (Math.abs(delta.get(i)) > Math.abs(delta.get(axis))) {
+                axis = i;
+            }
+        }
+
+        return axis;
+    }
+
+    /**
+     * Store the float bounds of a node, rounded outward. Empty boxes are leaves with no
+     * triangles, so their bounds don't matter and are left at the origin.
+     */
+    private void setFloatBounds(int node, Vector min, Vector max) {
+        int base = node*FLOATS_PER_BOUNDS;
+
+        if (min != null) {
+            for (int i = 0; i < 3; i++) {
+                mBounds.put(base + i, roundDown(min.get(i)));
+                mBounds.put(base + 3 + i, roundUp(max.get(i)));
+            }
+        }
+    }
+
+    /**
+     * Store the quantized bounds of a node, rounded outward, relative to the decoded
+     * bounds of its parent. Empty boxes are stored at the parent's minimum corner.
+     *
+     * @return the decoded bounds of the node.
+     */
+    private double[] setQuantizedBounds(int node, Vector min, Vector max, double[] parentBox) {
+        int base = node*FLOATS_PER_BOUNDS;
+
+        if (min != null) {
+            for (int i = 0; i < 3; i++) {
+                double parentMin = parentBox[i];
+                double parentMax = parentBox[3 + i];
+                double scale = (parentMax - parentMin)/mQuantizedMax;
+
+                // Estimate, then nudge until decoding is conservative.
+                int qMin = 0;
+                int qMax = mQuantizedMax;
+                if (scale > 0) {
+                    qMin = clampQuantized((int) Math.floor((min.get(i) - parentMin)/scale));
+                    qMax = clampQuantized((int) Math.ceil((max.get(i) - parentMin)/scale));
+                }
+                while (qMin > 0 && decode(qMin, parentMin, parentMax) > min.get(i)) {
+                    qMin--;
+                }
+                while (qMax < mQuantizedMax && decode(qMax, parentMin, parentMax) < max.get(i)) {
+                    qMax++;
+                }
+
+                setQuantized(base + i, qMin);
+                setQuantized(base + 3 + i, qMax);
+            }
+        }
+
+        double[] box = new double[FLOATS_PER_BOUNDS];
+        decodeBox(node, parentBox, 0, box, 0);
+
+        return box;
+    }
+
+    private int clampQuantized(int q) {
+        return Math.max(0, Math.min(mQuantizedMax, q));
+    }
+
+    private void setQuantized(int index, int value) {
+        if (mQuantizedBytes == 1) {
+            mQuantizedBounds.put(index, (byte) value);
+        } else {
+            mQuantizedBounds.put(index*2, (byte) (value >> 8));
+            mQuantizedBounds.put(index*2 + 1, (byte) value);
+        }
+    }
+
+    private int getQuantized(int index) {
+        if (mQuantizedBytes == 1) {
+            return mQuantizedBounds.get(index) & 0xFF;
+        } else {
+            return ((mQuantizedBounds.get(index*2) & 0xFF) << 8) |
+                (mQuantizedBounds.get(index*2 + 1) & 0xFF);
+        }
+    }
+
+    /**
+     * Decode a quantized coordinate. The ends map exactly to the parent's bounds.
+     */
+    private double decode(int q, double parentMin, double parentMax) {
+        if (q == 0) {
+            return parentMin;
+        } else if (q == mQuantizedMax) {
+            return parentMax;
+        } else {
+            return parentMin + q*((parentMax - parentMin)/mQuantizedMax);
+        }
+    }
+
+    /**
+     * Decode the bounds of a node, given the decoded bounds of its parent at
+     * parentBoxes[parentOffset], into boxes[offset].
+     */
+    private void decodeBox(int node, double[] parentBoxes, int parentOffset,
+            double[] boxes, int offset) {
+
+        int base = node*FLOATS_PER_BOUNDS;
+        for (int i = 0; i < 3; i++) {
+            double parentMin = parentBoxes[parentOffset + i];
+            double parentMax = parentBoxes[parentOffset + 3 + i];
+            boxes[offset + i] = decode(getQuantized(base + i), parentMin, parentMax);
+            boxes[offset + 3 + i] = decode(getQuantized(base + 3 + i), parentMin, parentMax);
+        }
+    }
+
+    /**
+     * Store a triangle.
+     *
+     * @return whether the triangle was stored, which it isn't if it becomes
+     * degenerate at single precision.
+     */
+    private boolean setTriangle(int index, Triangle triangle) {
+        int base = index*FLOATS_PER_TRIANGLE;
+
+        for (int v = 0; v < Triangle.NUM_VERTICES; v++) {
+            Vertex vertex = triangle.get(v);
+            for (int i = 0; i < 3; i++) {
+                mPositions.put(base + v*3 + i, (float) vertex.getPoint().get(i));
+                mVertexNormals.put(base + v*3 + i, (float) vertex.getNormal().get(i));
+            }
+        }
+
+        try {
+            Triangle packedTriangle = getTriangle(index);
+            for (int i = 0; i < 3; i++) {
+                mNormals.put(index*3 + i, (float) packedTriangle.getNormal().get(i));
+            }
+        } catch (DegenerateTriangleException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the largest float that's not greater than value.
+     */
+    private static float roundDown(double value) {
+        float f = (float) value;
+        return f > value ? Math.nextDown(f) : f;
+    }
+
+    /**
+     * Returns the smallest float that's not less than value.
+     */
+    private static float roundUp(double value) {
+        float f = (float) value;
+        return f < value ? Math.nextUp(f) : f;
+    }
+
+    /**
+     * Number of nodes in the hierarchy.
+     */
+    int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * The minimum corner of the root's bounds.
+     */
+    Vector getMin() {
+        return Vector.make(mBounds.get(0), mBounds.get(1), mBounds.get(2));
+    }
+
+    /**
+     * The maximum corner of the root's bounds.
+     */
+    Vector getMax() {
+        return Vector.make(mBounds.get(3), mBounds.get(4), mBounds.get(5));
+    }
+
+    /**
+     * Number of triangles referenced by leaves.
+     */
+    int getTriangleCount() {
+        return mTriangleCount;
+    }
+
+    /**
+     * Approximate memory used by the buffers, in bytes.
+     */
+    long getMemorySize() {
+        return getHierarchyMemorySize() +
+            4L*(mPositions.capacity() + mVertexNormals.capacity() + mNormals.capacity());
+    }
+
+    /**
+     * Approximate memory used by the nodes alone, in bytes.
+     */
+    long getHierarchyMemorySize() {
+        return 4L*(mBounds.capacity() + mNodes.capacity() + mCones.capacity()) +
+            mQuantizedBounds.capacity();
+    }
+
+    /**
+     * Make a Triangle object for the triangle at this index, for shading.
+     */
+    Triangle getTriangle(int index) throws DegenerateTriangleException {
+        int base = index*FLOATS_PER_TRIANGLE;
+        Vertex[] vertices = new Vertex[Triangle.NUM_VERTICES];
+
+        for (int v = 0; v < Triangle.NUM_VERTICES; v++) {
+            int i = base + v*3;
+            vertices[v] = new Vertex(
+                    Vector.make(mPositions.get(i), mPositions.get(i + 1), mPositions.get(i + 2)),
+                    Vector.make(mVertexNormals.get(i), mVertexNormals.get(i + 1),
+                        mVertexNormals.get(i + 2)));
+        }
+
+        return new Triangle(vertices);
+    }
+
+    /**
+     * Nodes where traversal starts, with their decoded bounds.
+     */
+    static class EntryNodes {
+        final int[] mNodes;
+        // FLOATS_PER_BOUNDS values per node.
+        final double[] mBoxes;
+
+        EntryNodes(int[] nodes, double[] boxes) {
+            mNodes = nodes;
+            mBoxes = boxes;
+        }
+    }
+
+    /**
+     * The root, with its bounds, where traversal normally starts.
+     */
+    private EntryNodes makeRootEntryNodes() {
+        double[] box = new double[FLOATS_PER_BOUNDS];
+        for (int i = 0; i < FLOATS_PER_BOUNDS; i++) {
+            box[i] = mBounds.get(i);
+        }
+
+        return new EntryNodes(new int[] { 0 }, box);
+    }
+
+    /**
+     * Find a few nodes that together contain every triangle in the frustum, so that
+     * rays inside the frustum can start there instead of at the root. Subtrees
+     * outside the frustum are dropped, and nodes are opened until there would be more
+     * than a handful.
+     */
+    EntryNodes findEntryNodes(Frustum frustum) {
+        List<Integer> entryList = new ArrayList<Integer>();
+        List<double[]> entryBoxList = new ArrayList<double[]>();
+        List<Integer> pendingList = new ArrayList<Integer>();
+        List<double[]> pendingBoxList = new ArrayList<double[]>();
+
+        pendingList.add(0);
+        pendingBoxList.add(mRootEntryNodes.mBoxes.clone());
+
+        while (!pendingList.isEmpty()) {
+            int node = pendingList.remove(0);
+            double[] box = pendingBoxList.remove(0);
+
+            if (!frustum.intersectsBox(box[0], box[1], box[2], box[3], box[4], box[5])) {
+                continue;
+            }
+
+            int first = mNodes.get(node*2);
+            int info = mNodes.get(node*2 + 1);
+            if (info >= 0 || entryList.size() + pendingList.size() + 2 > MAX_ENTRY_NODES) {
+                entryList.add(node);
+                entryBoxList.add(box);
+            } else {
+                for (int child : new int[] { node + 1, first }) {
+                    pendingList.add(child);
+                    pendingBoxList.add(getBox(child, box));
+                }
+            }
+        }
+
+        // Sort them front to back, since rays can then skip boxes past their first hit.
+        final double[] distances = new double[entryList.size()];
+        Integer[] order = new Integer[entryList.size()];
+        for (int i = 0; i < order.length; i++) {
+            double[] box = entryBoxList.get(i);
+            distances[i] = frustum.getDistance(box[0], box[1], box[2], box[3], box[4], box[5]);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override // Comparator
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(distances[i1], distances[i2]);
+            }
+        });
+
+        int[] nodes = new int[entryList.size()];
+        double[] boxes = new double[entryList.size()*FLOATS_PER_BOUNDS];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = entryList.get(order[i]);
+            System.arraycopy(entryBoxList.get(order[i]), 0,
+                    boxes, i*FLOATS_PER_BOUNDS, FLOATS_PER_BOUNDS);
+        }
+
+        return new EntryNodes(nodes, boxes);
+    }
+
+    /**
+     * The decoded bounds of a node, given those of its parent.
+     */
+    private double[] getBox(int node, double[] parentBox) {
+        double[] box = new double[FLOATS_PER_BOUNDS];
+
+        if (mQuantizedBytes == 0) {
+            for (int i = 0; i < FLOATS_PER_BOUNDS; i++) {
+                box[i] = mBounds.get(node*FLOATS_PER_BOUNDS + i);
+            }
+        } else {
+            decodeBox(node, parentBox, 0, box, 0);
+        }
+
+        return box;
+    }
+
+    /**
+     * The closest hit found so far during a traversal, and the traversal's stacks.
+     * Each {@link Intersection} keeps one, so that rays traced with the same
+     * intersection don't allocate them again.
+     */
+    static class Traversal {
+        int mTriangle;
+        double mT;
+        boolean mBackfacing;
+        int[] mStack = new int[INITIAL_STACK_SIZE + MAX_ENTRY_NODES];
+        // Only used with quantized bounds.
+        double[] mBoxStack = null;
+        double[] mBoxes = null;
+    }
+
+    /**
+     * Whether the triangle is another reference to a triangle earlier in leaf order.
+     * Spatial splits put a triangle in several leaves.
+     */
+    boolean isRepeated(int triangle) {
+        return mRepeatedTriangles.get(triangle);
+    }
+
+    /**
+     * Make Triangle objects for all triangles, in leaf order, skipping repeated ones.
+     */
+    List<Triangle> getTriangleList() {
+        List<Triangle> triangleList = new ArrayList<Triangle>(mTriangleCount);
+
+        for (int i = 0; i < mTriangleCount; i++) {
+            if (isRepeated(i)) {
+                continue;
+            }
+            try {
+                triangleList.add(getTriangle(i));
+            } catch (DegenerateTriangleException e) {
+                // Can't happen, we checked when packing.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return triangleList;
+    }
+
+    /**
+     * Intersect the ray (r0,r) with the hierarchy, updating "intersection" if a
+     * closer hit is found. The intersection's triangle ID is set to the index
+     * of the hit triangle.
+     */
+    void intersect(Vector r0, Vector r, Intersection intersection, boolean cullBackfacing,
+            RenderStats stats) {
+
+        intersect(r0, r, intersection, cullBackfacing, stats, mRootEntryNodes);
+    }
+
+    /**
+     * Like {@link #intersect(Vector, Vector, Intersection, boolean, RenderStats)}, but
+     * starting at the entry nodes rather than the root. The ray must be inside the
+     * frustum that the entry nodes were found for.
+     */
+    void intersect(Vector r0, Vector r, Intersection intersection, boolean cullBackfacing,
+            RenderStats stats, EntryNodes entryNodes) {
+
+        double ox = r0.get(0);
+        double oy = r0.get(1);
+        double oz = r0.get(2);
+        double dx = r.get(0);
+        double dy = r.get(1);
+        double dz = r.get(2);
+
+        Traversal traversal = intersection.getTraversal();
+        traverse(ox, oy, oz, dx, dy, dz, intersection.getMinT(), traversal, false,
+                cullBackfacing, stats, entryNodes);
+
+        if (traversal.mTriangle != -1) {
+            try {
+                double t = traversal.mT;
+                intersection.update(getTriangle(traversal.mTriangle),
+                        Vector.make(ox + dx*t, oy + dy*t, oz + dz*t), t, traversal.mBackfacing);
+                intersection.setTriangleId(traversal.mTriangle);
+            } catch (DegenerateTriangleException e) {
+                // Can't happen, we checked when packing.
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Whether the ray from (ox,oy,oz) toward (dx,dy,dz) hits any triangle before the
+     * intersection's minimum T. Stops at the first hit found, which needn't be the
+     * closest, and only uses the intersection for its traversal state, so nothing is
+     * allocated.
+     */
+    boolean isOccluded(double ox, double oy, double oz, double dx, double dy, double dz,
+            Intersection intersection, boolean cullBackfacing, RenderStats stats) {
+
+        Traversal traversal = intersection.getTraversal();
+        traverse(ox, oy, oz, dx, dy, dz, intersection.getMinT(), traversal, true,
+                cullBackfacing, stats, mRootEntryNodes);
+
+        return traversal.mTriangle != -1;
+    }
+
+    /**
+     * Find the closest hit before maxT, or any hit if anyHit is true, and record it
+     * in the traversal.
+     */
+    private void traverse(double ox, double oy, double oz, double dx, double dy, double dz,
+            double maxT, Traversal traversal, boolean anyHit, boolean cullBackfacing,
+            RenderStats stats, EntryNodes entryNodes) {
+
+        traversal.mTriangle = -1;
+        traversal.mT = maxT;
+
+        if (mQuantizedBytes == 0) {
+            traverseFloat(ox, oy, oz, dx, dy, dz, traversal, anyHit, cullBackfacing, stats,
+                    entryNodes);
+        } else {
+            traverseQuantized(ox, oy, oz, dx, dy, dz, traversal, anyHit, cullBackfacing, stats,
+                    entryNodes);
+        }
+    }
+
+    /**
+     * Traverse the hierarchy using float node bounds.
+     */
+    private void traverseFloat(double ox, double oy, double oz, double dx, double dy, double dz,
+            Traversal traversal, boolean anyHit, boolean cullBackfacing, RenderStats stats,
+            EntryNodes entryNodes) {
+
+        // Push the entry nodes so that the first is on top.
+        int entryCount = entryNodes.mNodes.length;
+        if (entryCount == 0) {
+            return;
+        }
+        int[] stack = traversal.mStack;
+        int stackSize = 0;
+        for (int i = entryCount - 1; i > 0; i--) {
+            stack[stackSize++] = entryNodes.mNodes[i];
+        }
+        int node = entryNodes.mNodes[0];
+        double length = Math.sqrt(dx*dx + dy*dy + dz*dz);
+
+        while (true) {
+            stats.addNodeVisit();
+
+            int base = node*FLOATS_PER_BOUNDS;
+            if (cullBackfacing && isBackfacing(node, dx, dy, dz, length)) {
+                // Skip the subtree.
+                stats.addCulledSubtree();
+            } else if (intersectsBox(mBounds.get(base), mBounds.get(base + 1), mBounds.get(base + 2),
+                        mBounds.get(base + 3), mBounds.get(base + 4), mBounds.get(base + 5),
+                        ox, oy, oz, dx, dy, dz, traversal.mT)) {
+
+                int first = mNodes.get(node*2);
+                int info = mNodes.get(node*2 + 1);
+
+                if (info >= 0) {
+                    intersectLeaf(first, info, ox, oy, oz, dx, dy, dz, traversal,
+                            cullBackfacing, stats);
+                    if (anyHit && traversal.mTriangle != -1) {
+                        return;
+                    }
+                } else {
+                    // Visit the nearer child first.
+                    if (stackSize == stack.length) {
+                        stack = Arrays.copyOf(stack, stackSize*2);
+                        traversal.mStack = stack;
+                    }
+                    if (getComponent(-info - 1, dx, dy, dz) >= 0) {
+                        stack[stackSize++] = first;
+                        node = node + 1;
+                    } else {
+                        stack[stackSize++] = node + 1;
+                        node = first;
+                    }
+                    continue;
+                }
+            }
+
+            if (stackSize == 0) {
+                break;
+            }
+            node = stack[--stackSize];
+        }
+    }
+
+    /**
+     * Traverse the hierarchy using quantized node bounds. The stack holds the
+     * decoded bounds of each node along with its index.
+     */
+    private void traverseQuantized(double ox, double oy, double oz,
+            double dx, double dy, double dz,
+            Traversal traversal, boolean anyHit, boolean cullBackfacing, RenderStats stats,
+            EntryNodes entryNodes) {
+
+        // Push the entry nodes so that the first is on top.
+        int entryCount = entryNodes.mNodes.length;
+        if (entryCount == 0) {
+            return;
+        }
+        if (traversal.mBoxStack == null) {
+            traversal.mBoxStack = new double[traversal.mStack.length*FLOATS_PER_BOUNDS];
+            traversal.mBoxes = new double[FLOATS_PER_BOUNDS*3];
+        }
+        int[] stack = traversal.mStack;
+        double[] boxStack = traversal.mBoxStack;
+        int stackSize = 0;
+        for (int i = entryCount - 1; i > 0; i--) {
+            stack[stackSize] = entryNodes.mNodes[i];
+            System.arraycopy(entryNodes.mBoxes, i*FLOATS_PER_BOUNDS,
+                    boxStack, stackSize*FLOATS_PER_BOUNDS, FLOATS_PER_BOUNDS);
+            stackSize++;
+        }
+
+        // Decoded bounds of the current node, followed by room for its two children.
+        double[] boxes = traversal.mBoxes;
+        System.arraycopy(entryNodes.mBoxes, 0, boxes, 0, FLOATS_PER_BOUNDS);
+        int node = entryNodes.mNodes[0];
+        double length = Math.sqrt(dx*dx + dy*dy + dz*dz);
+
+        while (true) {
+            stats.addNodeVisit();
+
+            if (cullBackfacing && isBackfacing(node, dx, dy, dz, length)) {
+                // Skip the subtree.
+                stats.addCulledSubtree();
+            } else if (intersectsBox(boxes[0], boxes[1], boxes[2], boxes[3], boxes[4], boxes[5],
+                        ox, oy, oz, dx, dy, dz, traversal.mT)) {
+
+                int first = mNodes.get(node*2);
+                int info = mNodes.get(node*2 + 1);
+
+                if (info >= 0) {
+                    intersectLeaf(first, info, ox, oy, oz, dx, dy, dz, traversal,
+                            cullBackfacing, stats);
+                    if (anyHit && traversal.mTriangle != -1) {
+                        return;
+                    }
+                } else {
+                    int near = node + 1;
+                    int far = first;
+                    if (getComponent(-info - 1, dx, dy, dz) < 0) {
+                        near = first;
+                        far = node + 1;
+                    }
+
+                    // Decode both children from our bounds.
+                    decodeBox(near, boxes, 0, boxes, FLOATS_PER_BOUNDS);
+                    decodeBox(far, boxes, 0, boxes, FLOATS_PER_BOUNDS*2);
+
+                    // Push the far one.
+                    if (stackSize == stack.length) {
+                        stack = Arrays.copyOf(stack, stackSize*2);
+                        boxStack = Arrays.copyOf(boxStack, stackSize*2*FLOATS_PER_BOUNDS);
+                        traversal.mStack = stack;
+                        traversal.mBoxStack = boxStack;
+                    }
+                    stack[stackSize] = far;
+                    System.arraycopy(boxes, FLOATS_PER_BOUNDS*2,
+                            boxStack, stackSize*FLOATS_PER_BOUNDS, FLOATS_PER_BOUNDS);
+                    stackSize++;
+
+                    // Continue with the near one.
+                    node = near;
+                    System.arraycopy(boxes, FLOATS_PER_BOUNDS, boxes, 0, FLOATS_PER_BOUNDS);
+                    continue;
+                }
+            }
+
+            if (stackSize == 0) {
+                break;
+            }
+            stackSize--;
+            node = stack[stackSize];
+            System.arraycopy(boxStack, stackSize*FLOATS_PER_BOUNDS, boxes, 0, FLOATS_PER_BOUNDS);
+        }
+    }
+
+    private static double getComponent(int axis, double x, double y, double z) {
+        return axis == 0 ? x : axis == 1 ? y : z;
+    }
+
+    /**
+     * Intersect the ray with "count" triangles starting at "first", updating the
+     * traversal's hit.
+     */
+    private void intersectLeaf(int first, int count,
+            double ox, double oy, double oz, double dx, double dy, double dz,
+            Traversal traversal, boolean cullBackfacing, RenderStats stats) {
+
+        for (int triangle = first; triangle < first + count; triangle++) {
+            int n = triangle*3;
+            double nx = mNormals.get(n);
+            double ny = mNormals.get(n + 1);
+            double nz = mNormals.get(n + 2);
+
+            // Plane is perpendicular to the normal and goes through v0.
+            double denom = nx*dx + ny*dy + nz*dz;
+            boolean backfacing = denom > 0;
+            if (backfacing && cullBackfacing) {
+                continue;
+            }
+            stats.addTriangleTest();
+            if (denom == 0) {
+                continue;
+            }
+
+            int p = triangle*FLOATS_PER_TRIANGLE;
+            double v0x = mPositions.get(p);
+            double v0y = mPositions.get(p + 1);
+            double v0z = mPositions.get(p + 2);
+            double t = -(nx*(ox - v0x) + ny*(oy - v0y) + nz*(oz - v0z)) / denom;
+
+            // See if the plane is closer than what we have so far, but not
+            // behind us.
+            if (t > 0 && t < traversal.mT && isInside(p, nx, ny, nz,
+                        ox + dx*t, oy + dy*t, oz + dz*t)) {
+
+                traversal.mTriangle = triangle;
+                traversal.mT = t;
+                traversal.mBackfacing = backfacing;
+            }
+        }
+    }
+
+    /**
+     * Whether the point (px,py,pz), which is in the plane of the triangle, is inside it.
+     * We must be on the same side of all edges.
+     */
+    private boolean isInside(int p, double nx, double ny, double nz,
+            double px, double py, double pz) {
+
+        double v0x = mPositions.get(p);
+        double v0y = mPositions.get(p + 1);
+        double v0z = mPositions.get(p + 2);
+        double v1x = mPositions.get(p + 3);
+        double v1y = mPositions.get(p + 4);
+        double v1z = mPositions.get(p + 5);
+        double v2x = mPositions.get(p + 6);
+        double v2y = mPositions.get(p + 7);
+        double v2z = mPositions.get(p + 8);
+
+        boolean side1 = edgeSide(v0x - v1x, v0y - v1y, v0z - v1z,
+                px - v0x, py - v0y, pz - v0z, nx, ny, nz);
+        boolean side2 = edgeSide(v1x - v2x, v1y - v2y, v1z - v2z,
+                px - v1x, py - v1y, pz - v1z, nx, ny, nz);
+        boolean side3 = edgeSide(v2x - v0x, v2y - v0y, v2z - v0z,
+                px - v2x, py - v2y, pz - v2z, nx, ny, nz);
+
+        return side1 == side2 && side2 == side3;
+    }
+
+    /**
+     * Whether the cross product of the edge e and vector p is in the direction
+     * of the normal.
+     */
+    static boolean edgeSide(double ex, double ey, double ez,
+            double px, double py, double pz, double nx, double ny, double nz) {
+
+        double cx = ey*pz - ez*py;
+        double cy = ez*px - ex*pz;
+        double cz = ex*py - ey*px;
+
+        return cx*nx + cy*ny + cz*nz >= 0;
+    }
+
+    /**
+     * Whether the ray intersects the box before maxT. Same algorithm as
+     * {@link BoundingBox#intersectsRay}.
+     */
+    static boolean intersectsBox(double minX, double minY, double minZ,
+            double maxX, double maxY, double maxZ,
+            double ox, double oy, double oz, double dx, double dy, double dz, double maxT) {
+
+        double minT = 0;
+
+        for (int i = 0; i < 3 && minT <= maxT; i++) {
+            double v0 = getComponent(i, ox, oy, oz);
+            double v = getComponent(i, dx, dy, dz);
+            double min = getComponent(i, minX, minY, minZ);
+            double max = getComponent(i, maxX, maxY, maxZ);
+
+            if (v >= -1e-6 && v <= 1e-6) {
+                // Parallel to slab.
+                if (v0 < min || v0 > max) {
+                    return false;
+                }
+            } else {
+                double t1 = (min - v0)/v;
+                double t2 = (max - v0)/v;
+
+                if (t1 > t2) {
+                    double t = t1;
+                    t1 = t2;
+                    t2 = t;
+                }
+
+                minT = Math.max(minT, t1);
+                maxT = Math.min(maxT, t2);
+            }
+        }
+
+        return minT <= maxT;
+    }
+}
@@ -23,9 +23,10 @@ package com.teamten.render;
 import com.teamten.math.Vector;
 
 /**
- * Implementation of the Phong shading model.
+ * Implementation of the Phong shading model. Shading into an accumulator doesn't
+ * allocate, as long as the lights don't.
  */
-public class PhongMaterial implements Material {
+public class PhongMaterial implements AccumulatingMaterial {
     public static final PhongMaterial DEFAULT = new PhongMaterial(
              new Color(1, 0.0, 0.0, 0.0),
              new Color(1, 0.9, 0.9, 0.9),
@@ -48,32 +49,55 @@ public class PhongMaterial implements Material {
     public Color shade(RayTracer rayTracer, Vector eye, Intersection intersection,
             Light[] lightList, boolean debug) {
 
-        Color color = mAmbientColor;
-        eye = eye.negate().normalize();
+        ColorAccumulator color = new ColorAccumulator();
+        shade(rayTracer, eye, intersection, lightList, color, debug);
 
-        Vector normal = intersection.getNormal();
+        return color.toColor();
+    }
+
+    @Override // AccumulatingMaterial
+    public void shade(RayTracer rayTracer, Vector eye, Intersection intersection,
+            Light[] lightList, ColorAccumulator color, boolean debug) {
+
+        color.set(mAmbientColor);
+
+        // Unit vector toward the eye. Done in scalars so that nothing is allocated.
+        double eyeScale = 1/Math.sqrt(eye.get(0)*eye.get(0) + eye.get(1)*eye.get(1)
+                + eye.get(2)*eye.get(2));
+        double ex = -eye.get(0)*eyeScale;
+        double ey = -eye.get(1)*eyeScale;
+        double ez = -eye.get(2)*eyeScale;
+
+        double nx = intersection.getNormal(0);
+        double ny = intersection.getNormal(1);
+        double nz = intersection.getNormal(2);
+
+        // Reflection of the eye vector about the normal.
+        double eyeDotNormal = ex*nx + ey*ny + ez*nz;
+        double rx = ex - (ex - nx*eyeDotNormal)*2;
+        double ry = ey - (ey - ny*eyeDotNormal)*2;
+        double rz = ez - (ez - nz*eyeDotNormal)*2;
 
         // Add up contribution of all lights.
         for (Light light : lightList) {
             Vector lightVector = light.getLightVector(intersection);
             Color lightColor = light.getLightColor(intersection);
+            double lx = lightVector.get(0);
+            double ly = lightVector.get(1);
+            double lz = lightVector.get(2);
 
-            double diffuse = normal.dot(lightVector);
+            double diffuse = nx*lx + ny*ly + nz*lz;
             if (diffuse < 0) {
                 diffuse = 0;
             }
-            color = color.add(lightColor.multiply(mDiffuseColor).multiply(diffuse));
+            color.addProduct(lightColor, mDiffuseColor, diffuse);
 
-            Vector reflection = eye.subtract(eye.subtract(
-                        normal.multiply(eye.dot(normal))).multiply(2));
-            double specular = reflection.dot(lightVector);
+            double specular = rx*lx + ry*ly + rz*lz;
             if (specular < 0) {
                 specular = 0;
             }
             specular = Math.pow(specular, mSpecularPower);
-            color = color.add(lightColor.multiply(mSpecularColor).multiply(specular));
+            color.addProduct(lightColor, mSpecularColor, specular);
         }
-
-        return color;
     }
 }
@@ -0,0 +1,173 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a PNG file one row at a time, top to bottom, so that the whole image never
+ * has to be in memory. Rows are 8-bit RGBA.
+ */
+public class PngWriter implements Closeable {
+    private static final byte[] SIGNATURE = {
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n',
+    };
+    private static final int COLOR_TYPE_RGBA = 6;
+    private static final int FILTER_SUB = 1;
+    private static final int BYTES_PER_PIXEL = 4;
+    // Size of the IDAT chunks that the compressed data is cut into.
+    private static final int CHUNK_SIZE = 1 << 16;
+    private final DataOutputStream mOutputStream;
+    private final int mWidth;
+    private final int mHeight;
+    private final Deflater mDeflater = new Deflater();
+    private final byte[] mRow;
+    private final byte[] mCompressed = new byte[CHUNK_SIZE];
+    private int mCompressedSize = 0;
+    private int mNextRow = 0;
+
+    /**
+     * Write the header of a width by height image to the stream.
+     */
+    public PngWriter(OutputStream outputStream, int width, int height) throws IOException {
+        mOutputStream = new DataOutputStream(outputStream);
+        mWidth = width;
+        mHeight = height;
+        mRow = new byte[1 + width*BYTES_PER_PIXEL];
+
+        mOutputStream.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerStream = new DataOutputStream(header);
+        headerStream.writeInt(width);
+        headerStream.writeInt(height);
+        headerStream.writeByte(8); // Bits per channel.
+        headerStream.writeByte(COLOR_TYPE_RGBA);
+        headerStream.writeByte(0); // Deflate compression.
+        headerStream.writeByte(0); // Adaptive filtering.
+        headerStream.writeByte(0); // Not interlaced.
+        writeChunk("IHDR", header.toByteArray(), header.size());
+    }
+
+    /**
+     * Write the next row, as packed ARGB pixels like those of a BufferedImage.
+     */
+    public void writeRow(int[] argb) throws IOException {
+        if (mNextRow == mHeight) {
+            throw new IllegalStateException("All " + mHeight + " rows were already written");
+        }
+        if (argb.length < mWidth) {
+            throw new IllegalArgumentException("Row has " + argb.length + " pixels, expected " + mWidth);
+        }
+
+        // Each byte is stored as the difference from the same byte of the pixel to its
+        // left, which compresses better for smooth images.
+        mRow[0] = FILTER_SUB;
+        int previous = 0;
+        for (int x = 0; x < mWidth; x++) {
+            int pixel = argb[x];
+            int index = 1 + x*BYTES_PER_PIXEL;
+            mRow[index] = (byte) ((pixel >> 16) - (previous >> 16));
+            mRow[index + 1] = (byte) ((pixel >> 8) - (previous >> 8));
+            mRow[index + 2] = (byte) (pixel - previous);
+            mRow[index + 3] = (byte) ((pixel >>> 24) - (previous >>> 24));
+            previous = pixel;
+        }
+
+        mDeflater.setInput(mRow);
+        while (!mDeflater.needsInput()) {
+            deflate();
+        }
+        mNextRow++;
+    }
+
+    /**
+     * Number of rows written so far.
+     */
+    public int getRowCount() {
+        return mNextRow;
+    }
+
+    /**
+     * Finish the file and close the stream. All rows must have been written. The
+     * stream is closed even if this fails.
+     */
+    @Override // Closeable
+    public void close() throws IOException {
+        try {
+            if (mNextRow != mHeight) {
+                throw new IllegalStateException("Only " + mNextRow + " of " + mHeight + " rows were written");
+            }
+
+            mDeflater.finish();
+            while (!mDeflater.finished()) {
+                deflate();
+            }
+            if (mCompressedSize > 0) {
+                writeChunk("IDAT", mCompressed, mCompressedSize);
+            }
+
+            writeChunk("IEND", mCompressed, 0);
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Close the stream without finishing the file, which is left truncated, and free
+     * the compressor.
+     */
+    public void abort() throws IOException {
+        mDeflater.end();
+        mOutputStream.close();
+    }
+
+    /**
+     * Compress some pending input, writing an IDAT chunk when the buffer fills up.
+     */
+    private void deflate() throws IOException {
+        mCompressedSize += mDeflater.deflate(mCompressed, mCompressedSize,
+                CHUNK_SIZE - mCompressedSize);
+        if (mCompressedSize == CHUNK_SIZE) {
+            writeChunk("IDAT", mCompressed, mCompressedSize);
+            mCompressedSize = 0;
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        mOutputStream.writeInt(length);
+        mOutputStream.write(typeBytes);
+        mOutputStream.write(data, 0, length);
+        mOutputStream.writeInt((int) crc.getValue());
+    }
+}
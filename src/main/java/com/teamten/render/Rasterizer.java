@@ -0,0 +1,350 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+import com.teamten.math.Matrix;
+import com.teamten.math.Vector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the triangle seen by each sample of an image by projecting triangles onto
+ * the image plane and keeping the nearest one per sample in a z-buffer, rather than
+ * by tracing rays. The winning triangle of each sample is then intersected with
+ * the sample's ray exactly, so the result is the same as tracing it.
+ *
+ * <p>Triangles are first all added, which projects them and sorts them into bands
+ * of rows. Bands can then be rasterized in parallel, since each only writes its
+ * own rows of the G-buffer.
+ */
+class Rasterizer {
+    private static final int BAND_HEIGHT = 16;
+    // Triangles are clipped to this distance in front of the eye.
+    private static final double NEAR = 1e-9;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mSuperSample;
+    private final Matrix mCamera;
+    private final Matrix mCameraInverse;
+    private final Vector mEye;
+    // Image plane coordinates of each sample column (x*superSample + sx) and row.
+    private final double[] mCameraXs;
+    private final double[] mCameraYs;
+    private final boolean mCullBackfacing;
+    // The projected triangles that touch each band.
+    private final List<List<Projected>> mBands = new ArrayList<List<Projected>>();
+
+    /**
+     * A triangle projected onto the image plane, at z = -1 in camera space.
+     */
+    private static class Projected {
+        final Triangle mTriangle;
+        final int mTriangleId;
+        final Instance mInstance;
+        // Image plane x, y for each vertex of the fan of triangles left after clipping.
+        final double[] mPolygon;
+        // The ray parameter at image plane point (x,y) is mNumerator/(mA*x + mB*y + mC).
+        final double mNumerator;
+        final double mA;
+        final double mB;
+        final double mC;
+
+        Projected(Triangle triangle, int triangleId, Instance instance, double[] polygon,
+                double numerator, double a, double b, double c) {
+
+            mTriangle = triangle;
+            mTriangleId = triangleId;
+            mInstance = instance;
+            mPolygon = polygon;
+            mNumerator = numerator;
+            mA = a;
+            mB = b;
+            mC = c;
+        }
+    }
+
+    /**
+     * @param camera transforms world space to camera space, which looks down -Z.
+     * @param cameraXs the image plane x of sample sx of column x, at index
+     * x*superSample + sx. Must be monotonic.
+     * @param cameraYs the same for rows.
+     */
+    Rasterizer(int width, int height, int superSample, Matrix camera, Vector eye,
+            double[] cameraXs, double[] cameraYs, boolean cullBackfacing) {
+
+        mWidth = width;
+        mHeight = height;
+        mSuperSample = superSample;
+        mCamera = camera;
+        mCameraInverse = camera.getInverse();
+        mEye = eye;
+        mCameraXs = cameraXs;
+        mCameraYs = cameraYs;
+        mCullBackfacing = cullBackfacing;
+
+        for (int band = 0; band < getBandCount(); band++) {
+            mBands.add(new ArrayList<Projected>());
+        }
+    }
+
+    /**
+     * Project a triangle and add it to the image.
+     *
+     * @param triangleId the ID to record in the G-buffer.
+     * @param instance the instance that places the triangle, or null if it's in world space.
+     */
+    void addTriangle(Triangle triangle, int triangleId, Instance instance) {
+        Vector[] points = new Vector[Triangle.NUM_VERTICES];
+        for (int i = 0; i < Triangle.NUM_VERTICES; i++) {
+            points[i] = triangle.get(i).getPoint();
+            if (instance != null) {
+                points[i] = instance.pointToWorld(points[i]);
+            }
+        }
+
+        // Cull the same way tracing does, in the triangle's own space.
+        Vector eye = instance == null ? mEye : instance.pointToMesh(mEye);
+        if (mCullBackfacing &&
+                triangle.getNormal().dot(triangle.get(0).getPoint().subtract(eye)) > 0) {
+
+            return;
+        }
+
+        // Clip to the near plane in camera space.
+        List<Vector> polygon = new ArrayList<Vector>();
+        for (int i = 0; i < Triangle.NUM_VERTICES; i++) {
+            Vector p = mCamera.transform(points[i]);
+            Vector q = mCamera.transform(points[(i + 1)%Triangle.NUM_VERTICES]);
+            boolean pInside = p.get(2) <= -NEAR;
+            boolean qInside = q.get(2) <= -NEAR;
+            if (pInside) {
+                polygon.add(p);
+            }
+            if (pInside != qInside) {
+                double f = (-NEAR - p.get(2))/(q.get(2) - p.get(2));
+                polygon.add(p.add(q.subtract(p).multiply(f)));
+            }
+        }
+        if (polygon.size() < 3) {
+            return;
+        }
+
+        double[] projected = new double[polygon.size()*2];
+        for (int i = 0; i < polygon.size(); i++) {
+            Vector p = polygon.get(i);
+            projected[i*2] = -p.get(0)/p.get(2);
+            projected[i*2 + 1] = -p.get(1)/p.get(2);
+        }
+
+        // The world-space plane of the triangle, as a function of the image plane.
+        Vector normal = points[1].subtract(points[0]).cross(points[2].subtract(points[0]));
+        Vector axisX = mCameraInverse.transformVector(Vector.X);
+        Vector axisY = mCameraInverse.transformVector(Vector.Y);
+        Vector axisZ = mCameraInverse.transformVector(Vector.Z);
+
+        Projected p = new Projected(triangle, triangleId, instance, projected,
+                normal.dot(points[0].subtract(mEye)),
+                normal.dot(axisX), normal.dot(axisY), -normal.dot(axisZ));
+
+        // Add it to the bands of the rows it might cover.
+        double minY = Double.POSITIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < polygon.size(); i++) {
+            minY = Math.min(minY, projected[i*2 + 1]);
+            maxY = Math.max(maxY, projected[i*2 + 1]);
+        }
+        int firstRow = mHeight;
+        int lastRow = -1;
+        for (int sy = 0; sy < mSuperSample; sy++) {
+            int[] rows = getRange(mCameraYs, mHeight, sy, minY, maxY);
+            firstRow = Math.min(firstRow, rows[0]);
+            lastRow = Math.max(lastRow, rows[1]);
+        }
+        if (firstRow <= lastRow) {
+            for (int band = firstRow/BAND_HEIGHT; band <= lastRow/BAND_HEIGHT; band++) {
+                mBands.get(band).add(p);
+            }
+        }
+    }
+
+    /**
+     * Number of bands of rows.
+     */
+    int getBandCount() {
+        return (mHeight + BAND_HEIGHT - 1)/BAND_HEIGHT;
+    }
+
+    /**
+     * Rasterize the rows of a band and record the nearest triangle of each sample
+     * in the G-buffer.
+     *
+     * @param stats counts the samples found inside triangles as triangle tests.
+     */
+    void rasterizeBand(int band, GBuffer gBuffer, RenderStats stats) {
+        int firstRow = band*BAND_HEIGHT;
+        int lastRow = Math.min(firstRow + BAND_HEIGHT, mHeight) - 1;
+        int sampleCount = mSuperSample*mSuperSample;
+        int bandSize = (lastRow - firstRow + 1)*mWidth*sampleCount;
+
+        double[] depths = new double[bandSize];
+        Projected[] winners = new Projected[bandSize];
+        Arrays.fill(depths, Double.POSITIVE_INFINITY);
+
+        for (Projected projected : mBands.get(band)) {
+            double[] polygon = projected.mPolygon;
+            for (int i = 2; i < polygon.length/2; i++) {
+                rasterizeTriangle(projected, polygon[0], polygon[1],
+                        polygon[i*2 - 2], polygon[i*2 - 1], polygon[i*2], polygon[i*2 + 1],
+                        firstRow, lastRow, depths, winners, stats);
+            }
+        }
+
+        // Intersect each winner exactly, as tracing would have.
+        for (int y = firstRow; y <= lastRow; y++) {
+            for (int x = 0; x < mWidth; x++) {
+                for (int sy = 0; sy < mSuperSample; sy++) {
+                    for (int sx = 0; sx < mSuperSample; sx++) {
+                        int sample = sy*mSuperSample + sx;
+                        Projected winner = winners[((y - firstRow)*mWidth + x)*sampleCount + sample];
+                        if (winner != null) {
+                            Intersection intersection = intersect(winner, x, y, sx, sy);
+                            if (intersection != null) {
+                                gBuffer.set(x, y, sample, winner.mTriangleId,
+                                        winner.mInstance == null
+                                        ? GBuffer.NO_INSTANCE : winner.mInstance.getIndex(),
+                                        intersection);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Rasterize one triangle of a projected polygon into the rows of a band.
+     */
+    private void rasterizeTriangle(Projected projected,
+            double x0, double y0, double x1, double y1, double x2, double y2,
+            int firstRow, int lastRow, double[] depths, Projected[] winners, RenderStats stats) {
+
+        // Edge-on.
+        double area = (x1 - x0)*(y2 - y0) - (y1 - y0)*(x2 - x0);
+        if (area == 0) {
+            return;
+        }
+
+        double minX = Math.min(x0, Math.min(x1, x2));
+        double maxX = Math.max(x0, Math.max(x1, x2));
+        double minY = Math.min(y0, Math.min(y1, y2));
+        double maxY = Math.max(y0, Math.max(y1, y2));
+        int sampleCount = mSuperSample*mSuperSample;
+
+        for (int sy = 0; sy < mSuperSample; sy++) {
+            int[] rows = getRange(mCameraYs, mHeight, sy, minY, maxY);
+            int startRow = Math.max(rows[0], firstRow);
+            int endRow = Math.min(rows[1], lastRow);
+
+            for (int sx = 0; sx < mSuperSample; sx++) {
+                int[] columns = getRange(mCameraXs, mWidth, sx, minX, maxX);
+
+                for (int y = startRow; y <= endRow; y++) {
+                    double cy = mCameraYs[y*mSuperSample + sy];
+
+                    for (int x = columns[0]; x <= columns[1]; x++) {
+                        double cx = mCameraXs[x*mSuperSample + sx];
+
+                        // Inside if on the same side of all edges, like tracing.
+                        double e0 = (x1 - x0)*(cy - y0) - (y1 - y0)*(cx - x0);
+                        double e1 = (x2 - x1)*(cy - y1) - (y2 - y1)*(cx - x1);
+                        double e2 = (x0 - x2)*(cy - y2) - (y0 - y2)*(cx - x2);
+                        if ((e0 < 0 || e1 < 0 || e2 < 0) && (e0 > 0 || e1 > 0 || e2 > 0)) {
+                            continue;
+                        }
+
+                        stats.addTriangleTest();
+                        double t = projected.mNumerator/
+                            (projected.mA*cx + projected.mB*cy + projected.mC);
+                        int index = ((y - firstRow)*mWidth + x)*sampleCount + sy*mSuperSample + sx;
+                        if (t > 0 && t < depths[index]) {
+                            depths[index] = t;
+                            winners[index] = projected;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The range of pixels (first and last, inclusive) whose sample "s" is between
+     * min and max, clamped to the image. The range may include a pixel
+     * more on each side.
+     */
+    private int[] getRange(double[] cameraCoordinates, int size, int s,
+            double min, double max) {
+
+        double first = cameraCoordinates[s];
+        double step = size == 1 ? 1 : (cameraCoordinates[(size - 1)*mSuperSample + s] - first)/(size - 1);
+        double a = (min - first)/step;
+        double b = (max - first)/step;
+
+        return new int[] {
+            (int) Math.max(0, Math.floor(Math.min(a, b)) - 1),
+            (int) Math.min(size - 1, Math.ceil(Math.max(a, b)) + 1)
+        };
+    }
+
+    /**
+     * Intersect the ray of the sample with the winning triangle, as tracing does.
+     * Returns null if rounding puts the hit behind the eye.
+     */
+    private Intersection intersect(Projected winner, int x, int y, int sx, int sy) {
+        Vector r0 = mEye;
+        Vector r = mCameraInverse.transform(Vector.make(
+                    mCameraXs[x*mSuperSample + sx], mCameraYs[y*mSuperSample + sy], -1)).subtract(mEye);
+        Instance instance = winner.mInstance;
+        if (instance != null) {
+            r0 = instance.pointToMesh(r0);
+            r = instance.vectorToMesh(r);
+        }
+
+        Triangle triangle = winner.mTriangle;
+        Vector normal = triangle.getNormal();
+        double denom = normal.dot(r);
+        if (denom == 0) {
+            return null;
+        }
+        double t = -normal.dot(r0.subtract(triangle.get(0).getPoint())) / denom;
+        if (t <= 0) {
+            return null;
+        }
+
+        Intersection intersection = new Intersection();
+        intersection.update(triangle, r0.add(r.multiply(t)), t, denom > 0);
+        if (instance != null) {
+            intersection.setInstance(instance);
+        }
+        intersection.setTriangleId(winner.mTriangleId);
+
+        return intersection;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+/**
+ * A batch of rays to be traced together by {@link Renderer#renderWavefront}. Each ray
+ * has an origin, a direction, the index of the sample it belongs to, and the color
+ * it adds to that sample if it hits nothing. Stored as arrays of primitives so that
+ * millions of rays don't mean millions of objects.
+ */
+public class RayQueue {
+    private final int mCapacity;
+    private int mSize = 0;
+    private double[] mOrigins;
+    private double[] mDirections;
+    private int[] mSamples;
+    private double[] mColors;
+    // Where the rays go while sorting, swapped with the arrays above.
+    private double[] mScratchOrigins;
+    private double[] mScratchDirections;
+    private int[] mScratchSamples;
+    private double[] mScratchColors;
+
+    RayQueue(int capacity) {
+        mCapacity = capacity;
+        mOrigins = new double[capacity*3];
+        mDirections = new double[capacity*3];
+        mSamples = new int[capacity];
+        mColors = new double[capacity*3];
+    }
+
+    /**
+     * Add a ray starting at origin in the direction, which doesn't have to be
+     * normalized, adding the color's red, green and blue to the sample if it hits
+     * nothing.
+     *
+     * @throws IllegalStateException if the queue is full.
+     */
+    public void add(Vector origin, Vector direction, int sample, Color color) {
+        if (mSize == mCapacity) {
+            throw new IllegalStateException("Ray queue is full at " + mCapacity + " rays");
+        }
+
+        int index = mSize*3;
+        for (int i = 0; i < 3; i++) {
+            mOrigins[index + i] = origin.get(i);
+            mDirections[index + i] = direction.get(i);
+        }
+        mColors[index] = color.getRed();
+        mColors[index + 1] = color.getGreen();
+        mColors[index + 2] = color.getBlue();
+        mSamples[mSize] = sample;
+        mSize++;
+    }
+
+    /**
+     * Remove all rays.
+     */
+    void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Number of rays in the queue.
+     */
+    int size() {
+        return mSize;
+    }
+
+    Vector getOrigin(int ray) {
+        return Vector.make(mOrigins[ray*3], mOrigins[ray*3 + 1], mOrigins[ray*3 + 2]);
+    }
+
+    Vector getDirection(int ray) {
+        return Vector.make(mDirections[ray*3], mDirections[ray*3 + 1], mDirections[ray*3 + 2]);
+    }
+
+    int getSample(int ray) {
+        return mSamples[ray];
+    }
+
+    /**
+     * The color the ray adds to its sample, with an alpha of 1.
+     */
+    Color getColor(int ray) {
+        return new Color(1, mColors[ray*3], mColors[ray*3 + 1], mColors[ray*3 + 2]);
+    }
+
+    /**
+     * Group the rays by the octant of their direction, so that rays traced one
+     * after the other go through the same side of the boxes. Keeps the order
+     * within each octant.
+     */
+    void sortByOctant() {
+        if (mScratchSamples == null) {
+            mScratchOrigins = new double[mCapacity*3];
+            mScratchDirections = new double[mCapacity*3];
+            mScratchSamples = new int[mCapacity];
+            mScratchColors = new double[mCapacity*3];
+        }
+
+        // Counting sort.
+        int[] starts = new int[9];
+        for (int ray = 0; ray < mSize; ray++) {
+            starts[getOctant(ray) + 1]++;
+        }
+        for (int octant = 1; octant < starts.length; octant++) {
+            starts[octant] += starts[octant - 1];
+        }
+
+        for (int ray = 0; ray < mSize; ray++) {
+            int to = starts[getOctant(ray)]++;
+            System.arraycopy(mOrigins, ray*3, mScratchOrigins, to*3, 3);
+            System.arraycopy(mDirections, ray*3, mScratchDirections, to*3, 3);
+            System.arraycopy(mColors, ray*3, mScratchColors, to*3, 3);
+            mScratchSamples[to] = mSamples[ray];
+        }
+
+        double[] origins = mOrigins;
+        mOrigins = mScratchOrigins;
+        mScratchOrigins = origins;
+        double[] directions = mDirections;
+        mDirections = mScratchDirections;
+        mScratchDirections = directions;
+        double[] colors = mColors;
+        mColors = mScratchColors;
+        mScratchColors = colors;
+        int[] samples = mSamples;
+        mSamples = mScratchSamples;
+        mScratchSamples = samples;
+    }
+
+    private int getOctant(int ray) {
+        int index = ray*3;
+        return (mDirections[index] < 0 ? 1 : 0)
+            | (mDirections[index + 1] < 0 ? 2 : 0)
+            | (mDirections[index + 2] < 0 ? 4 : 0);
+    }
+}
@@ -33,6 +33,14 @@ public interface RayTracer {
      */
     Intersection intersect(Vector r0, Vector r, boolean debug);
 
+    /**
+     * Whether a ray starting at (ox,oy,oz) and heading in the direction (dx,dy,dz)
+     * hits anything, for occlusion and shadow rays. Cheaper than {@link #intersect}
+     * because it stops at the first hit found, and it allocates nothing.
+     */
+    boolean isOccluded(double ox, double oy, double oz, double dx, double dy, double dz,
+            boolean debug);
+
     /**
      * Shade the point at the intersection (whose triangle is not null), given that
      * the eye is coming in the direction of "eye".
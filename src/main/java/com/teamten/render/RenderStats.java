@@ -0,0 +1,266 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+/**
+ * Statistics about one or more renders. Each render task keeps its own instance
+ * and bumps plain fields, so there's no contention in the inner loops. The
+ * per-task instances are merged into the render's total when each task finishes.
+ */
+public class RenderStats {
+    /**
+     * Bucket i of the tile time histogram counts tiles that took less than
+     * 2^i milliseconds (and at least 2^(i-1)). The last bucket catches everything else,
+     * which is 2^(i-1) milliseconds or more.
+     */
+    public static final int TILE_HISTOGRAM_SIZE = 17;
+    private long mRayCount;
+    private long mNodeVisitCount;
+    private long mTriangleTestCount;
+    private long mCulledSubtreeCount;
+    private long mTileCount;
+    private long mSkippedTileCount;
+    private long mBusyNanos;
+    private final long[] mTileTimeHistogram = new long[TILE_HISTOGRAM_SIZE];
+    private long mBuildTimeMs;
+    private long mRenderTimeMs;
+    private long mDenoiseTimeMs;
+    private int mThreadCount;
+
+    /**
+     * Record that a ray was traced.
+     */
+    void addRay() {
+        mRayCount++;
+    }
+
+    /**
+     * Record that a bounding box was tested against a ray.
+     */
+    void addNodeVisit() {
+        mNodeVisitCount++;
+    }
+
+    /**
+     * Record that a triangle was tested against a ray.
+     */
+    void addTriangleTest() {
+        mTriangleTestCount++;
+    }
+
+    /**
+     * Record that a subtree was skipped because all its triangles face away from the ray.
+     */
+    void addCulledSubtree() {
+        mCulledSubtreeCount++;
+    }
+
+    /**
+     * Record that a tile was completed in the given number of nanoseconds.
+     */
+    void addTile(long nanos) {
+        mTileCount++;
+        mBusyNanos += nanos;
+
+        long ms = nanos / 1000000;
+        int bucket = 64 - Long.numberOfLeadingZeros(ms);
+        mTileTimeHistogram[Math.min(bucket, TILE_HISTOGRAM_SIZE - 1)]++;
+    }
+
+    /**
+     * Record that a tile wasn't rendered because the render was cancelled.
+     */
+    void addSkippedTile() {
+        mSkippedTileCount++;
+    }
+
+    /**
+     * Set the time it took to build the bounding box hierarchy.
+     */
+    void setBuildTimeMs(long buildTimeMs) {
+        mBuildTimeMs = buildTimeMs;
+    }
+
+    /**
+     * Set the time it took to denoise the image.
+     */
+    void setDenoiseTimeMs(long denoiseTimeMs) {
+        mDenoiseTimeMs = denoiseTimeMs;
+    }
+
+    /**
+     * Set the wall-clock time of the render and the number of threads it used.
+     */
+    void setRenderTime(long renderTimeMs, int threadCount) {
+        mRenderTimeMs = renderTimeMs;
+        mThreadCount = threadCount;
+    }
+
+    /**
+     * Add the other stats into this one. Counts and times are summed, so merging
+     * the stats of consecutive renders gives their totals.
+     */
+    public void merge(RenderStats other) {
+        mRayCount += other.mRayCount;
+        mNodeVisitCount += other.mNodeVisitCount;
+        mTriangleTestCount += other.mTriangleTestCount;
+        mCulledSubtreeCount += other.mCulledSubtreeCount;
+        mTileCount += other.mTileCount;
+        mSkippedTileCount += other.mSkippedTileCount;
+        mBusyNanos += other.mBusyNanos;
+        for (int i = 0; i < TILE_HISTOGRAM_SIZE; i++) {
+            mTileTimeHistogram[i] += other.mTileTimeHistogram[i];
+        }
+        mBuildTimeMs += other.mBuildTimeMs;
+        mRenderTimeMs += other.mRenderTimeMs;
+        mDenoiseTimeMs += other.mDenoiseTimeMs;
+        mThreadCount = Math.max(mThreadCount, other.mThreadCount);
+    }
+
+    /**
+     * Number of rays traced, both primary and those fired by materials.
+     */
+    public long getRayCount() {
+        return mRayCount;
+    }
+
+    /**
+     * Number of bounding boxes tested against rays.
+     */
+    public long getNodeVisitCount() {
+        return mNodeVisitCount;
+    }
+
+    /**
+     * Number of triangles tested against rays, not counting culled back-facing ones.
+     */
+    public long getTriangleTestCount() {
+        return mTriangleTestCount;
+    }
+
+    /**
+     * Number of subtrees skipped because all their triangles faced away from the ray.
+     */
+    public long getCulledSubtreeCount() {
+        return mCulledSubtreeCount;
+    }
+
+    /**
+     * Number of tiles rendered.
+     */
+    public long getTileCount() {
+        return mTileCount;
+    }
+
+    /**
+     * Number of tiles skipped because the render was cancelled.
+     */
+    public long getSkippedTileCount() {
+        return mSkippedTileCount;
+    }
+
+    /**
+     * Returns a copy of the tile time histogram. See {@link #TILE_HISTOGRAM_SIZE}
+     * for the bucket sizes.
+     */
+    public long[] getTileTimeHistogram() {
+        return mTileTimeHistogram.clone();
+    }
+
+    /**
+     * Time it took to build the bounding box hierarchy. Only the first render after
+     * a build reports it; later ones report zero.
+     */
+    public long getBuildTimeMs() {
+        return mBuildTimeMs;
+    }
+
+    /**
+     * Wall-clock time of the render, not including the hierarchy build.
+     */
+    public long getRenderTimeMs() {
+        return mRenderTimeMs;
+    }
+
+    /**
+     * Time it took to denoise the image, not included in the render time.
+     */
+    public long getDenoiseTimeMs() {
+        return mDenoiseTimeMs;
+    }
+
+    /**
+     * Number of threads that rendered tiles.
+     */
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * Fraction (0 to 1) of the available thread time that was spent rendering tiles.
+     */
+    public double getThreadUtilization() {
+        if (mRenderTimeMs == 0 || mThreadCount == 0) {
+            return 0;
+        }
+
+        return Math.min(1.0, mBusyNanos / 1e6 / mRenderTimeMs / mThreadCount);
+    }
+
+    /**
+     * Print a multi-line summary to stdout.
+     */
+    public void print() {
+        System.out.printf("Rays:                        %,d%n", mRayCount);
+        System.out.printf("Node visits:                 %,d (%.1f per ray)%n",
+                mNodeVisitCount, perRay(mNodeVisitCount));
+        System.out.printf("Triangle intersections:      %,d (%.1f per ray)%n",
+                mTriangleTestCount, perRay(mTriangleTestCount));
+        System.out.printf("Back-facing subtrees culled: %,d (%.1f per ray)%n",
+                mCulledSubtreeCount, perRay(mCulledSubtreeCount));
+        System.out.printf("Tiles skipped by cancelling: %,d%n", mSkippedTileCount);
+        System.out.printf("Build time:                  %,d ms%n", mBuildTimeMs);
+        System.out.printf("Render time:                 %,d ms%n", mRenderTimeMs);
+        System.out.printf("Denoise time:                %,d ms%n", mDenoiseTimeMs);
+        System.out.printf("Thread utilization:          %.0f%% of %d threads%n",
+                getThreadUtilization()*100, mThreadCount);
+        for (int i = 0; i < TILE_HISTOGRAM_SIZE; i++) {
+            if (mTileTimeHistogram[i] != 0) {
+                if (i == TILE_HISTOGRAM_SIZE - 1) {
+                    System.out.printf("Tiles of %,6d+ ms:          %,d%n", 1L << (i - 1),
+                            mTileTimeHistogram[i]);
+                } else {
+                    System.out.printf("Tiles under %,6d ms:        %,d%n", 1L << i,
+                            mTileTimeHistogram[i]);
+                }
+            }
+        }
+    }
+
+    private double perRay(long count) {
+        return mRayCount == 0 ? 0 : (double) count / mRayCount;
+    }
+
+    @Override // Object
+    public String toString() {
+        return String.format("%,d rays, %,d nodes, %,d triangles, %,d tiles in %,d ms (%.0f%% utilization)",
+                mRayCount, mNodeVisitCount, mTriangleTestCount, mTileCount, mRenderTimeMs,
+                getThreadUtilization()*100);
+    }
+}
@@ -20,18 +20,26 @@
 
 package com.teamten.render;
 
-import com.teamten.image.ImageUtils;
 import com.teamten.math.Matrix;
 import com.teamten.math.Vector;
 import com.teamten.util.Dates;
 
 import java.awt.image.BufferedImage;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -42,23 +50,59 @@ public class Renderer {
     // Set this to zero because it doesn't appear to help.
     private static final double TESSELATE_RATIO = 0.0;
     private static final boolean PRINT_RENDER_STATS = false;
+    private static final boolean PRINT_HIERARCHY_STATS = false;
+    // Largest error allowed for a mesh's level of detail, as a fraction of a pixel.
+    private static final double LEVEL_OF_DETAIL_PIXELS = 0.5;
+    // Most nodes that primary rays of a row start from.
+    private static final int MAX_ENTRY_BOXES = 4;
+    // Rows that each thread may render ahead of the next row to write when streaming.
+    private static final int PENDING_ROWS_PER_THREAD = 4;
+    // Size in pixels of the blocks of the first preview of a progressive render.
+    private static final int PREVIEW_BLOCK_SIZE = 8;
+    private static final Color BACKGROUND_COLOR = new Color(1, 0, 0, 0);
+    // Pixels whose rays are traced together by one thread in a wavefront render.
+    private static final int WAVEFRONT_CHUNK_PIXELS = 1024;
+    // Most rays that a wavefront render queues at once, which bounds its memory.
+    private static final int WAVEFRONT_RAYS = 1 << 19;
     private final List<Triangle> mTriangleList = new ArrayList<Triangle>();
-    private final Light[] mLightList = new Light[] {
+    private final List<IndexedMesh> mIndexedMeshList = new ArrayList<IndexedMesh>();
+    private final List<Instance> mInstanceList = new ArrayList<Instance>();
+    private Light[] mLightList = new Light[] {
         new DirectionalLight(Vector.make(0, 1, 0), new Color(1, 0.5, 0.5, 0.5)),
         new DirectionalLight(Vector.make(-1, -1, -1), new Color(1, 0.5, 0.5, 0.5))
     };
     private Material mMaterial = PhongMaterial.DEFAULT;
     private Matrix mCamera = Matrix.makeUnit(4);
     private Matrix mCameraInverse = mCamera.getInverse();
-    private AtomicInteger mTriangleIntersectionCount = new AtomicInteger();
-    private AtomicInteger mRayCount = new AtomicInteger();
     private double mHorizontalFov = Math.PI/6;
     private double mVerticalFov = Math.PI/6;
     private final int mSuperSample;
     private boolean mCullBackfacingTriangles = true;
+    private HierarchyFormat mHierarchyFormat = HierarchyFormat.TREE;
+    private HierarchyBuilder mHierarchyBuilder = HierarchyBuilder.MIDPOINT;
+    private boolean mOffHeapGeometry = false;
+    private boolean mEncodedNormals = false;
+    private OutOfCoreScene mOutOfCoreScene = null;
+    private boolean mRasterizePrimaryVisibility = false;
+    private Denoiser mDenoiser = null;
+    private ToneMapping mToneMapping = ToneMapping.CLAMP;
+    private ExecutorService mExecutorService = null;
+    // Token of the render in progress, or null.
+    private volatile CancellationToken mCancellationToken = null;
 
     // Precomputed data:
     private BoundingBox mBoundingBox = null;
+    private InstanceBox mInstanceBox = null;
+    private PackedHierarchy mPackedHierarchy = null;
+    // Whether mTriangleList and mIndexedMeshList were emptied because the packed
+    // hierarchy has the triangles.
+    private boolean mTrianglesInPackedHierarchy = false;
+    private final Map<Triangle,Integer> mTriangleIndexMap = new IdentityHashMap<Triangle,Integer>();
+    // Time of the last build, until a render reports it.
+    private long mBuildTimeMs = 0;
+    private RenderStats mRenderStats = new RenderStats();
+    // Size of a pixel at distance 1 in the most recent render, for levels of detail.
+    private double mPixelSize = 0;
 
     /**
      * Creates a renderer with the specified parameters.
@@ -77,6 +121,98 @@ public class Renderer {
         mCullBackfacingTriangles = cullBackfacingTriangles;
     }
 
+    /**
+     * How to store the hierarchy of the triangles added with {@link #addTriangle}.
+     * Defaults to {@link HierarchyFormat#TREE}. Takes effect at the next call to
+     * {@link #prepareGeometry}. Packed formats then keep only their single-precision
+     * copy of the triangles.
+     */
+    public void setHierarchyFormat(HierarchyFormat hierarchyFormat) {
+        mHierarchyFormat = hierarchyFormat;
+    }
+
+    /**
+     * How to build the hierarchies of the triangles and of meshes. Defaults to
+     * {@link HierarchyBuilder#MIDPOINT}. Takes effect at the next call to
+     * {@link #prepareGeometry}, except for meshes that were already built.
+     */
+    public void setHierarchyBuilder(HierarchyBuilder hierarchyBuilder) {
+        mHierarchyBuilder = hierarchyBuilder;
+    }
+
+    /**
+     * Whether packed hierarchies (all formats except {@link HierarchyFormat#TREE})
+     * keep their nodes and geometry outside the Java heap, so that heap size and
+     * garbage collection don't grow with the scene. The memory is held until
+     * the next {@link #prepareGeometry} or {@link #releaseGeometry}. Defaults to false.
+     */
+    public void setOffHeapGeometry(boolean offHeapGeometry) {
+        mOffHeapGeometry = offHeapGeometry;
+    }
+
+    /**
+     * Whether {@link #prepareGeometry} replaces the vertex normals of the triangles
+     * with ones encoded in 32 bits, which saves memory on large meshes with little
+     * loss of shading precision. See {@link Vertex#withEncodedNormal()}. The added
+     * triangles are replaced by copies with shared edges and normals. Defaults to false.
+     */
+    public void setEncodedNormals(boolean encodedNormals) {
+        mEncodedNormals = encodedNormals;
+    }
+
+    /**
+     * Render the triangles of a scene on disk instead of those added with
+     * {@link #addTriangle}. Instances are still rendered. The scene must stay open
+     * while rendering. Null goes back to the added triangles.
+     */
+    public void setOutOfCoreScene(OutOfCoreScene outOfCoreScene) {
+        mOutOfCoreScene = outOfCoreScene;
+    }
+
+    /**
+     * Whether {@link #render} finds the triangle seen by each sample by rasterizing
+     * with a z-buffer, like {@link #rasterizeGBuffer}, instead of tracing primary rays.
+     * Only the rays that the material fires are traced. The image is the same
+     * except where triangles meet. Ignored for out-of-core scenes. Defaults to false.
+     */
+    public void setRasterizePrimaryVisibility(boolean rasterizePrimaryVisibility) {
+        mRasterizePrimaryVisibility = rasterizePrimaryVisibility;
+    }
+
+    /**
+     * Filter shaded images with the denoiser, or not if null, which is the default.
+     * The denoiser is guided by a G-buffer, so {@link #render} then makes one and
+     * shades it. Lets noisy materials like {@link AmbientOcclusionMaterial} fire
+     * fewer rays.
+     */
+    public void setDenoiser(Denoiser denoiser) {
+        mDenoiser = denoiser;
+    }
+
+    /**
+     * How rendered colors, which aren't limited to 0 to 1, become 8-bit pixels.
+     * Defaults to {@link ToneMapping#CLAMP}.
+     */
+    public void setToneMapping(ToneMapping toneMapping) {
+        mToneMapping = toneMapping;
+    }
+
+    /**
+     * Render rows on this executor instead of starting a thread pool for each render,
+     * which adds up when rendering many frames. The caller owns the executor and shuts
+     * it down. Null, the default, goes back to a pool per render.
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        mExecutorService = executorService;
+    }
+
+    /**
+     * Returns the executor set with {@link #setExecutorService}, or null if there is none.
+     */
+    public ExecutorService getExecutorService() {
+        return mExecutorService;
+    }
+
     /**
      * Position the camera at "eye" looking at "target" with "up"
      * either specified or pointing to the Y axis if null.
@@ -106,6 +242,13 @@ public class Renderer {
         mMaterial = material;
     }
 
+    /**
+     * Replaces the lights of the scene.
+     */
+    public void setLights(Light ... lightList) {
+        mLightList = lightList.clone();
+    }
+
     /**
      * Add a triangle to the geometry being rendered.
      */
@@ -113,15 +256,53 @@ public class Renderer {
         mTriangleList.add(triangle);
     }
 
+    /**
+     * Add the triangles of the indexed mesh to the geometry being rendered. They're
+     * kept in the mesh's compact form and only made into triangle objects while
+     * building the hierarchy, so the mesh must not be changed afterward.
+     */
+    public void addIndexedMesh(IndexedMesh indexedMesh) {
+        mIndexedMeshList.add(indexedMesh);
+    }
+
+    /**
+     * Add a copy of the mesh to the geometry being rendered, placed by the
+     * transform from mesh space to world space. The mesh's triangles and bounding
+     * boxes are shared by all its instances.
+     */
+    public void addInstance(Mesh mesh, Matrix transform) {
+        mInstanceList.add(new Instance(mInstanceList.size(), mesh, transform));
+    }
+
     /**
      * Precompute various geometry things, like bounding boxes.
      */
     public void prepareGeometry() {
+        // Packed geometry isn't kept as triangles between builds, so get it back.
+        if (mTrianglesInPackedHierarchy) {
+            mTriangleList.addAll(0, mPackedHierarchy.getTriangleList());
+            mTrianglesInPackedHierarchy = false;
+        }
+
+        // Replace the triangles so that the vector normals can be collected.
+        if (mEncodedNormals) {
+            Map<Vertex,Vertex> encodedVertexMap = new IdentityHashMap<Vertex,Vertex>();
+            for (int i = 0; i < mTriangleList.size(); i++) {
+                mTriangleList.set(i, mTriangleList.get(i).withEncodedNormals(encodedVertexMap));
+            }
+        }
+
         // Add everything to the top bounding box.
         mBoundingBox = new BoundingBox();
         for (Triangle triangle : mTriangleList) {
             mBoundingBox.addTriangle(triangle);
         }
+        for (IndexedMesh indexedMesh : mIndexedMeshList) {
+            for (Triangle triangle : indexedMesh.makeTriangleList(mEncodedNormals)) {
+                mBoundingBox.addTriangle(triangle);
+            }
+        }
+        int initialTriangleCount = mBoundingBox.getTriangleList().size();
 
         // Break up large triangles because they make it hard to create
         // bounding box trees. This doesn't appear to help -- the new triangles
@@ -133,254 +314,1526 @@ public class Renderer {
 
         // Create the bounding box hierarchy.
         long beforeTime = System.currentTimeMillis();
-        mBoundingBox.createTree();
+        mBoundingBox.createTree(mHierarchyBuilder);
         long afterTime = System.currentTimeMillis();
         long createTreeTime = afterTime - beforeTime;
 
-        System.out.printf("Number of initial triangles: %,d%n", mTriangleList.size());
+        System.out.printf("Number of initial triangles: %,d%n", initialTriangleCount);
         System.out.printf("Number of final triangles:   %,d%n",
                 mBoundingBox.getTriangleList().size());
         System.out.printf("Number of bounding boxes:    %,d%n", mBoundingBox.getDeepChildCount());
         System.out.printf("Create tree time:            %,d ms%n", createTreeTime);
+        if (PRINT_HIERARCHY_STATS) {
+            HierarchyStats.analyze(mBoundingBox).print();
+        }
+
+        // Flatten the tree, which we can then drop.
+        releasePackedHierarchy();
+        if (mHierarchyFormat != HierarchyFormat.TREE) {
+            beforeTime = System.currentTimeMillis();
+            mPackedHierarchy = new PackedHierarchy(mBoundingBox, mHierarchyFormat,
+                    mOffHeapGeometry);
+            mBoundingBox = null;
+            afterTime = System.currentTimeMillis();
+            createTreeTime += afterTime - beforeTime;
+
+            System.out.printf("Packed hierarchy size:       %,d bytes (%,d in nodes)%n",
+                    mPackedHierarchy.getMemorySize(),
+                    mPackedHierarchy.getHierarchyMemorySize());
+            System.out.printf("Pack time:                   %,d ms%n", afterTime - beforeTime);
+
+            // Only keep the packed copy, which is what makes the packed formats smaller.
+            // A rebuild gets the triangles back from it.
+            mTriangleList.clear();
+            mIndexedMeshList.clear();
+            mTrianglesInPackedHierarchy = true;
+        }
+
+        // Rebuilt by the first G-buffer render that needs it.
+        mTriangleIndexMap.clear();
+
+        // Build each unique mesh once, then the top-level hierarchy over the instances.
+        beforeTime = System.currentTimeMillis();
+        int meshTriangleCount = 0;
+        int levelCount = 0;
+        mInstanceBox = null;
+        if (!mInstanceList.isEmpty()) {
+            mInstanceBox = new InstanceBox();
+            for (Instance instance : mInstanceList) {
+                if (instance.getMesh().prepare(mHierarchyBuilder)) {
+                    meshTriangleCount += instance.getMesh().getTriangleList().size();
+                    levelCount += instance.getMesh().getLevelCount() - 1;
+                }
+                instance.prepare();
+                mInstanceBox.addInstance(instance);
+            }
+            mInstanceBox.createTree();
+        }
+        afterTime = System.currentTimeMillis();
+        long createInstanceTreeTime = afterTime - beforeTime;
+        mBuildTimeMs = createTreeTime + createInstanceTreeTime;
+
+        if (!mInstanceList.isEmpty()) {
+            System.out.printf("Number of instances:         %,d%n", mInstanceList.size());
+            System.out.printf("Number of newly built mesh triangles: %,d%n", meshTriangleCount);
+            System.out.printf("Number of mesh levels of detail:      %,d%n", levelCount);
+            System.out.printf("Create instance tree time:   %,d ms%n", createInstanceTreeTime);
+        }
+    }
+
+    /**
+     * Drop all geometry, including instances and the hierarchies built by
+     * {@link #prepareGeometry}. Off-heap storage is released with it.
+     */
+    public void releaseGeometry() {
+        mTriangleList.clear();
+        mIndexedMeshList.clear();
+        mInstanceList.clear();
+        mOutOfCoreScene = null;
+        mBoundingBox = null;
+        mInstanceBox = null;
+        mTriangleIndexMap.clear();
+        releasePackedHierarchy();
+        mTrianglesInPackedHierarchy = false;
+    }
+
+    private void releasePackedHierarchy() {
+        if (mPackedHierarchy != null) {
+            mPackedHierarchy.release();
+            mPackedHierarchy = null;
+        }
+    }
+
+    /**
+     * Returns the statistics of the most recent call to {@link #render}.
+     */
+    public RenderStats getRenderStats() {
+        return mRenderStats;
     }
 
     /**
      * Generate an image of size width and height. U and v are the upper-left corner
      * of the image on a 0 to 1 scale. Du and dv are the width and height on that same
      * scale.
+     *
+     * @throws IllegalArgumentException if the image is too large to hold in memory
+     * at once, in which case {@link #renderPng} can write it instead.
+     */
+    public BufferedImage render(int width, int height, float u, float v, float du, float dv) {
+        return render(width, height, u, v, du, dv, null);
+    }
+
+    /**
+     * Like {@link #render(int, int, float, float, float, float)}, but stop starting
+     * rows once the token is cancelled and return the image as it is then. Rows that
+     * weren't rendered are transparent. The token may be null.
      */
-    public BufferedImage render(final int width, final int height,
+    public BufferedImage render(int width, int height, float u, float v, float du, float dv,
+            CancellationToken cancellationToken) {
+
+        mCancellationToken = cancellationToken;
+        try {
+            return renderImage(width, height, u, v, du, dv);
+        } finally {
+            mCancellationToken = null;
+        }
+    }
+
+    private BufferedImage renderImage(final int width, final int height,
             final float u, final float v,
             final float du, final float dv) {
-        final BufferedImage image = ImageUtils.makeTransparent(width, height);
-        final Vector eye = mCameraInverse.transform(Vector.make(0, 0, 0));
 
-        // Create a RayTracer object that shaders can use to trace more rays in
-        // the scene.
-        final RayTracer rayTracer = new RayTracer() {
-            @Override // RayTracer
-            public Intersection intersect(Vector r0, Vector r, boolean debug) {
-                return Renderer.this.intersect(r0, r, mBoundingBox, debug);
+        boolean rasterize = mRasterizePrimaryVisibility && mOutOfCoreScene == null;
+        if (rasterize || mDenoiser != null) {
+            GBuffer gBuffer = rasterize
+                ? rasterizeGBuffer(width, height, u, v, du, dv)
+                : renderGBuffer(width, height, u, v, du, dv);
+            RenderStats primaryStats = mRenderStats;
+            BufferedImage image = shade(gBuffer);
+
+            // Report both passes.
+            mRenderStats.merge(primaryStats);
+
+            return image;
+        }
+
+        final FrameBuffer frameBuffer = new FrameBuffer(width, height);
+        final Viewport viewport = new Viewport(u, v, du, dv);
+        mPixelSize = viewport.getPixelSize();
+
+        renderRows(height, new RowRenderer() {
+            @Override // RowRenderer
+            public void renderRow(int y, RenderStats tileStats, RayTracer rayTracer) {
+                renderPixelRow(viewport, y, width, height, tileStats, rayTracer, frameBuffer, y);
             }
+        });
 
-            @Override // RayTracer
-            public Color shade(Vector eye, Intersection intersection, boolean debug) {
-                return Renderer.this.shade(this, eye, intersection, debug);
+        return frameBuffer.toImage(mToneMapping);
+    }
+
+    /**
+     * Like {@link #render}, but write the image to the stream as a PNG, row by row,
+     * keeping only a window of rows in memory, so that memory doesn't grow with the
+     * size of the image. Rows are traced and shaded independently, so the denoiser and
+     * rasterized primary visibility, which need the whole image, aren't used. The
+     * stream is closed.
+     *
+     * @throws InterruptedIOException if rendering was interrupted or cancelled. The
+     * file is left truncated, and the thread's interrupt flag is left set.
+     */
+    public void renderPng(final int width, final int height,
+            final float u, final float v,
+            final float du, final float dv,
+            OutputStream outputStream) throws IOException {
+
+        final Viewport viewport = new Viewport(u, v, du, dv);
+        mPixelSize = viewport.getPixelSize();
+        final OrderedRowWriter rowWriter = new OrderedRowWriter(
+                new PngWriter(outputStream, width, height),
+                PENDING_ROWS_PER_THREAD*Runtime.getRuntime().availableProcessors());
+
+        renderRows(height, new RowRenderer() {
+            @Override // RowRenderer
+            public void renderRow(int y, RenderStats tileStats, RayTracer rayTracer) {
+                try {
+                    if (!rowWriter.waitForRoom(y)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                FrameBuffer row = new FrameBuffer(width, 1);
+                renderPixelRow(viewport, y, width, height, tileStats, rayTracer, row, 0);
+                int[] argb = new int[width];
+                row.toArgb(0, mToneMapping, argb);
+                rowWriter.addRow(y, argb);
             }
-        };
+        }, new Runnable() {
+            @Override // Runnable
+            public void run() {
+                // Rows waiting for the skipped row would wait forever.
+                rowWriter.stop();
+            }
+        });
 
-        int availableProcessors = Runtime.getRuntime().availableProcessors();
-        /// availableProcessors = 1;
-        if (PRINT_RENDER_STATS) {
-            System.out.println("Parallelizing across " + availableProcessors + " processors");
+        if (Thread.currentThread().isInterrupted() || rowWriter.isStopped()) {
+            rowWriter.abort();
+            throw new InterruptedIOException("Rendering was interrupted after "
+                    + rowWriter.getRowCount() + " of " + height + " rows");
         }
-        ExecutorService executorService = Executors.newFixedThreadPool(availableProcessors);
 
-        mTriangleIntersectionCount.set(0);
-        mRayCount.set(0);
-        final AtomicInteger completedRowsCount = new AtomicInteger();
+        rowWriter.close();
+    }
 
-        final long beforeRenderTime = System.currentTimeMillis();
-        final AtomicLong previousNotice = new AtomicLong();
-        previousNotice.set(beforeRenderTime);
+    /**
+     * Render an image that keeps improving until the token is cancelled or each pixel
+     * has maxSampleCount samples, and return the image as it is then. A preview is
+     * made first, tracing every eighth pixel and then filling in the gaps at finer and
+     * finer spacing. Once every pixel has a sample, which gives the same image as
+     * {@link #render} without supersampling, each pass adds one more sample per pixel
+     * at a different position within the pixel, which also gives noisy materials more
+     * rays. The renderer's supersampling and denoiser aren't used.
+     */
+    public BufferedImage renderProgressive(final int width, final int height,
+            final float u, final float v,
+            final float du, final float dv,
+            int maxSampleCount, CancellationToken cancellationToken) {
 
-        // Calculate the sides of the full frame based on the FOV and assume a Z component
-        // of 1.
-        final double right = Math.tan(mHorizontalFov/2);
-        final double left = -right;
-        final double top = Math.tan(mVerticalFov/2);
-        final double bottom = -top;
+        final Viewport viewport = new Viewport(u, v, du, dv);
+        mPixelSize = viewport.getPixelSize();
+        final FrameBuffer sums = new FrameBuffer(width, height);
+        final int[] sampleCounts = new int[width*height];
+        RenderStats totalStats = new RenderStats();
 
-        for (int y = 0; y < height; y++) {
-            final int finalY = y;
-            final double dy = bottom + (v + dv*y)*(top - bottom);
+        mCancellationToken = cancellationToken;
+        try {
+            // Preview passes, each tracing the pixels on a grid with this spacing
+            // that don't have a sample yet.
+            for (int spacing = PREVIEW_BLOCK_SIZE; spacing >= 1 && !isCancelled(); spacing /= 2) {
+                final int finalSpacing = spacing;
+                renderRows((height + spacing - 1)/spacing, new RowRenderer() {
+                    @Override // RowRenderer
+                    public void renderRow(int row, RenderStats tileStats, RayTracer rayTracer) {
+                        int y = row*finalSpacing;
+                        EntryPoints entryPoints = findEntryPoints(viewport.getRowFrustum(y, width));
 
-            // Submit entire rows to the executor.
-            executorService.submit(new Runnable() {
-                public void run() {
-                    for (int x = 0; x < width; x++) {
-                        double dx = left + (u + du*x)*(right - left);
+                        for (int x = 0; x < width; x += finalSpacing) {
+                            if (sampleCounts[y*width + x] == 0) {
+                                sums.add(x, y, traceSample(viewport.getEye(),
+                                            viewport.getJitteredRay(x, y, 0, 0), entryPoints,
+                                            tileStats, rayTracer));
+                                sampleCounts[y*width + x] = 1;
+                            }
+                        }
+                    }
+                });
+                addPassStats(totalStats);
+            }
 
-                        Color pixelColor = Color.BLACK;
+            // Refinement passes.
+            for (int sample = 1; sample < maxSampleCount && !isCancelled(); sample++) {
+                final int finalSample = sample;
+                final double ox = getHalton(sample, 2);
+                final double oy = getHalton(sample, 3);
+                renderRows(height, new RowRenderer() {
+                    @Override // RowRenderer
+                    public void renderRow(int y, RenderStats tileStats, RayTracer rayTracer) {
+                        EntryPoints entryPoints = findEntryPoints(
+                                viewport.getJitteredRowFrustum(y, width));
 
-                        for (int sy = 0; sy < mSuperSample; sy++) {
-                            for (int sx = 0; sx < mSuperSample; sx++) {
-                                Vector ray = Vector.make(
-                                    dx + (double) sx/mSuperSample,
-                                    dy + (double) sy/mSuperSample,
-                                    -1);
-
-                                // Transform by camera.
-                                ray = mCameraInverse.transform(ray).subtract(eye);
-
-                                boolean debug = false;
-                                /// debug = x == width/2 && finalY == height/2; // Center
-                                /// debug = x == width - 1 && finalY == 0; // Upper-right
-                                /// debug = x == width*2/3 && finalY == height*2/3; // Off-center
-                                /// debug = x == width/2 && finalY == height*9/10; // Bottom center
-
-                                // Intersect with geometry.
-                                Intersection intersection = intersect(eye, ray, mBoundingBox, debug);
-
-                                // Determine color of pixel.
-                                Color color;
-                                if (intersection.getTriangle() == null) {
-                                    // Background.
-                                    color = new Color(1, 0.5, 0.75, 1);
-                                    color = new Color(1, 0, 0, 0);
-                                } else {
-                                    color = shade(rayTracer, ray, intersection, debug);
-                                }
-
-                                pixelColor = pixelColor.add(color);
+                        for (int x = 0; x < width; x++) {
+                            if (sampleCounts[y*width + x] == finalSample) {
+                                sums.add(x, y, traceSample(viewport.getEye(),
+                                            viewport.getJitteredRay(x, y, ox, oy), entryPoints,
+                                            tileStats, rayTracer));
+                                sampleCounts[y*width + x]++;
                             }
                         }
+                    }
+                });
+                addPassStats(totalStats);
+            }
+        } finally {
+            mCancellationToken = null;
+        }
+        mRenderStats = totalStats;
 
-                        image.setRGB(x, finalY, pixelColor.multiply(1.0/mSuperSample/mSuperSample).
-                                clamp().toArgb());
+        // Average the samples. Pixels without any take the color of the preview
+        // pixel of the smallest block they're in.
+        FrameBuffer frameBuffer = new FrameBuffer(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int spacing = 1; spacing <= PREVIEW_BLOCK_SIZE; spacing *= 2) {
+                    int px = x - x % spacing;
+                    int py = y - y % spacing;
+                    int sampleCount = sampleCounts[py*width + px];
+                    if (sampleCount > 0) {
+                        frameBuffer.set(x, y, sums.get(px, py).multiply(1.0/sampleCount));
+                        break;
                     }
+                }
+            }
+        }
 
-                    synchronized (completedRowsCount) {
-                        completedRowsCount.incrementAndGet();
+        return frameBuffer.toImage(mToneMapping);
+    }
 
-                        long now = System.currentTimeMillis();
-                        if (now - previousNotice.get() >= 1000) {
-                            previousNotice.set(now);
-                            int completedRows = completedRowsCount.get();
-                            long estimatedTimeLeft = Dates.estimateTimeLeft(beforeRenderTime,
-                                    now, completedRows, height);
-                            if (PRINT_RENDER_STATS) {
-                                System.out.printf("Completed %d rows of %d (%s left)%n",
-                                        completedRows, height,
-                                        Dates.durationToString(estimatedTimeLeft));
+    /**
+     * Like {@link #render}, but trace rays in stages over large batches instead of one
+     * sample at a time. All the primary rays of a batch of pixels are traced, then all
+     * their hits are shaded, then the rays that shading added are sorted by direction
+     * and traced. Materials that implement {@link DeferredRayMaterial} add their rays
+     * to the batch; others still trace their own while shading. Keeps the code and
+     * data of each stage in the cache. The denoiser and rasterized primary
+     * visibility aren't used.
+     */
+    public BufferedImage renderWavefront(final int width, final int height,
+            final float u, final float v,
+            final float du, final float dv) {
+
+        final Viewport viewport = new Viewport(u, v, du, dv);
+        mPixelSize = viewport.getPixelSize();
+        final DeferredRayMaterial deferredRayMaterial = mMaterial instanceof DeferredRayMaterial
+            ? (DeferredRayMaterial) mMaterial
+            : null;
+        final int pixelCount = width*height;
+        int samplesPerPixel = mSuperSample*mSuperSample;
+        int chunkSampleCount = WAVEFRONT_CHUNK_PIXELS*samplesPerPixel;
+        int maxRayCount = deferredRayMaterial == null ? 0 : deferredRayMaterial.getMaxRayCount();
+
+        // Make each wave as large as the ray budget allows.
+        int chunksPerWave = Math.max(1, WAVEFRONT_RAYS/chunkSampleCount/Math.max(1, maxRayCount));
+        chunksPerWave = Math.min(chunksPerWave,
+                (pixelCount + WAVEFRONT_CHUNK_PIXELS - 1)/WAVEFRONT_CHUNK_PIXELS);
+
+        // Reused by every wave. Samples are numbered within their chunk.
+        final RayQueue[] primaryQueues = new RayQueue[chunksPerWave];
+        final RayQueue[] secondaryQueues = new RayQueue[chunksPerWave];
+        final Intersection[][] hits = new Intersection[chunksPerWave][chunkSampleCount];
+        final Color[][] sampleColors = new Color[chunksPerWave][chunkSampleCount];
+        for (int chunk = 0; chunk < chunksPerWave; chunk++) {
+            primaryQueues[chunk] = new RayQueue(chunkSampleCount);
+            if (deferredRayMaterial != null) {
+                secondaryQueues[chunk] = new RayQueue(chunkSampleCount*maxRayCount);
+            }
+        }
+
+        FrameBuffer frameBuffer = new FrameBuffer(width, height);
+        RenderStats totalStats = new RenderStats();
+
+        for (int wavePixel = 0; wavePixel < pixelCount;
+                wavePixel += chunksPerWave*WAVEFRONT_CHUNK_PIXELS) {
+
+            final int firstPixel = wavePixel;
+            int chunkCount = Math.min(chunksPerWave,
+                    (pixelCount - firstPixel + WAVEFRONT_CHUNK_PIXELS - 1)/WAVEFRONT_CHUNK_PIXELS);
+
+            // Generate the primary rays and extend them to their hits.
+            renderRows(chunkCount, new RowRenderer() {
+                @Override // RowRenderer
+                public void renderRow(int chunk, RenderStats tileStats, RayTracer rayTracer) {
+                    RayQueue rayQueue = primaryQueues[chunk];
+                    rayQueue.clear();
+                    int chunkPixel = firstPixel + chunk*WAVEFRONT_CHUNK_PIXELS;
+                    int endPixel = Math.min(chunkPixel + WAVEFRONT_CHUNK_PIXELS, pixelCount);
+                    for (int pixel = chunkPixel; pixel < endPixel; pixel++) {
+                        for (int sy = 0; sy < mSuperSample; sy++) {
+                            for (int sx = 0; sx < mSuperSample; sx++) {
+                                rayQueue.add(viewport.getEye(),
+                                        viewport.getRay(pixel % width, pixel / width, sx, sy),
+                                        rayQueue.size(), BACKGROUND_COLOR);
                             }
                         }
                     }
 
+                    Intersection[] chunkHits = hits[chunk];
+                    for (int ray = 0; ray < rayQueue.size(); ray++) {
+                        chunkHits[ray] = intersect(rayQueue.getOrigin(ray),
+                                rayQueue.getDirection(ray), tileStats, false);
+                    }
                 }
             });
-        }
+            addPassStats(totalStats);
 
-        executorService.shutdown();
+            // Shade the hits, queueing the rays of deferred materials.
+            renderRows(chunkCount, new RowRenderer() {
+                @Override // RowRenderer
+                public void renderRow(int chunk, RenderStats tileStats, RayTracer rayTracer) {
+                    RayQueue primaryQueue = primaryQueues[chunk];
+                    RayQueue secondaryQueue = secondaryQueues[chunk];
+                    Intersection[] chunkHits = hits[chunk];
+                    Color[] colors = sampleColors[chunk];
+                    if (secondaryQueue != null) {
+                        secondaryQueue.clear();
+                    }
 
-        try {
-            executorService.awaitTermination(100, TimeUnit.DAYS);
-        } catch (InterruptedException e) {
-            System.out.println("Rendering interrupted...");
-            Thread.currentThread().interrupt();
-        }
+                    for (int sample = 0; sample < primaryQueue.size(); sample++) {
+                        Intersection intersection = chunkHits[sample];
+                        Vector ray = primaryQueue.getDirection(sample);
+                        if (intersection.getTriangle() == null) {
+                            colors[sample] = BACKGROUND_COLOR;
+                        } else if (deferredRayMaterial != null) {
+                            colors[sample] = deferredRayMaterial.addRays(ray, intersection,
+                                    mLightList, secondaryQueue, sample);
+                        } else {
+                            colors[sample] = shade(rayTracer, ray, intersection, false);
+                        }
+                        chunkHits[sample] = null;
+                    }
+                }
+            });
+            addPassStats(totalStats);
 
-        long afterTime = System.currentTimeMillis();
-        long renderTime = afterTime - beforeRenderTime;
+            // Extend the queued rays. Those that hit nothing add their color.
+            if (deferredRayMaterial != null) {
+                renderRows(chunkCount, new RowRenderer() {
+                    @Override // RowRenderer
+                    public void renderRow(int chunk, RenderStats tileStats, RayTracer rayTracer) {
+                        RayQueue rayQueue = secondaryQueues[chunk];
+                        Color[] colors = sampleColors[chunk];
+                        rayQueue.sortByOctant();
 
-        if (PRINT_RENDER_STATS) {
-            System.out.printf("Triangle intersections:      %,d (%.1f per pixel, %.1f per ray)%n",
-                    mTriangleIntersectionCount.get(),
-                    (double) mTriangleIntersectionCount.get() / width / height,
-                    (double) mTriangleIntersectionCount.get() / mRayCount.get());
-            System.out.printf("Render time:                 %,d ms%n", renderTime);
+                        for (int ray = 0; ray < rayQueue.size(); ray++) {
+                            Intersection intersection = intersect(rayQueue.getOrigin(ray),
+                                    rayQueue.getDirection(ray), tileStats, false);
+                            if (intersection.getTriangle() == null) {
+                                int sample = rayQueue.getSample(ray);
+                                colors[sample] = colors[sample].add(rayQueue.getColor(ray));
+                            }
+                        }
+                    }
+                });
+                addPassStats(totalStats);
+            }
+
+            // Average the samples of each pixel.
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                int chunkPixel = firstPixel + chunk*WAVEFRONT_CHUNK_PIXELS;
+                int endPixel = Math.min(chunkPixel + WAVEFRONT_CHUNK_PIXELS, pixelCount);
+                int sample = 0;
+                for (int pixel = chunkPixel; pixel < endPixel; pixel++) {
+                    Color pixelColor = Color.BLACK;
+                    for (int i = 0; i < samplesPerPixel; i++) {
+                        pixelColor = pixelColor.add(sampleColors[chunk][sample++]);
+                    }
+                    frameBuffer.set(pixel % width, pixel / width,
+                            pixelColor.multiply(1.0/mSuperSample/mSuperSample));
+                }
+            }
         }
+        mRenderStats = totalStats;
 
-        return image;
+        return frameBuffer.toImage(mToneMapping);
+    }
+
+    private boolean isCancelled() {
+        return mCancellationToken != null && mCancellationToken.isCancelled();
     }
 
     /**
-     * Return the result of intersecting a ray starting at r0 toward r.
+     * Add the stats of the pass that just finished to the total.
      */
-    private Intersection intersect(Vector r0, Vector r, BoundingBox boundingBox, boolean debug) {
-        mRayCount.incrementAndGet();
+    private void addPassStats(RenderStats totalStats) {
+        totalStats.merge(mRenderStats);
+    }
 
-        Intersection intersection = new Intersection();
+    /**
+     * Element "index" of the Halton sequence in this base, from 0 to 1. Successive
+     * elements are spread evenly, so they make good sample positions.
+     */
+    private static double getHalton(int index, int base) {
+        double result = 0;
+        double fraction = 1.0/base;
 
-        if (false) {
-            // Brute force.
-            for (Triangle triangle : mTriangleList) {
-                intersectTriangle(r0, r, triangle, intersection, debug);
-            }
-        } else {
-            // Use bounding boxes.
-            intersectBoundingBox(r0, r, boundingBox, intersection, debug);
+        while (index > 0) {
+            result += (index % base)*fraction;
+            index /= base;
+            fraction /= base;
         }
 
-        return intersection;
+        return result;
     }
 
     /**
-     * Intersect the ray (r0,r) with the triangle, updating "intersection"
-     * if necessary.
+     * Trace a primary ray and shade what it hits.
      */
-    private void intersectTriangle(Vector r0, Vector r, Triangle triangle,
-            Intersection intersection, boolean debug) {
+    private Color traceSample(Vector eye, Vector ray, EntryPoints entryPoints,
+            RenderStats stats, RayTracer rayTracer) {
 
-        // The plane is perpendicular to "normal" and goes through "v0".
-        Vector normal = triangle.getNormal();
-        boolean backfacing = normal.dot(r) > 0;
-        if (backfacing && mCullBackfacingTriangles) {
-            // Back-facing.
-            return;
-        }
+        Intersection intersection = intersect(eye, ray, entryPoints, stats, false);
 
-        mTriangleIntersectionCount.incrementAndGet();
+        return intersection.getTriangle() == null
+            ? BACKGROUND_COLOR
+            : shade(rayTracer, ray, intersection, false);
+    }
 
-        Vector v0 = triangle.get(0).getPoint();
-        Vector v1 = triangle.get(1).getPoint();
-        Vector v2 = triangle.get(2).getPoint();
+    /**
+     * Trace and shade row y of the image, putting the colors into row frameBufferY
+     * of the frame buffer.
+     */
+    private void renderPixelRow(Viewport viewport, int y, int width, int height,
+            RenderStats tileStats, RayTracer rayTracer, FrameBuffer frameBuffer,
+            int frameBufferY) {
 
-        // Intersect with plane.
-        double denom = normal.dot(r);
-        if (denom != 0) {
-            double t = -normal.dot(r0.subtract(v0)) / denom;
+        Intersection[] rowIntersections = intersectRow(viewport, y, width, tileStats);
+        EntryPoints entryPoints = findEntryPoints(viewport.getRowFrustum(y, width));
+        ColorAccumulator pixelColor = new ColorAccumulator();
+        ColorAccumulator color = new ColorAccumulator();
 
-            // See if the plane is closer than what we have so far, but not
-            // behind us.
-            if (t > 0 && t < intersection.getMinT()) {
-                // See if we're inside the triangle.
-                Vector p = r0.add(r.multiply(t));
+        for (int x = 0; x < width; x++) {
+            pixelColor.set(Color.BLACK);
 
-                // We must be on the same side of all lines.
-                Vector c1 = v0.subtract(v1).cross(p.subtract(v0));
-                Vector c2 = v1.subtract(v2).cross(p.subtract(v1));
-                Vector c3 = v2.subtract(v0).cross(p.subtract(v2));
+            for (int sy = 0; sy < mSuperSample; sy++) {
+                for (int sx = 0; sx < mSuperSample; sx++) {
+                    Vector ray = viewport.getRay(x, y, sx, sy);
 
-                boolean dot1 = c1.dot(normal) >= 0;
-                boolean dot2 = c2.dot(normal) >= 0;
-                boolean dot3 = c3.dot(normal) >= 0;
+                    boolean debug = false;
+                    /// debug = x == width/2 && y == height/2; // Center
+                    /// debug = x == width - 1 && y == 0; // Upper-right
+                    /// debug = x == width*2/3 && y == height*2/3; // Off-center
+                    /// debug = x == width/2 && y == height*9/10; // Bottom center
 
-                if (dot1 == dot2 && dot2 == dot3) {
-                    intersection.update(triangle, p, t, backfacing);
+                    // Intersect with geometry.
+                    Intersection intersection = rowIntersections != null
+                        ? rowIntersections[getRowSample(x, sx, sy)]
+                        : intersect(viewport.getEye(), ray, entryPoints, tileStats, debug);
+
+                    // Determine color of pixel.
+                    if (intersection.getTriangle() == null) {
+                        color.set(BACKGROUND_COLOR);
+                    } else {
+                        shade(rayTracer, ray, intersection, color, debug);
+                    }
+
+                    pixelColor.add(color);
                 }
             }
+
+            pixelColor.multiply(1.0/mSuperSample/mSuperSample);
+            frameBuffer.set(x, frameBufferY, pixelColor);
         }
     }
 
     /**
-     * Intersect the ray (r0,r) with the bounding box (and its contents), updating
-     * "intersection" if necessary.
+     * Trace the primary rays of an image, like {@link #render}, but instead of shading
+     * the hits, record them in a G-buffer. The G-buffer can then be shaded with
+     * {@link #shade(GBuffer)} any number of times as the material and lights change,
+     * without re-tracing. It's only valid as long as the geometry and camera don't change.
      */
-    private void intersectBoundingBox(Vector r0, Vector r, BoundingBox boundingBox,
-            Intersection intersection, boolean debug) {
+    public GBuffer renderGBuffer(final int width, final int height,
+            final float u, final float v,
+            final float du, final float dv) {
 
-        if (boundingBox.intersectsRay(r0, r, intersection.getMinT(), debug)) {
-            List<BoundingBox> childList = boundingBox.getChildList();
+        final Viewport viewport = new Viewport(u, v, du, dv);
+        mPixelSize = viewport.getPixelSize();
+        final GBuffer gBuffer = new GBuffer(width, height, mSuperSample, viewport.getEye());
+        buildTriangleIndexMap();
 
-            if (childList.isEmpty()) {
-                // Leaf node, intersect all triangles.
-                if (debug) {
+        renderRows(height, new RowRenderer() {
+            @Override // RowRenderer
+            public void renderRow(int y, RenderStats tileStats, RayTracer rayTracer) {
+                Intersection[] rowIntersections = intersectRow(viewport, y, width, tileStats);
+                EntryPoints entryPoints = findEntryPoints(viewport.getRowFrustum(y, width));
+
+                for (int x = 0; x < width; x++) {
+                    for (int sy = 0; sy < mSuperSample; sy++) {
+                        for (int sx = 0; sx < mSuperSample; sx++) {
+                            Intersection intersection = rowIntersections != null
+                                ? rowIntersections[getRowSample(x, sx, sy)]
+                                : intersect(viewport.getEye(), viewport.getRay(x, y, sx, sy),
+                                        entryPoints, tileStats, false);
+
+                            Triangle triangle = intersection.getTriangle();
+                            Instance instance = intersection.getInstance();
+                            if (instance != null) {
+                                gBuffer.set(x, y, sy*mSuperSample + sx,
+                                        instance.getMesh().getTriangleIndex(triangle),
+                                        instance.getIndex(), intersection);
+                            } else if (triangle != null) {
+                                gBuffer.set(x, y, sy*mSuperSample + sx,
+                                        getTriangleId(intersection),
+                                        GBuffer.NO_INSTANCE, intersection);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+
+        return gBuffer;
+    }
+
+    /**
+     * Make the same G-buffer as {@link #renderGBuffer}, but by rasterizing the
+     * triangles with a z-buffer instead of tracing a ray per sample. The hits are
+     * the same except for samples on the edge between two triangles. Instances are
+     * rasterized at the level of detail that primary rays would trace. Out-of-core
+     * scenes are traced instead, since their triangles can't all be visited.
+     */
+    public GBuffer rasterizeGBuffer(final int width, final int height,
+            final float u, final float v,
+            final float du, final float dv) {
+
+        if (mOutOfCoreScene != null) {
+            return renderGBuffer(width, height, u, v, du, dv);
+        }
+
+        Viewport viewport = new Viewport(u, v, du, dv);
+        mPixelSize = viewport.getPixelSize();
+        final GBuffer gBuffer = new GBuffer(width, height, mSuperSample, viewport.getEye());
+        final Rasterizer rasterizer = new Rasterizer(width, height, mSuperSample,
+                mCamera, viewport.getEye(), viewport.getCameraXs(width),
+                viewport.getCameraYs(height), mCullBackfacingTriangles);
+
+        // Project everything.
+        if (mPackedHierarchy != null) {
+            for (int i = 0; i < mPackedHierarchy.getTriangleCount(); i++) {
+                if (!mPackedHierarchy.isRepeated(i)) {
+                    rasterizer.addTriangle(getTriangle(i), i, null);
+                }
+            }
+        } else {
+            List<Triangle> triangleList = mBoundingBox.getTriangleList();
+            for (int i = 0; i < triangleList.size(); i++) {
+                rasterizer.addTriangle(triangleList.get(i), i, null);
+            }
+        }
+        for (Instance instance : mInstanceList) {
+            Mesh mesh = instance.getMesh();
+            int level = getLevel(instance, viewport.getEye());
+            for (Triangle triangle : mesh.getBoundingBox(level).getTriangleList()) {
+                rasterizer.addTriangle(triangle, mesh.getTriangleIndex(triangle), instance);
+            }
+        }
+
+        // Each band of rows is a task.
+        renderRows(rasterizer.getBandCount(), new RowRenderer() {
+            @Override // RowRenderer
+            public void renderRow(int band, RenderStats tileStats, RayTracer rayTracer) {
+                rasterizer.rasterizeBand(band, gBuffer, tileStats);
+            }
+        });
+
+        return gBuffer;
+    }
+
+    /**
+     * Shade a G-buffer made by {@link #renderGBuffer} with the current material and
+     * lights, then denoise it if there's a denoiser. Only secondary rays that the
+     * material fires are traced.
+     */
+    public BufferedImage shade(final GBuffer gBuffer) {
+        final int width = gBuffer.getWidth();
+        final int height = gBuffer.getHeight();
+        final int sampleCount = gBuffer.getSampleCount();
+        final Vector eye = gBuffer.getEye();
+        final FrameBuffer frameBuffer = new FrameBuffer(width, height);
+
+        renderRows(height, new RowRenderer() {
+            @Override // RowRenderer
+            public void renderRow(int y, RenderStats tileStats, RayTracer rayTracer) {
+                ColorAccumulator pixelColor = new ColorAccumulator();
+                ColorAccumulator color = new ColorAccumulator();
+
+                for (int x = 0; x < width; x++) {
+                    pixelColor.set(Color.BLACK);
+
+                    for (int sample = 0; sample < sampleCount; sample++) {
+                        int triangleId = gBuffer.getTriangleId(x, y, sample);
+
+                        // Background is black, so only add hits.
+                        if (triangleId != GBuffer.NO_TRIANGLE) {
+                            int instanceId = gBuffer.getInstanceId(x, y, sample);
+                            Intersection intersection;
+                            if (instanceId == GBuffer.NO_INSTANCE) {
+                                intersection = gBuffer.getIntersection(x, y, sample,
+                                        getTriangle(triangleId), null);
+                            } else {
+                                Instance instance = mInstanceList.get(instanceId);
+                                intersection = gBuffer.getIntersection(x, y, sample,
+                                        instance.getMesh().getTriangle(triangleId), instance);
+                            }
+                            Vector ray = intersection.getPoint().subtract(eye);
+
+                            shade(rayTracer, ray, intersection, color, false);
+                            pixelColor.add(color);
+                        }
+                    }
+
+                    pixelColor.multiply(1.0/sampleCount);
+                    frameBuffer.set(x, y, pixelColor);
+                }
+            }
+        });
+
+        if (mDenoiser != null) {
+            long beforeTime = System.currentTimeMillis();
+            mDenoiser.denoise(frameBuffer, gBuffer, mExecutorService);
+            mRenderStats.setDenoiseTimeMs(System.currentTimeMillis() - beforeTime);
+        }
+
+        return frameBuffer.toImage(mToneMapping);
+    }
+
+    /**
+     * Work done for each row of an image, on one of the render threads.
+     */
+    private interface RowRenderer {
+        /**
+         * Render row y. The stats and ray tracer belong to this row only.
+         */
+        void renderRow(int y, RenderStats tileStats, RayTracer rayTracer);
+    }
+
+    /**
+     * Run the row renderer on every row, in parallel, and wait for them all.
+     * Records the stats of the run in mRenderStats.
+     */
+    private void renderRows(final int height, final RowRenderer rowRenderer) {
+        renderRows(height, rowRenderer, null);
+    }
+
+    /**
+     * Like {@link #renderRows(int, RowRenderer)}, but also run skippedRowListener,
+     * if not null, for each row that is skipped because rendering was interrupted
+     * or cancelled.
+     */
+    private void renderRows(final int height, final RowRenderer rowRenderer,
+            final Runnable skippedRowListener) {
+
+        int availableProcessors = Runtime.getRuntime().availableProcessors();
+        /// availableProcessors = 1;
+        if (PRINT_RENDER_STATS) {
+            System.out.println("Parallelizing across " + availableProcessors + " processors");
+        }
+        ExecutorService executorService = mExecutorService;
+        boolean ownExecutorService = executorService == null;
+        if (ownExecutorService) {
+            executorService = Executors.newFixedThreadPool(availableProcessors);
+        }
+
+        final RenderStats renderStats = new RenderStats();
+        // Only the first render after a build reports it, so that merging the stats
+        // of several renders counts it once.
+        renderStats.setBuildTimeMs(mBuildTimeMs);
+        mBuildTimeMs = 0;
+        final AtomicInteger completedRowsCount = new AtomicInteger();
+
+        final long beforeRenderTime = System.currentTimeMillis();
+        final AtomicLong previousNotice = new AtomicLong();
+        previousNotice.set(beforeRenderTime);
+        final CancellationToken cancellationToken = mCancellationToken;
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        // A shared executor outlives the render, so count finished rows instead of
+        // waiting for termination.
+        final CountDownLatch remainingRows = new CountDownLatch(height);
+
+        for (int y = 0; y < height; y++) {
+            final int finalY = y;
+
+            // Submit entire rows to the executor.
+            executorService.submit(new Runnable() {
+                public void run() {
+                    try {
+                        renderRow();
+                    } finally {
+                        remainingRows.countDown();
+                    }
+                }
+
+                private void renderRow() {
+                    // Drain the queue quickly once cancelled.
+                    if (interrupted.get()
+                            || (cancellationToken != null && cancellationToken.isCancelled())) {
+
+                        synchronized (completedRowsCount) {
+                            renderStats.addSkippedTile();
+                        }
+                        if (skippedRowListener != null) {
+                            skippedRowListener.run();
+                        }
+                        return;
+                    }
+
+                    long beforeTileTime = System.nanoTime();
+
+                    // Each row keeps its own stats and ray tracer so that the inner
+                    // loops never touch shared counters.
+                    RenderStats tileStats = new RenderStats();
+                    RayTracer rayTracer = makeRayTracer(tileStats);
+
+                    rowRenderer.renderRow(finalY, tileStats, rayTracer);
+
+                    tileStats.addTile(System.nanoTime() - beforeTileTime);
+
+                    synchronized (completedRowsCount) {
+                        completedRowsCount.incrementAndGet();
+                        renderStats.merge(tileStats);
+
+                        long now = System.currentTimeMillis();
+                        if (now - previousNotice.get() >= 1000) {
+                            previousNotice.set(now);
+                            int completedRows = completedRowsCount.get();
+                            long estimatedTimeLeft = Dates.estimateTimeLeft(beforeRenderTime,
+                                    now, completedRows, height);
+                            if (PRINT_RENDER_STATS) {
+                                System.out.printf("Completed %d rows of %d (%s left)%n",
+                                        completedRows, height,
+                                        Dates.durationToString(estimatedTimeLeft));
+                            }
+                        }
+                    }
+
+                }
+            });
+        }
+
+        if (ownExecutorService) {
+            executorService.shutdown();
+        }
+
+        // Rows that are already being rendered still write into the image, so wait for
+        // them even when interrupted. The rest are skipped.
+        while (remainingRows.getCount() > 0) {
+            try {
+                remainingRows.await();
+            } catch (InterruptedException e) {
+                System.out.println("Rendering interrupted...");
+                interrupted.set(true);
+            }
+        }
+        if (interrupted.get()) {
+            Thread.currentThread().interrupt();
+        }
+
+        long afterTime = System.currentTimeMillis();
+        long renderTime = afterTime - beforeRenderTime;
+
+        // All tasks have merged their stats by now.
+        synchronized (completedRowsCount) {
+            renderStats.setRenderTime(renderTime, availableProcessors);
+            mRenderStats = renderStats;
+        }
+
+        if (PRINT_RENDER_STATS) {
+            renderStats.print();
+        }
+    }
+
+    /**
+     * Maps pixels of an image to primary rays for the current camera and field of view.
+     */
+    private class Viewport {
+        private final float mU;
+        private final float mV;
+        private final float mDu;
+        private final float mDv;
+        private final Vector mEye;
+        private final double mLeft;
+        private final double mRight;
+        private final double mBottom;
+        private final double mTop;
+
+        Viewport(float u, float v, float du, float dv) {
+            mU = u;
+            mV = v;
+            mDu = du;
+            mDv = dv;
+            mEye = mCameraInverse.transform(Vector.make(0, 0, 0));
+
+            // Calculate the sides of the full frame based on the FOV and assume a Z component
+            // of 1.
+            mRight = Math.tan(mHorizontalFov/2);
+            mLeft = -mRight;
+            mTop = Math.tan(mVerticalFov/2);
+            mBottom = -mTop;
+        }
+
+        /**
+         * The position of the eye in world space.
+         */
+        Vector getEye() {
+            return mEye;
+        }
+
+        /**
+         * The size of a pixel on the image plane, which is at distance 1 from the eye.
+         */
+        double getPixelSize() {
+            return Math.min(mDu*(mRight - mLeft), mDv*(mTop - mBottom));
+        }
+
+        /**
+         * The world-space direction of the ray through sample (sx,sy) of pixel (x,y).
+         * Not normalized.
+         */
+        Vector getRay(int x, int y, int sx, int sy) {
+            return getRay(getCameraX(x, sx), getCameraY(y, sy));
+        }
+
+        /**
+         * The world-space direction of the ray through (dx,dy) on the camera's
+         * image plane, which is at z = -1.
+         */
+        private Vector getRay(double dx, double dy) {
+            Vector ray = Vector.make(dx, dy, -1);
+
+            // Transform by camera.
+            return mCameraInverse.transform(ray).subtract(mEye);
+        }
+
+        /**
+         * The world-space direction of the ray through (x + ox, y + oy), where the
+         * offsets are fractions of a pixel. Zero offsets give the ray of sample (0,0).
+         */
+        Vector getJitteredRay(int x, int y, double ox, double oy) {
+            return getRay(getCameraX(x, 0) + ox*mDu*(mRight - mLeft),
+                    getCameraY(y, 0) + oy*mDv*(mTop - mBottom));
+        }
+
+        private double getCameraX(int x, int sx) {
+            return mLeft + (mU + mDu*x)*(mRight - mLeft) + (double) sx/mSuperSample;
+        }
+
+        private double getCameraY(int y, int sy) {
+            return mBottom + (mV + mDv*y)*(mTop - mBottom) + (double) sy/mSuperSample;
+        }
+
+        /**
+         * The image plane x of every sample column, at index x*superSample + sx.
+         */
+        double[] getCameraXs(int width) {
+            double[] cameraXs = new double[width*mSuperSample];
+            for (int x = 0; x < width; x++) {
+                for (int sx = 0; sx < mSuperSample; sx++) {
+                    cameraXs[x*mSuperSample + sx] = getCameraX(x, sx);
+                }
+            }
+
+            return cameraXs;
+        }
+
+        /**
+         * The image plane y of every sample row, at index y*superSample + sy.
+         */
+        double[] getCameraYs(int height) {
+            double[] cameraYs = new double[height*mSuperSample];
+            for (int y = 0; y < height; y++) {
+                for (int sy = 0; sy < mSuperSample; sy++) {
+                    cameraYs[y*mSuperSample + sy] = getCameraY(y, sy);
+                }
+            }
+
+            return cameraYs;
+        }
+
+        /**
+         * The frustum that contains all samples of row y.
+         */
+        Frustum getRowFrustum(int y, int width) {
+            // The sample positions are linear in the pixel and sample indices, so
+            // the extremes are at the ends.
+            return makeFrustum(getCameraX(0, 0), getCameraX(width - 1, mSuperSample - 1),
+                    getCameraY(y, 0), getCameraY(y, mSuperSample - 1));
+        }
+
+        /**
+         * The frustum that contains all rays of {@link #getJitteredRay} for row y.
+         */
+        Frustum getJitteredRowFrustum(int y, int width) {
+            return makeFrustum(getCameraX(0, 0), getCameraX(width, 0),
+                    getCameraY(y, 0), getCameraY(y + 1, 0));
+        }
+
+        /**
+         * The frustum through the rectangle with corners (x1,y1) and (x2,y2) on the
+         * image plane.
+         */
+        private Frustum makeFrustum(double x1, double x2, double y1, double y2) {
+            double minX = Math.min(x1, x2);
+            double maxX = Math.max(x1, x2);
+            double minY = Math.min(y1, y2);
+            double maxY = Math.max(y1, y2);
+
+            return new Frustum(mEye, new Vector[] {
+                getRay(minX, minY), getRay(maxX, minY), getRay(maxX, maxY), getRay(minX, maxY)
+            });
+        }
+    }
+
+    /**
+     * Create a RayTracer object that shaders can use to trace more rays in
+     * the scene. Its rays are counted in "stats", so it must only be used
+     * by one thread. Package-private for the benchmarks.
+     */
+    RayTracer makeRayTracer(final RenderStats stats) {
+        return new RayTracer() {
+            // Reused by all occlusion rays, since a ray tracer is only used by one thread.
+            private final Intersection mOcclusionIntersection = new Intersection();
+
+            @Override // RayTracer
+            public Intersection intersect(Vector r0, Vector r, boolean debug) {
+                return Renderer.this.intersect(r0, r, stats, debug);
+            }
+
+            @Override // RayTracer
+            public boolean isOccluded(double ox, double oy, double oz,
+                    double dx, double dy, double dz, boolean debug) {
+
+                return Renderer.this.isOccluded(ox, oy, oz, dx, dy, dz,
+                        mOcclusionIntersection, stats, debug);
+            }
+
+            @Override // RayTracer
+            public Color shade(Vector eye, Intersection intersection, boolean debug) {
+                return Renderer.this.shade(this, eye, intersection, debug);
+            }
+        };
+    }
+
+    /**
+     * For out-of-core scenes, intersect all the primary rays of row y at once, so
+     * that each chunk of the scene is visited once for the whole row. Returns the
+     * intersections indexed by {@link #getRowSample}, or null for in-memory scenes,
+     * whose rays are traced one at a time.
+     */
+    private Intersection[] intersectRow(Viewport viewport, int y, int width,
+            RenderStats stats) {
+
+        if (mOutOfCoreScene == null) {
+            return null;
+        }
+
+        int count = width*mSuperSample*mSuperSample;
+        Vector[] r0s = new Vector[count];
+        Vector[] rs = new Vector[count];
+        Intersection[] intersections = new Intersection[count];
+        for (int x = 0; x < width; x++) {
+            for (int sy = 0; sy < mSuperSample; sy++) {
+                for (int sx = 0; sx < mSuperSample; sx++) {
+                    int i = getRowSample(x, sx, sy);
+                    r0s[i] = viewport.getEye();
+                    rs[i] = viewport.getRay(x, y, sx, sy);
+                    intersections[i] = new Intersection();
+                    stats.addRay();
+                }
+            }
+        }
+
+        mOutOfCoreScene.intersect(r0s, rs, intersections, mCullBackfacingTriangles, stats);
+
+        if (mInstanceBox != null) {
+            for (int i = 0; i < count; i++) {
+                intersectInstanceBox(r0s[i], rs[i], mInstanceBox, intersections[i], stats, false);
+            }
+        }
+
+        return intersections;
+    }
+
+    /**
+     * Index of sample (sx,sy) of pixel x in the array returned by {@link #intersectRow}.
+     */
+    private int getRowSample(int x, int sx, int sy) {
+        return (x*mSuperSample + sy)*mSuperSample + sx;
+    }
+
+    /**
+     * Where the primary rays of a frustum start traversing the hierarchy of the
+     * non-instanced triangles, so that they skip the top nodes and the subtrees
+     * outside the frustum. Only one of the fields is set, depending on the
+     * hierarchy's format.
+     */
+    private static class EntryPoints {
+        List<BoundingBox> mBoundingBoxes = null;
+        PackedHierarchy.EntryNodes mEntryNodes = null;
+    }
+
+    /**
+     * Find the entry points of rays in the frustum, or null if the rays must
+     * start at the root.
+     */
+    private EntryPoints findEntryPoints(final Frustum frustum) {
+        if (mOutOfCoreScene != null) {
+            return null;
+        }
+
+        EntryPoints entryPoints = new EntryPoints();
+        if (mPackedHierarchy != null) {
+            entryPoints.mEntryNodes = mPackedHierarchy.findEntryNodes(frustum);
+        } else {
+            // Open nodes breadth-first until there would be too many.
+            List<BoundingBox> boundingBoxes = new ArrayList<BoundingBox>();
+            List<BoundingBox> pendingList = new ArrayList<BoundingBox>();
+            pendingList.add(mBoundingBox);
+            while (!pendingList.isEmpty()) {
+                BoundingBox boundingBox = pendingList.remove(0);
+                if (!frustum.intersectsBox(boundingBox.getMin(), boundingBox.getMax())) {
+                    continue;
+                }
+
+                List<BoundingBox> childList = boundingBox.getChildList();
+                if (childList.isEmpty() || boundingBoxes.size() + pendingList.size() +
+                        childList.size() > MAX_ENTRY_BOXES) {
+
+                    boundingBoxes.add(boundingBox);
+                } else {
+                    pendingList.addAll(childList);
+                }
+            }
+
+            // Sort them front to back, since rays can then skip boxes past their first hit.
+            Collections.sort(boundingBoxes, new Comparator<BoundingBox>() {
+                @Override // Comparator
+                public int compare(BoundingBox boundingBox1, BoundingBox boundingBox2) {
+                    return Double.compare(
+                            frustum.getDistance(boundingBox1.getMin(), boundingBox1.getMax()),
+                            frustum.getDistance(boundingBox2.getMin(), boundingBox2.getMax()));
+                }
+            });
+            entryPoints.mBoundingBoxes = boundingBoxes;
+        }
+
+        return entryPoints;
+    }
+
+    /**
+     * Return the result of intersecting a ray starting at r0 toward r.
+     */
+    private Intersection intersect(Vector r0, Vector r, RenderStats stats, boolean debug) {
+        return intersect(r0, r, null, stats, debug);
+    }
+
+    /**
+     * Return the result of intersecting a ray starting at r0 toward r. If the entry
+     * points aren't null, the ray must be inside the frustum they were found for.
+     */
+    private Intersection intersect(Vector r0, Vector r, EntryPoints entryPoints,
+            RenderStats stats, boolean debug) {
+
+        stats.addRay();
+
+        Intersection intersection = new Intersection();
+
+        if (false) {
+            // Brute force.
+            for (Triangle triangle : mTriangleList) {
+                intersectTriangle(r0, r, triangle, intersection, stats, debug);
+            }
+        } else if (mOutOfCoreScene != null) {
+            mOutOfCoreScene.intersect(r0, r, intersection, mCullBackfacingTriangles, stats);
+        } else if (mPackedHierarchy != null) {
+            if (entryPoints != null) {
+                mPackedHierarchy.intersect(r0, r, intersection, mCullBackfacingTriangles, stats,
+                        entryPoints.mEntryNodes);
+            } else {
+                mPackedHierarchy.intersect(r0, r, intersection, mCullBackfacingTriangles, stats);
+            }
+        } else if (entryPoints != null) {
+            for (BoundingBox boundingBox : entryPoints.mBoundingBoxes) {
+                intersectBoundingBox(r0, r, boundingBox, intersection, stats, debug);
+            }
+        } else {
+            // Use bounding boxes.
+            intersectBoundingBox(r0, r, mBoundingBox, intersection, stats, debug);
+        }
+
+        if (mInstanceBox != null) {
+            intersectInstanceBox(r0, r, mInstanceBox, intersection, stats, debug);
+        }
+
+        return intersection;
+    }
+
+    /**
+     * Whether the ray from (ox,oy,oz) toward (dx,dy,dz) hits anything. Stops at the
+     * first hit found. The intersection is reset and used as scratch, so that reusing
+     * one for many rays allocates nothing.
+     */
+    private boolean isOccluded(double ox, double oy, double oz, double dx, double dy, double dz,
+            Intersection intersection, RenderStats stats, boolean debug) {
+
+        stats.addRay();
+        intersection.reset();
+
+        if (mOutOfCoreScene != null) {
+            if (mOutOfCoreScene.isOccluded(ox, oy, oz, dx, dy, dz, intersection,
+                        mCullBackfacingTriangles, stats)) {
+
+                return true;
+            }
+        } else if (mPackedHierarchy != null) {
+            if (mPackedHierarchy.isOccluded(ox, oy, oz, dx, dy, dz, intersection,
+                        mCullBackfacingTriangles, stats)) {
+
+                return true;
+            }
+        } else if (mBoundingBox != null) {
+            if (isOccluded(ox, oy, oz, dx, dy, dz, mBoundingBox, stats)) {
+                return true;
+            }
+        }
+
+        return mInstanceBox != null && isOccluded(ox, oy, oz, dx, dy, dz, mInstanceBox, stats);
+    }
+
+    /**
+     * Whether the ray hits any triangle in the bounding box (and its contents).
+     */
+    private boolean isOccluded(double ox, double oy, double oz, double dx, double dy, double dz,
+            BoundingBox boundingBox, RenderStats stats) {
+
+        stats.addNodeVisit();
+
+        // Skip subtrees that can only contain culled triangles.
+        if (mCullBackfacingTriangles
+                && boundingBox.isBackfacing(dx, dy, dz, Math.sqrt(dx*dx + dy*dy + dz*dz))) {
+
+            stats.addCulledSubtree();
+            return false;
+        }
+
+        if (!boundingBox.intersectsRay(ox, oy, oz, dx, dy, dz, Double.MAX_VALUE)) {
+            return false;
+        }
+
+        // Index the lists so that no iterators are made.
+        List<BoundingBox> childList = boundingBox.getChildList();
+        if (childList.isEmpty()) {
+            List<Triangle> triangleList = boundingBox.getTriangleList();
+            for (int i = 0; i < triangleList.size(); i++) {
+                if (isOccluded(ox, oy, oz, dx, dy, dz, triangleList.get(i), stats)) {
+                    return true;
+                }
+            }
+        } else {
+            for (int i = 0; i < childList.size(); i++) {
+                if (isOccluded(ox, oy, oz, dx, dy, dz, childList.get(i), stats)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Whether the ray hits the triangle. Same test as {@link #intersectTriangle}.
+     */
+    private boolean isOccluded(double ox, double oy, double oz, double dx, double dy, double dz,
+            Triangle triangle, RenderStats stats) {
+
+        Vector normal = triangle.getNormal();
+        double nx = normal.get(0);
+        double ny = normal.get(1);
+        double nz = normal.get(2);
+        double denom = nx*dx + ny*dy + nz*dz;
+        if (denom > 0 && mCullBackfacingTriangles) {
+            // Back-facing.
+            return false;
+        }
+
+        stats.addTriangleTest();
+        if (denom == 0) {
+            return false;
+        }
+
+        Vector v0 = triangle.get(0).getPoint();
+        Vector v1 = triangle.get(1).getPoint();
+        Vector v2 = triangle.get(2).getPoint();
+        double v0x = v0.get(0);
+        double v0y = v0.get(1);
+        double v0z = v0.get(2);
+        double t = -(nx*(ox - v0x) + ny*(oy - v0y) + nz*(oz - v0z)) / denom;
+        if (t <= 0) {
+            return false;
+        }
+
+        // We must be on the same side of all lines.
+        double px = ox + dx*t;
+        double py = oy + dy*t;
+        double pz = oz + dz*t;
+        double v1x = v1.get(0);
+        double v1y = v1.get(1);
+        double v1z = v1.get(2);
+        double v2x = v2.get(0);
+        double v2y = v2.get(1);
+        double v2z = v2.get(2);
+        boolean side1 = PackedHierarchy.edgeSide(v0x - v1x, v0y - v1y, v0z - v1z,
+                px - v0x, py - v0y, pz - v0z, nx, ny, nz);
+        boolean side2 = PackedHierarchy.edgeSide(v1x - v2x, v1y - v2y, v1z - v2z,
+                px - v1x, py - v1y, pz - v1z, nx, ny, nz);
+        boolean side3 = PackedHierarchy.edgeSide(v2x - v0x, v2y - v0y, v2z - v0z,
+                px - v2x, py - v2y, pz - v2z, nx, ny, nz);
+
+        return side1 == side2 && side2 == side3;
+    }
+
+    /**
+     * Whether the ray hits any instance in the box (and its children).
+     */
+    private boolean isOccluded(double ox, double oy, double oz, double dx, double dy, double dz,
+            InstanceBox instanceBox, RenderStats stats) {
+
+        stats.addNodeVisit();
+        if (!instanceBox.intersectsRay(ox, oy, oz, dx, dy, dz, Double.MAX_VALUE)) {
+            return false;
+        }
+
+        List<InstanceBox> childList = instanceBox.getChildList();
+        if (childList.isEmpty()) {
+            List<Instance> instanceList = instanceBox.getInstanceList();
+            for (int i = 0; i < instanceList.size(); i++) {
+                Instance instance = instanceList.get(i);
+                int level = getLevel(instance, ox, oy, oz);
+
+                if (isOccluded(instance.pointToMesh(0, ox, oy, oz),
+                            instance.pointToMesh(1, ox, oy, oz),
+                            instance.pointToMesh(2, ox, oy, oz),
+                            instance.vectorToMesh(0, dx, dy, dz),
+                            instance.vectorToMesh(1, dx, dy, dz),
+                            instance.vectorToMesh(2, dx, dy, dz),
+                            instance.getMesh().getBoundingBox(level), stats)) {
+
+                    return true;
+                }
+            }
+        } else {
+            for (int i = 0; i < childList.size(); i++) {
+                if (isOccluded(ox, oy, oz, dx, dy, dz, childList.get(i), stats)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Give G-buffers a way to refer to the tree's triangles by their index, if that
+     * hasn't been done since the last build. Packed hierarchies have their own indices.
+     * Must be called before the render threads start.
+     */
+    private void buildTriangleIndexMap() {
+        if (mBoundingBox != null && mTriangleIndexMap.isEmpty()) {
+            List<Triangle> finalTriangleList = mBoundingBox.getTriangleList();
+            for (int i = 0; i < finalTriangleList.size(); i++) {
+                mTriangleIndexMap.put(finalTriangleList.get(i), i);
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the intersection's non-instanced triangle, for G-buffers.
+     * Call {@link #buildTriangleIndexMap} first.
+     */
+    private int getTriangleId(Intersection intersection) {
+        if (mOutOfCoreScene != null || mPackedHierarchy != null) {
+            return intersection.getTriangleId();
+        } else {
+            return mTriangleIndexMap.get(intersection.getTriangle());
+        }
+    }
+
+    /**
+     * Returns the non-instanced triangle with this index, as returned by
+     * {@link #getTriangleId}.
+     */
+    private Triangle getTriangle(int triangleId) {
+        if (mOutOfCoreScene != null || mPackedHierarchy != null) {
+            try {
+                return mOutOfCoreScene != null
+                    ? mOutOfCoreScene.getTriangle(triangleId)
+                    : mPackedHierarchy.getTriangle(triangleId);
+            } catch (DegenerateTriangleException e) {
+                // Can't happen, the hierarchy only stores good triangles.
+                throw new IllegalStateException(e);
+            }
+        } else {
+            return mBoundingBox.getTriangleList().get(triangleId);
+        }
+    }
+
+    /**
+     * Intersect the ray (r0,r) with the triangle, updating "intersection"
+     * if necessary. Package-private for the benchmarks.
+     */
+    void intersectTriangle(Vector r0, Vector r, Triangle triangle,
+            Intersection intersection, RenderStats stats, boolean debug) {
+
+        // The plane is perpendicular to "normal" and goes through "v0".
+        Vector normal = triangle.getNormal();
+        boolean backfacing = normal.dot(r) > 0;
+        if (backfacing && mCullBackfacingTriangles) {
+            // Back-facing.
+            return;
+        }
+
+        stats.addTriangleTest();
+
+        Vector v0 = triangle.get(0).getPoint();
+        Vector v1 = triangle.get(1).getPoint();
+        Vector v2 = triangle.get(2).getPoint();
+
+        // Intersect with plane.
+        double denom = normal.dot(r);
+        if (denom != 0) {
+            double t = -normal.dot(r0.subtract(v0)) / denom;
+
+            // See if the plane is closer than what we have so far, but not
+            // behind us.
+            if (t > 0 && t < intersection.getMinT()) {
+                // See if we're inside the triangle.
+                Vector p = r0.add(r.multiply(t));
+
+                // We must be on the same side of all lines.
+                Vector c1 = v0.subtract(v1).cross(p.subtract(v0));
+                Vector c2 = v1.subtract(v2).cross(p.subtract(v1));
+                Vector c3 = v2.subtract(v0).cross(p.subtract(v2));
+
+                boolean dot1 = c1.dot(normal) >= 0;
+                boolean dot2 = c2.dot(normal) >= 0;
+                boolean dot3 = c3.dot(normal) >= 0;
+
+                if (dot1 == dot2 && dot2 == dot3) {
+                    intersection.update(triangle, p, t, backfacing);
+                }
+            }
+        }
+    }
+
+    /**
+     * Intersect the ray (r0,r) with the bounding box (and its contents), updating
+     * "intersection" if necessary.
+     */
+    private void intersectBoundingBox(Vector r0, Vector r, BoundingBox boundingBox,
+            Intersection intersection, RenderStats stats, boolean debug) {
+
+        stats.addNodeVisit();
+
+        // Skip subtrees that can only contain culled triangles.
+        if (mCullBackfacingTriangles && boundingBox.isBackfacing(r)) {
+            stats.addCulledSubtree();
+            return;
+        }
+
+        if (boundingBox.intersectsRay(r0, r, intersection.getMinT(), debug)) {
+            List<BoundingBox> childList = boundingBox.getChildList();
+
+            if (childList.isEmpty()) {
+                // Leaf node, intersect all triangles.
+                if (debug) {
                     System.out.printf("Testing intersection with %d triangles%n",
                             boundingBox.getTriangleList().size());
                 }
                 for (Triangle triangle : boundingBox.getTriangleList()) {
-                    intersectTriangle(r0, r, triangle, intersection, debug);
+                    intersectTriangle(r0, r, triangle, intersection, stats, debug);
                 }
             } else {
                 // Recurse.
                 for (BoundingBox child : childList) {
-                    intersectBoundingBox(r0, r, child, intersection, debug);
+                    intersectBoundingBox(r0, r, child, intersection, stats, debug);
                 }
             }
         }
     }
 
+    /**
+     * Intersect the ray (r0,r) with the instances in the box (and its children),
+     * updating "intersection" if necessary. The ray is transformed into each
+     * instance's mesh space, which keeps its parametric distances the same, so the
+     * intersection's minimum T can be shared across spaces.
+     */
+    private void intersectInstanceBox(Vector r0, Vector r, InstanceBox instanceBox,
+            Intersection intersection, RenderStats stats, boolean debug) {
+
+        stats.addNodeVisit();
+        if (instanceBox.intersectsRay(r0, r, intersection.getMinT(), debug)) {
+            List<InstanceBox> childList = instanceBox.getChildList();
+
+            if (childList.isEmpty()) {
+                // Leaf node, intersect the mesh of each instance, at the coarsest
+                // level that's within a fraction of a pixel at this distance.
+                for (Instance instance : instanceBox.getInstanceList()) {
+                    Mesh mesh = instance.getMesh();
+                    int level = getLevel(instance, r0);
+
+                    double minT = intersection.getMinT();
+                    intersectBoundingBox(instance.pointToMesh(r0), instance.vectorToMesh(r),
+                            mesh.getBoundingBox(level), intersection, stats, debug);
+                    if (intersection.getMinT() < minT) {
+                        intersection.setInstance(instance);
+                    }
+                }
+            } else {
+                // Recurse.
+                for (InstanceBox child : childList) {
+                    intersectInstanceBox(r0, r, child, intersection, stats, debug);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the coarsest level of the instance's mesh that's within a fraction of
+     * a pixel when seen from r0.
+     */
+    private int getLevel(Instance instance, Vector r0) {
+        return getLevel(instance, r0.get(0), r0.get(1), r0.get(2));
+    }
+
+    /**
+     * Like {@link #getLevel(Instance, Vector)}, for a ray starting at (x,y,z).
+     */
+    private int getLevel(Instance instance, double x, double y, double z) {
+        double maxError = instance.getDistance(x, y, z)*mPixelSize*
+            LEVEL_OF_DETAIL_PIXELS/instance.getScale();
+
+        return instance.getMesh().getLevel(maxError);
+    }
+
     /**
      * Share an intersected point. Just delegates to the material.
      */
@@ -389,4 +1842,19 @@ public class Renderer {
 
         return mMaterial.shade(rayTracer, eye, intersection, mLightList, debug);
     }
+
+    /**
+     * Shade an intersected point into the color, without allocating if the
+     * material is an {@link AccumulatingMaterial}.
+     */
+    private void shade(RayTracer rayTracer, Vector eye, Intersection intersection,
+            ColorAccumulator color, boolean debug) {
+
+        if (mMaterial instanceof AccumulatingMaterial) {
+            ((AccumulatingMaterial) mMaterial).shade(rayTracer, eye, intersection, mLightList,
+                    color, debug);
+        } else {
+            color.set(mMaterial.shade(rayTracer, eye, intersection, mLightList, debug));
+        }
+    }
 }
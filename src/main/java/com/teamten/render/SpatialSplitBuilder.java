@@ -0,0 +1,525 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds a bounding box hierarchy by the surface area heuristic, with spatial splits
+ * as described in "Spatial Splits in Bounding Volume Hierarchies" (Stich et al., 2009).
+ * Each node tries both an object split, which partitions the triangles by centroid,
+ * and a spatial split, which cuts space with a plane and puts triangles straddling it
+ * in both children, each clipped to its own side. Clipping keeps long thin triangles
+ * from stretching boxes far beyond the rest of their contents.
+ *
+ * <p>A triangle may end up in several leaves, and a leaf's box may not contain all of
+ * its triangles. Every triangle hit is still a real hit, and the part of a triangle
+ * in a leaf is always inside its box, so the closest hit is still found.
+ */
+class SpatialSplitBuilder {
+    private static final int OBJECT_BINS = 16;
+    private static final int SPATIAL_BINS = 16;
+    // Cost of visiting a node, relative to testing a triangle.
+    private static final double TRAVERSAL_COST = 1;
+    private static final int MIN_TRIANGLES = 5;
+    private static final int MAX_LEAF_TRIANGLES = 16;
+    private static final int MAX_DEPTH = 64;
+    // Only look for spatial splits when the children of the best object split
+    // overlap by more than this fraction of the root's surface area.
+    private static final double OVERLAP_THRESHOLD = 1e-5;
+    // Roughly the most references per triangle. The allowance is shared out to subtrees by
+    // their size so that the top splits don't use it all up.
+    private static final double MAX_REFERENCE_RATIO = 2;
+    private final double mRootArea;
+
+    /**
+     * A triangle and the part of its bounds that's inside the node holding it.
+     */
+    private static class Reference {
+        final Triangle mTriangle;
+        // Nine coordinates, shared by all references to the triangle.
+        final double[] mPoints;
+        final double[] mBounds;
+
+        Reference(Triangle triangle, double[] points, double[] bounds) {
+            mTriangle = triangle;
+            mPoints = points;
+            mBounds = bounds;
+        }
+
+        double getCentroid(int axis) {
+            return (mBounds[axis] + mBounds[axis + 3])/2;
+        }
+    }
+
+    /**
+     * The best split found for a node.
+     */
+    private static class Split {
+        double mCost = Double.POSITIVE_INFINITY;
+        int mAxis;
+        boolean mSpatial;
+        // Object splits: the first bin of the right child, and the centroid range.
+        int mBin;
+        double mCentroidMin;
+        double mCentroidScale;
+        // Spatial splits: the position of the plane.
+        double mPosition;
+        // Surface area of the intersection of the two children.
+        double mOverlapArea;
+    }
+
+    private SpatialSplitBuilder(BoundingBox root) {
+        mRootArea = getArea(getBounds(root.getMin(), root.getMax()));
+    }
+
+    /**
+     * Build the tree below the root, which must have all its triangles and no children.
+     */
+    static void build(BoundingBox root) {
+        if (root.getMin() == null) {
+            return;
+        }
+
+        List<Reference> referenceList = new ArrayList<Reference>(root.getTriangleList().size());
+        for (Triangle triangle : root.getTriangleList()) {
+            double[] points = new double[Triangle.NUM_VERTICES*3];
+            double[] bounds = makeEmptyBounds();
+            for (int i = 0; i < Triangle.NUM_VERTICES; i++) {
+                Vector point = triangle.get(i).getPoint();
+                for (int axis = 0; axis < 3; axis++) {
+                    points[i*3 + axis] = point.get(axis);
+                }
+                growBounds(bounds, points, i*3);
+            }
+            referenceList.add(new Reference(triangle, points, bounds));
+        }
+
+        new SpatialSplitBuilder(root).split(root, referenceList,
+                getBounds(root.getMin(), root.getMax()), 0,
+                (long) (referenceList.size()*MAX_REFERENCE_RATIO));
+    }
+
+    /**
+     * Split the node if that's cheaper than testing all its references.
+     *
+     * @param maxReferenceCount the most references the subtree may have.
+     */
+    private void split(BoundingBox node, List<Reference> referenceList, double[] bounds,
+            int depth, long maxReferenceCount) {
+
+        int count = referenceList.size();
+        double area = getArea(bounds);
+        if (count < MIN_TRIANGLES || depth >= MAX_DEPTH || area == 0) {
+            return;
+        }
+
+        Split split = new Split();
+        findObjectSplit(referenceList, split);
+        if ((split.mCost == Double.POSITIVE_INFINITY
+                    || split.mOverlapArea > OVERLAP_THRESHOLD*mRootArea)
+                && count < maxReferenceCount) {
+
+            findSpatialSplit(referenceList, bounds, split);
+        }
+
+        double splitCost = TRAVERSAL_COST + split.mCost/area;
+        if (split.mCost == Double.POSITIVE_INFINITY
+                || (splitCost >= count && count <= MAX_LEAF_TRIANGLES)) {
+            return;
+        }
+
+        List<Reference> leftList = new ArrayList<Reference>();
+        List<Reference> rightList = new ArrayList<Reference>();
+        if (split.mSpatial) {
+            performSpatialSplit(referenceList, split, leftList, rightList);
+        } else {
+            for (Reference reference : referenceList) {
+                if (getObjectBin(reference, split) < split.mBin) {
+                    leftList.add(reference);
+                } else {
+                    rightList.add(reference);
+                }
+            }
+        }
+        int leftCount = leftList.size();
+        int rightCount = rightList.size();
+        if (leftCount == 0 || rightCount == 0) {
+            return;
+        }
+
+        // Share what's left of the allowance by size.
+        long spare = Math.max(0, maxReferenceCount - leftCount - rightCount);
+        long leftMaxReferenceCount = leftCount + spare*leftCount/(leftCount + rightCount);
+        long rightMaxReferenceCount = leftCount + rightCount + spare - leftMaxReferenceCount;
+
+        // The parent's list is no longer needed.
+        referenceList.clear();
+
+        double[] leftBounds = getBounds(leftList);
+        double[] rightBounds = getBounds(rightList);
+        BoundingBox left = makeNode(leftList, leftBounds);
+        BoundingBox right = makeNode(rightList, rightBounds);
+        node.addChild(left);
+        node.addChild(right);
+        split(left, leftList, leftBounds, depth + 1, leftMaxReferenceCount);
+        split(right, rightList, rightBounds, depth + 1, rightMaxReferenceCount);
+    }
+
+    /**
+     * Find the cheapest partition of the references by the centroids of their
+     * bounds, binned along each axis.
+     */
+    private void findObjectSplit(List<Reference> referenceList, Split split) {
+        double[] centroidBounds = makeEmptyBounds();
+        for (Reference reference : referenceList) {
+            for (int axis = 0; axis < 3; axis++) {
+                double centroid = reference.getCentroid(axis);
+                centroidBounds[axis] = Math.min(centroidBounds[axis], centroid);
+                centroidBounds[axis + 3] = Math.max(centroidBounds[axis + 3], centroid);
+            }
+        }
+
+        double[][] binBounds = new double[OBJECT_BINS][];
+        int[] binCounts = new int[OBJECT_BINS];
+        double[] rightAreas = new double[OBJECT_BINS];
+        int[] rightCounts = new int[OBJECT_BINS];
+        double[][] rightBounds = new double[OBJECT_BINS][];
+
+        for (int axis = 0; axis < 3; axis++) {
+            double extent = centroidBounds[axis + 3] - centroidBounds[axis];
+            if (extent <= 0) {
+                continue;
+            }
+            double scale = OBJECT_BINS/extent;
+
+            for (int bin = 0; bin < OBJECT_BINS; bin++) {
+                binBounds[bin] = makeEmptyBounds();
+                binCounts[bin] = 0;
+            }
+            for (Reference reference : referenceList) {
+                int bin = getBin(reference.getCentroid(axis), centroidBounds[axis], scale,
+                        OBJECT_BINS);
+                growBounds(binBounds[bin], reference.mBounds);
+                binCounts[bin]++;
+            }
+
+            // Sweep from the right, then from the left.
+            double[] bounds = makeEmptyBounds();
+            int count = 0;
+            for (int bin = OBJECT_BINS - 1; bin > 0; bin--) {
+                growBounds(bounds, binBounds[bin]);
+                count += binCounts[bin];
+                rightAreas[bin] = getArea(bounds);
+                rightCounts[bin] = count;
+                rightBounds[bin] = bounds.clone();
+            }
+            bounds = makeEmptyBounds();
+            count = 0;
+            for (int bin = 1; bin < OBJECT_BINS; bin++) {
+                growBounds(bounds, binBounds[bin - 1]);
+                count += binCounts[bin - 1];
+                if (count == 0 || rightCounts[bin] == 0) {
+                    continue;
+                }
+
+                double cost = getArea(bounds)*count + rightAreas[bin]*rightCounts[bin];
+                if (cost < split.mCost) {
+                    split.mCost = cost;
+                    split.mAxis = axis;
+                    split.mSpatial = false;
+                    split.mBin = bin;
+                    split.mCentroidMin = centroidBounds[axis];
+                    split.mCentroidScale = scale;
+                    split.mOverlapArea = getArea(intersectBounds(bounds, rightBounds[bin]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the cheapest plane to cut the node's bounds with, binned along each axis,
+     * and use it if it's cheaper than the object split already in "split".
+     */
+    private void findSpatialSplit(List<Reference> referenceList, double[] nodeBounds,
+            Split split) {
+
+        double[][] binBounds = new double[SPATIAL_BINS][];
+        int[] entryCounts = new int[SPATIAL_BINS];
+        int[] exitCounts = new int[SPATIAL_BINS];
+        double[] rightAreas = new double[SPATIAL_BINS];
+        int[] rightCounts = new int[SPATIAL_BINS];
+        double[] clipped = new double[6];
+
+        for (int axis = 0; axis < 3; axis++) {
+            double min = nodeBounds[axis];
+            double extent = nodeBounds[axis + 3] - min;
+            if (extent <= 0) {
+                continue;
+            }
+            double scale = SPATIAL_BINS/extent;
+            double binWidth = extent/SPATIAL_BINS;
+
+            for (int bin = 0; bin < SPATIAL_BINS; bin++) {
+                binBounds[bin] = makeEmptyBounds();
+                entryCounts[bin] = 0;
+                exitCounts[bin] = 0;
+            }
+
+            // Add the piece of each reference that's in each bin it touches.
+            for (Reference reference : referenceList) {
+                int firstBin = getBin(reference.mBounds[axis], min, scale, SPATIAL_BINS);
+                int lastBin = getBin(reference.mBounds[axis + 3], min, scale, SPATIAL_BINS);
+                entryCounts[firstBin]++;
+                exitCounts[lastBin]++;
+
+                if (firstBin == lastBin) {
+                    growBounds(binBounds[firstBin], reference.mBounds);
+                } else {
+                    for (int bin = firstBin; bin <= lastBin; bin++) {
+                        double low = bin == firstBin ? Double.NEGATIVE_INFINITY : min + bin*binWidth;
+                        double high = bin == lastBin ? Double.POSITIVE_INFINITY : min + (bin + 1)*binWidth;
+                        if (clip(reference, axis, low, high, clipped)) {
+                            growBounds(binBounds[bin], clipped);
+                        }
+                    }
+                }
+            }
+
+            // Sweep from the right, then from the left.
+            double[] bounds = makeEmptyBounds();
+            int count = 0;
+            for (int bin = SPATIAL_BINS - 1; bin > 0; bin--) {
+                growBounds(bounds, binBounds[bin]);
+                count += exitCounts[bin];
+                rightAreas[bin] = getArea(bounds);
+                rightCounts[bin] = count;
+            }
+            bounds = makeEmptyBounds();
+            count = 0;
+            for (int bin = 1; bin < SPATIAL_BINS; bin++) {
+                growBounds(bounds, binBounds[bin - 1]);
+                count += entryCounts[bin - 1];
+                if (count == 0 || rightCounts[bin] == 0) {
+                    continue;
+                }
+
+                double cost = getArea(bounds)*count + rightAreas[bin]*rightCounts[bin];
+                if (cost < split.mCost) {
+                    split.mCost = cost;
+                    split.mAxis = axis;
+                    split.mSpatial = true;
+                    split.mPosition = min + bin*binWidth;
+                }
+            }
+        }
+    }
+
+    /**
+     * Put each reference on its side of the plane, clipping those that straddle it
+     * into one reference on each side.
+     */
+    private static void performSpatialSplit(List<Reference> referenceList, Split split,
+            List<Reference> leftList, List<Reference> rightList) {
+
+        int axis = split.mAxis;
+        double position = split.mPosition;
+
+        for (Reference reference : referenceList) {
+            if (reference.mBounds[axis + 3] <= position) {
+                leftList.add(reference);
+            } else if (reference.mBounds[axis] >= position) {
+                rightList.add(reference);
+            } else {
+                double[] leftBounds = new double[6];
+                if (clip(reference, axis, Double.NEGATIVE_INFINITY, position, leftBounds)) {
+                    leftList.add(new Reference(reference.mTriangle, reference.mPoints, leftBounds));
+                }
+                double[] rightBounds = new double[6];
+                if (clip(reference, axis, position, Double.POSITIVE_INFINITY, rightBounds)) {
+                    rightList.add(new Reference(reference.mTriangle, reference.mPoints, rightBounds));
+                }
+            }
+        }
+    }
+
+    /**
+     * Put the bounds of the part of the reference's triangle between low and high
+     * along the axis into "bounds". Returns whether any part is inside.
+     */
+    private static boolean clip(Reference reference, int axis, double low, double high,
+            double[] bounds) {
+
+        // Clip the triangle against each plane in turn, Sutherland-Hodgman style.
+        double[] polygon = reference.mPoints;
+        int count = Triangle.NUM_VERTICES;
+        if (low != Double.NEGATIVE_INFINITY) {
+            polygon = clipPolygon(polygon, count, axis, low, 1);
+            count = polygon.length/3;
+        }
+        if (high != Double.POSITIVE_INFINITY) {
+            polygon = clipPolygon(polygon, count, axis, high, -1);
+            count = polygon.length/3;
+        }
+        if (count == 0) {
+            return false;
+        }
+
+        Arrays.fill(bounds, 0, 3, Double.POSITIVE_INFINITY);
+        Arrays.fill(bounds, 3, 6, Double.NEGATIVE_INFINITY);
+        for (int i = 0; i < count; i++) {
+            growBounds(bounds, polygon, i*3);
+        }
+
+        // Stay within the reference's bounds and the slab, in spite of rounding.
+        for (int i = 0; i < 3; i++) {
+            bounds[i] = Math.max(bounds[i], reference.mBounds[i]);
+            bounds[i + 3] = Math.min(bounds[i + 3], reference.mBounds[i + 3]);
+        }
+        bounds[axis] = Math.max(bounds[axis], low);
+        bounds[axis + 3] = Math.min(bounds[axis + 3], high);
+
+        return bounds[0] <= bounds[3] && bounds[1] <= bounds[4] && bounds[2] <= bounds[5];
+    }
+
+    /**
+     * Keep the part of the polygon where (p[axis] - position)*side >= 0. Returns the
+     * new polygon, three coordinates per vertex.
+     */
+    private static double[] clipPolygon(double[] polygon, int count, int axis,
+            double position, int side) {
+
+        double[] result = new double[(count + 1)*3];
+        int resultCount = 0;
+
+        for (int i = 0; i < count; i++) {
+            int j = (i + 1) % count;
+            double di = (polygon[i*3 + axis] - position)*side;
+            double dj = (polygon[j*3 + axis] - position)*side;
+
+            if (di >= 0) {
+                System.arraycopy(polygon, i*3, result, resultCount*3, 3);
+                resultCount++;
+            }
+            if ((di < 0 && dj > 0) || (di > 0 && dj < 0)) {
+                double t = di/(di - dj);
+                for (int k = 0; k < 3; k++) {
+                    result[resultCount*3 + k] = polygon[i*3 + k]
+                        + t*(polygon[j*3 + k] - polygon[i*3 + k]);
+                }
+                result[resultCount*3 + axis] = position;
+                resultCount++;
+            }
+        }
+
+        return Arrays.copyOf(result, resultCount*3);
+    }
+
+    private static int getObjectBin(Reference reference, Split split) {
+        return getBin(reference.getCentroid(split.mAxis), split.mCentroidMin,
+                split.mCentroidScale, OBJECT_BINS);
+    }
+
+    private static int getBin(double value, double min, double scale, int binCount) {
+        int bin = (int) ((value - min)*scale);
+
+        return Math.max(0, Math.min(binCount - 1, bin));
+    }
+
+    private static BoundingBox makeNode(List<Reference> referenceList, double[] bounds) {
+        List<Triangle> triangleList = new ArrayList<Triangle>(referenceList.size());
+        for (Reference reference : referenceList) {
+            triangleList.add(reference.mTriangle);
+        }
+
+        return new BoundingBox(Vector.make(bounds[0], bounds[1], bounds[2]),
+                Vector.make(bounds[3], bounds[4], bounds[5]), triangleList);
+    }
+
+    private static double[] makeEmptyBounds() {
+        return new double[] {
+            Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+        };
+    }
+
+    private static double[] getBounds(Vector min, Vector max) {
+        return new double[] {
+            min.get(0), min.get(1), min.get(2), max.get(0), max.get(1), max.get(2),
+        };
+    }
+
+    private static double[] getBounds(List<Reference> referenceList) {
+        double[] bounds = makeEmptyBounds();
+        for (Reference reference : referenceList) {
+            growBounds(bounds, reference.mBounds);
+        }
+
+        return bounds;
+    }
+
+    /**
+     * Grow the bounds to include the other bounds.
+     */
+    private static void growBounds(double[] bounds, double[] other) {
+        for (int i = 0; i < 3; i++) {
+            bounds[i] = Math.min(bounds[i], other[i]);
+            bounds[i + 3] = Math.max(bounds[i + 3], other[i + 3]);
+        }
+    }
+
+    /**
+     * Grow the bounds to include the point whose coordinates start at "offset".
+     */
+    private static void growBounds(double[] bounds, double[] points, int offset) {
+        for (int i = 0; i < 3; i++) {
+            bounds[i] = Math.min(bounds[i], points[offset + i]);
+            bounds[i + 3] = Math.max(bounds[i + 3], points[offset + i]);
+        }
+    }
+
+    private static double[] intersectBounds(double[] a, double[] b) {
+        double[] bounds = new double[6];
+        for (int i = 0; i < 3; i++) {
+            bounds[i] = Math.max(a[i], b[i]);
+            bounds[i + 3] = Math.min(a[i + 3], b[i + 3]);
+        }
+
+        return bounds;
+    }
+
+    /**
+     * Surface area of the bounds, or zero if they're empty.
+     */
+    private static double getArea(double[] bounds) {
+        double dx = bounds[3] - bounds[0];
+        double dy = bounds[4] - bounds[1];
+        double dz = bounds[5] - bounds[2];
+        if (dx < 0 || dy < 0 || dz < 0) {
+            return 0;
+        }
+
+        return 2*(dx*dy + dy*dz + dz*dx);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the pixels of recently rendered tiles so that tiles that are requested
+ * again don't have to be traced. Bounded by the total size of the pixels, evicting
+ * the least recently used tiles first. Thread-safe.
+ */
+class TileCache {
+    private static final int BYTES_PER_PIXEL = 4;
+    private final long mMaxBytes;
+    // In access order, so the first entry is the least recently used.
+    private final Map<Key,int[]> mTileMap = new LinkedHashMap<Key,int[]>(16, 0.75f, true);
+    private long mBytes = 0;
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+
+    /**
+     * Everything that determines the pixels of a tile.
+     */
+    static final class Key {
+        private final long mSceneVersion;
+        private final float[] mParameters;
+
+        /**
+         * @param sceneVersion identifies the geometry, unique across connections.
+         * @param camera the camera parameters as sent by the client.
+         * @param settings the render settings that affect the pixels.
+         */
+        Key(long sceneVersion, float[] camera, float u, float v, float du, float dv,
+                int width, int height, int settings) {
+
+            mSceneVersion = sceneVersion;
+            mParameters = Arrays.copyOf(camera, camera.length + 7);
+            int i = camera.length;
+            mParameters[i++] = u;
+            mParameters[i++] = v;
+            mParameters[i++] = du;
+            mParameters[i++] = dv;
+            mParameters[i++] = width;
+            mParameters[i++] = height;
+            mParameters[i++] = settings;
+        }
+
+        @Override // Object
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) o;
+            return mSceneVersion == other.mSceneVersion
+                && Arrays.equals(mParameters, other.mParameters);
+        }
+
+        @Override // Object
+        public int hashCode() {
+            return 31*Long.hashCode(mSceneVersion) + Arrays.hashCode(mParameters);
+        }
+    }
+
+    /**
+     * @param maxBytes the total size of the pixels kept, at four bytes per pixel.
+     */
+    TileCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the ARGB pixels of the tile, or null if it's not in the cache. The
+     * array must not be modified.
+     */
+    synchronized int[] get(Key key) {
+        int[] pixels = mTileMap.get(key);
+        if (pixels == null) {
+            mMissCount++;
+        } else {
+            mHitCount++;
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Keep the ARGB pixels of the tile, which must not be modified afterward.
+     * Tiles larger than the whole cache aren't kept.
+     */
+    synchronized void put(Key key, int[] pixels) {
+        long bytes = (long) pixels.length*BYTES_PER_PIXEL;
+        if (bytes > mMaxBytes) {
+            return;
+        }
+
+        int[] oldPixels = mTileMap.put(key, pixels);
+        if (oldPixels != null) {
+            mBytes -= (long) oldPixels.length*BYTES_PER_PIXEL;
+        }
+        mBytes += bytes;
+
+        Iterator<int[]> iterator = mTileMap.values().iterator();
+        while (mBytes > mMaxBytes) {
+            mBytes -= (long) iterator.next().length*BYTES_PER_PIXEL;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Number of lookups that found their tile.
+     */
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Number of lookups that didn't find their tile.
+     */
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    @Override // Object
+    public synchronized String toString() {
+        long lookupCount = mHitCount + mMissCount;
+        return String.format("%,d tiles, %,d of %,d bytes, %,d hits and %,d misses (%.0f%% hit rate)",
+                mTileMap.size(), mBytes, mMaxBytes, mHitCount, mMissCount,
+                lookupCount == 0 ? 0.0 : mHitCount*100.0/lookupCount);
+    }
+}
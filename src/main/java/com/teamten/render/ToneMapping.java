@@ -0,0 +1,72 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package com.teamten.render;
+
+/**
+ * How a {@link FrameBuffer}'s unbounded colors are brought into the 0 to 1 range of
+ * an 8-bit image.
+ */
+public enum ToneMapping {
+    /**
+     * Clamp each channel to 0 to 1. Anything brighter than white is lost.
+     */
+    CLAMP {
+        @Override // ToneMapping
+        float map(float value) {
+            return value;
+        }
+    },
+
+    /**
+     * Map each channel with x/(1 + x), as in "Photographic Tone Reproduction for
+     * Digital Images" (Reinhard et al., 2002), so that bright values are compressed
+     * rather than clipped.
+     */
+    REINHARD {
+        @Override // ToneMapping
+        float map(float value) {
+            return value/(1 + value);
+        }
+    };
+
+    /**
+     * Map a non-negative channel value. The result is clamped afterward.
+     */
+    abstract float map(float value);
+
+    /**
+     * Map and quantize a color to packed 8-bit ARGB, like {@link Color#toArgb}.
+     * Alpha is clamped but not mapped.
+     */
+    int toArgb(float alpha, float red, float green, float blue) {
+        return (quantize(alpha) << 24)
+            | (quantize(map(red > 0 ? red : 0)) << 16)
+            | (quantize(map(green > 0 ? green : 0)) << 8)
+            | quantize(map(blue > 0 ? blue : 0));
+    }
+
+    /**
+     * Clamp to 0 to 1 and scale to 0 to 255. Comparisons are much faster than
+     * Math.min() and Math.max(), which must handle NaN and negative zero.
+     */
+    private static int quantize(float value) {
+        return (int) ((value < 0 ? 0 : value > 1 ? 1 : value)*255);
+    }
+}
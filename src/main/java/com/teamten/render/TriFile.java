@@ -0,0 +1,97 @@
+/*
+ *
+ *    Copyright 2016 Lawrence Kesteloot
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package com.teamten.render;
+
+import com.teamten.math.Vector;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the ".tri" model format, such as the files in the "models" directory.
+ * Each line has the nine coordinates of a triangle's three vertices, counter-clockwise
+ * when seen from the front, followed by a color, which is ignored. Files ending in
+ * ".gz" are decompressed.
+ */
+public class TriFile {
+    /**
+     * Read all triangles of the file. Vertex normals are set to the triangle's
+     * geometric normal. Degenerate triangles are skipped.
+     */
+    public static List<Triangle> read(File file) throws IOException {
+        List<Triangle> triangleList = new ArrayList<Triangle>();
+
+        InputStream inputStream = new FileInputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            inputStream = new GZIPInputStream(inputStream);
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                String[] fields = line.split("\\s+");
+                if (fields.length < 9) {
+                    throw new IOException(file + ":" + lineNumber + ": expected nine coordinates");
+                }
+
+                Vector[] points = new Vector[Triangle.NUM_VERTICES];
+                for (int i = 0; i < Triangle.NUM_VERTICES; i++) {
+                    points[i] = Vector.make(
+                            Double.parseDouble(fields[i*3]),
+                            Double.parseDouble(fields[i*3 + 1]),
+                            Double.parseDouble(fields[i*3 + 2]));
+                }
+
+                // The file is counter-clockwise, so this is the front.
+                Vector normal = points[1].subtract(points[0]).cross(points[2].subtract(points[1]));
+                if (normal.length() == 0) {
+                    continue;
+                }
+                normal = normal.normalize();
+
+                // Reverse the order since Triangle expects clockwise vertices.
+                try {
+                    triangleList.add(new Triangle(
+                                new Vertex(points[2], normal),
+                                new Vertex(points[1], normal),
+                                new Vertex(points[0], normal)));
+                } catch (DegenerateTriangleException e) {
+                    // Skip.
+                }
+            }
+        }
+
+        return triangleList;
+    }
+}
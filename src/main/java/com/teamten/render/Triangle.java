@@ -25,6 +25,7 @@ import com.teamten.math.Vector;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Represents an immutable triangle in 3D.
@@ -69,6 +70,45 @@ public class Triangle {
         }
     }
 
+    /**
+     * Copy of the triangle with different vertices at the same points.
+     */
+    private Triangle(Triangle triangle, Vertex[] vertices) {
+        for (int i = 0; i < NUM_VERTICES; i++) {
+            mVertices[i] = vertices[i];
+            mEdges[i] = triangle.mEdges[i];
+            mEdgeNormals[i] = triangle.mEdgeNormals[i];
+        }
+        mNormal = triangle.mNormal;
+        mCentroid = triangle.mCentroid;
+    }
+
+    /**
+     * Returns a triangle like this one but with its vertex normals encoded, sharing
+     * everything else. See {@link Vertex#withEncodedNormal()}. The map from original
+     * to encoded vertices keeps vertices that are shared by several triangles shared,
+     * and is updated. Returns this triangle if its normals are already encoded.
+     */
+    Triangle withEncodedNormals(Map<Vertex,Vertex> encodedVertexMap) {
+        Vertex[] vertices = new Vertex[NUM_VERTICES];
+        boolean changed = false;
+        for (int i = 0; i < NUM_VERTICES; i++) {
+            Vertex vertex = mVertices[i];
+            if (!vertex.hasEncodedNormal()) {
+                Vertex encodedVertex = encodedVertexMap.get(vertex);
+                if (encodedVertex == null) {
+                    encodedVertex = vertex.withEncodedNormal();
+                    encodedVertexMap.put(vertex, encodedVertex);
+                }
+                vertex = encodedVertex;
+                changed = true;
+            }
+            vertices[i] = vertex;
+        }
+
+        return changed ? new Triangle(this, vertices) : this;
+    }
+
     /**
      * Return vertex at index (0, 1, or 2), with no bounds checking.
      */
@@ -25,7 +25,6 @@ import com.google.common.io.LittleEndianDataOutputStream;
 
 import com.teamten.math.Vector;
 import com.teamten.render.Renderer;
-import com.teamten.render.Triangle;
 
 import java.awt.image.BufferedImage;
 
@@ -46,21 +45,45 @@ public class UrtConnection extends Thread {
     private static final int REQUEST_TYPE_TRACE_TILE = 1;
     private static final int REQUEST_TYPE_ADD_TRIANGLES = 2;
     private static final int REQUEST_TYPE_SET_CAMERA = 3;
+    private static final int REQUEST_TYPE_ADD_INDEXED_MESH = 4;
+    private static final int SUPER_SAMPLE = 1;
+    // Rasterizing projects every triangle of the scene for each tile, which costs far
+    // more than tracing a small tile's rays, so tiles are traced.
+    private static final boolean RASTERIZE_PRIMARY_VISIBILITY = false;
+    // The renderer setup that affects pixels, as part of the tile cache key.
+    private static final int RENDER_SETTINGS = SUPER_SAMPLE << 1 | (RASTERIZE_PRIMARY_VISIBILITY ? 1 : 0);
+    private final UrtServer mServer;
     private final Socket mSocket;
     private final Renderer mRenderer;
     private boolean mGeometryChanged = true;
-
-    public UrtConnection(Socket socket) {
+    private long mSceneVersion;
+    // Geometry uploaded since the last build, with shared vertices stored once.
+    private IndexedMesh mIndexedMesh = new IndexedMesh();
+    // As sent by the client. Empty for the initial camera.
+    private float[] mCameraParameters = new float[0];
+    // Set while serving requests, so that renders can look for newer requests.
+    private BufferedInputStream mInputStream = null;
+
+    public UrtConnection(UrtServer server, Socket socket) {
+        mServer = server;
         mSocket = socket;
-        mRenderer = new Renderer(1);
+        mRenderer = new Renderer(SUPER_SAMPLE);
+        // Clients send floats, so nothing is lost by storing them that way, and
+        // keeping them off the heap means large models don't slow down GC.
+        mRenderer.setHierarchyFormat(HierarchyFormat.FLOAT);
+        mRenderer.setOffHeapGeometry(true);
+        // Clients upload new geometry often, so build quickly rather than well.
+        mRenderer.setHierarchyBuilder(HierarchyBuilder.LINEAR);
+        mRenderer.setRasterizePrimaryVisibility(RASTERIZE_PRIMARY_VISIBILITY);
         mRenderer.lookAt(Vector.make(2, 2, 2), Vector.make(0, 0, 0), null);
+        mSceneVersion = server.nextSceneVersion();
     }
 
     @Override
     public void run() {
         try {
-            LittleEndianDataInputStream is = new LittleEndianDataInputStream(
-                    new BufferedInputStream(mSocket.getInputStream()));
+            mInputStream = new BufferedInputStream(mSocket.getInputStream());
+            LittleEndianDataInputStream is = new LittleEndianDataInputStream(mInputStream);
             LittleEndianDataOutputStream os = new LittleEndianDataOutputStream(
                     new BufferedOutputStream(mSocket.getOutputStream()));
 
@@ -89,6 +112,10 @@ public class UrtConnection extends Thread {
                         setCamera(is, os);
                         break;
 
+                    case REQUEST_TYPE_ADD_INDEXED_MESH:
+                        addIndexedMesh(is, os);
+                        break;
+
                     default:
                         // Already read the request type.
                         int skipping = length - 4;
@@ -104,6 +131,10 @@ public class UrtConnection extends Thread {
             System.err.println("Client closed connection");
         } catch (IOException e) {
             System.err.println("Got exception reading from stream: " + e);
+        } finally {
+            // The scene belongs to this connection.
+            mRenderer.releaseGeometry();
+            System.out.println("Tile cache: " + mServer.getTileCache());
         }
     }
 
@@ -118,34 +149,105 @@ public class UrtConnection extends Thread {
             System.out.printf("traceTile(%g,%g,%g,%g,%d,%d)%n", u, v, du, dv, w, h);
         }
 
+        int elementCount = w*h*3;
+        os.writeInt(elementCount*4); // Length
+
+        // Repaints and going back to an earlier view ask for the same tiles again.
+        TileCache tileCache = mServer.getTileCache();
+        TileCache.Key key = new TileCache.Key(mSceneVersion, mCameraParameters,
+                u, v, du, dv, w, h, RENDER_SETTINGS);
+        int[] pixels = tileCache.get(key);
+        if (pixels != null) {
+            if (DEBUG_PRINT) {
+                System.out.println("Tile was cached");
+            }
+            writeTile(pixels, os);
+            return;
+        }
+
         if (mGeometryChanged) {
             // Precompute geometry stuff.
+            if (mIndexedMesh.getTriangleCount() > 0) {
+                mRenderer.addIndexedMesh(mIndexedMesh);
+                mIndexedMesh = new IndexedMesh();
+            }
             mRenderer.prepareGeometry();
 
             mGeometryChanged = false;
         }
 
-        int elementCount = w*h*3;
-        os.writeInt(elementCount*4); // Length
+        // Stop early if the client has already moved the camera, since then it won't
+        // look at this tile. It still gets the partly-rendered tile it asked for.
+        CancellationToken cancellationToken = new CancellationToken() {
+            @Override // CancellationToken
+            public boolean isCancelled() {
+                if (!super.isCancelled() && isCameraChangePending()) {
+                    cancel();
+                }
+
+                return super.isCancelled();
+            }
+        };
+        BufferedImage renderedImage = mRenderer.render(w, h, u, v, du, dv, cancellationToken);
+        RenderStats renderStats = mRenderer.getRenderStats();
+        mServer.addRenderStats(renderStats);
+        if (DEBUG_PRINT) {
+            System.out.println("Traced tile: " + renderStats);
+        }
 
-        BufferedImage renderedImage = mRenderer.render(w, h, u, v, du, dv);
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                int rgb = renderedImage.getRGB(x, y);
+        pixels = renderedImage.getRGB(0, 0, w, h, null, 0, w);
 
-                // This seems to be backward.
-                int red = rgb & 0xFF;
-                int green = (rgb >> 8) & 0xFF;
-                int blue = (rgb >> 16) & 0xFF;
+        // Cancelled tiles are incomplete.
+        if (renderStats.getSkippedTileCount() == 0) {
+            tileCache.put(key, pixels);
+        }
+
+        writeTile(pixels, os);
+    }
+
+    /**
+     * Write the tile's ARGB pixels as floats.
+     */
+    private void writeTile(int[] pixels, DataOutput os) throws IOException {
+        for (int rgb : pixels) {
+            // This seems to be backward.
+            int red = rgb & 0xFF;
+            int green = (rgb >> 8) & 0xFF;
+            int blue = (rgb >> 16) & 0xFF;
+
+            float rf = red/255.0f;
+            float gf = green/255.0f;
+            float bf = blue/255.0f;
+
+            os.writeFloat(rf);
+            os.writeFloat(gf);
+            os.writeFloat(bf);
+        }
+    }
 
-                float rf = red/255.0f;
-                float gf = green/255.0f;
-                float bf = blue/255.0f;
+    /**
+     * Whether the next request, if it has already arrived, sets the camera. Peeks at
+     * the stream without consuming anything. Called from render threads while the
+     * connection thread is rendering, so nothing else reads the stream.
+     */
+    private synchronized boolean isCameraChangePending() {
+        try {
+            // Length and request type.
+            if (mInputStream.available() < 8) {
+                return false;
+            }
 
-                os.writeFloat(rf);
-                os.writeFloat(gf);
-                os.writeFloat(bf);
+            mInputStream.mark(8);
+            try {
+                LittleEndianDataInputStream is = new LittleEndianDataInputStream(mInputStream);
+                int unusedLength = is.readInt();
+                return is.readInt() == REQUEST_TYPE_SET_CAMERA;
+            } finally {
+                mInputStream.reset();
             }
+        } catch (IOException e) {
+            // Let the connection thread find out.
+            return false;
         }
     }
 
@@ -174,19 +276,67 @@ public class UrtConnection extends Thread {
             float n3z = is.readFloat();
 
             if (i < triangleCount) {
-                try {
-                    Triangle triangle = new Triangle(
-                            new Vertex(Vector.make(v3x, v3y, v3z), Vector.make(n3x, n3y, n3z)),
-                            new Vertex(Vector.make(v2x, v2y, v2z), Vector.make(n2x, n2y, n2z)),
-                            new Vertex(Vector.make(v1x, v1y, v1z), Vector.make(n1x, n1y, n1z)));
-                    mRenderer.addTriangle(triangle);
-                } catch (DegenerateTriangleException e) {
-                    // Ignore degenerate triangle.
-                }
+                // Reverse the order since Triangle expects clockwise vertices.
+                // Degenerate triangles are dropped when the mesh is built.
+                mIndexedMesh.addTriangle(
+                        mIndexedMesh.addVertex(v3x, v3y, v3z, n3x, n3y, n3z),
+                        mIndexedMesh.addVertex(v2x, v2y, v2z, n2x, n2y, n2z),
+                        mIndexedMesh.addVertex(v1x, v1y, v1z, n1x, n1y, n1z));
+            }
+        }
+
+        mGeometryChanged = true;
+        mSceneVersion = mServer.nextSceneVersion();
+    }
+
+    /**
+     * Add triangles sent as a vertex buffer (position and normal of each vertex)
+     * followed by an index buffer (three vertex indices per triangle, in the same
+     * order as the vertices of the add-triangles request).
+     */
+    private void addIndexedMesh(DataInput is, DataOutput os) throws IOException {
+        int vertexCount = is.readInt();
+        int triangleCount = is.readInt();
+
+        // Clients may send the same vertex more than once, so map their indices to ours.
+        int[] vertexIndices = new int[vertexCount];
+        for (int i = 0; i < vertexCount; i++) {
+            float x = is.readFloat();
+            float y = is.readFloat();
+            float z = is.readFloat();
+            float nx = is.readFloat();
+            float ny = is.readFloat();
+            float nz = is.readFloat();
+            vertexIndices[i] = mIndexedMesh.addVertex(x, y, z, nx, ny, nz);
+        }
+
+        for (int i = 0; i < triangleCount; i++) {
+            int index1 = is.readInt();
+            int index2 = is.readInt();
+            int index3 = is.readInt();
+
+            if (index1 < 0 || index1 >= vertexCount
+                    || index2 < 0 || index2 >= vertexCount
+                    || index3 < 0 || index3 >= vertexCount) {
+
+                System.err.printf("Triangle %d has vertex index out of range of %d vertices%n",
+                        i, vertexCount);
+                continue;
             }
+
+            // Reverse the order since Triangle expects clockwise vertices.
+            mIndexedMesh.addTriangle(vertexIndices[index3], vertexIndices[index2],
+                    vertexIndices[index1]);
+        }
+
+        if (DEBUG_PRINT) {
+            System.out.printf("Indexed mesh has %,d vertices and %,d triangles (%,d bytes)%n",
+                    mIndexedMesh.getVertexCount(), mIndexedMesh.getTriangleCount(),
+                    mIndexedMesh.getMemorySize());
         }
 
         mGeometryChanged = true;
+        mSceneVersion = mServer.nextSceneVersion();
     }
 
     private void setCamera(DataInput is, DataOutput os) throws IOException {
@@ -216,6 +366,13 @@ public class UrtConnection extends Thread {
         float fovYHeight = is.readFloat();
         boolean isPerspective = is.readInt() != 0;
 
+        mCameraParameters = new float[] {
+            (float) eye.get(0), (float) eye.get(1), (float) eye.get(2),
+            (float) target.get(0), (float) target.get(1), (float) target.get(2),
+            (float) up.get(0), (float) up.get(1), (float) up.get(2),
+            fovXWidth, fovYHeight, isPerspective ? 1 : 0,
+        };
+
         // Assume that we're doing perspective.
         mRenderer.lookAt(eye, target, up);
         mRenderer.setFov(fovXWidth*Math.PI/180, fovYHeight*Math.PI/180);
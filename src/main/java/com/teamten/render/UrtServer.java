@@ -27,10 +27,17 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Serves ray-tracing for the URT (universal ray-tracer) infrastructure.
  */
 public class UrtServer {
+    private static final long TILE_CACHE_BYTES = 64*1024*1024;
+    private final RenderStats mRenderStats = new RenderStats();
+    private final TileCache mTileCache = new TileCache(TILE_CACHE_BYTES);
+    private final AtomicLong mSceneVersion = new AtomicLong();
+
     public static void main(String[] args) throws IOException {
         int port = 12345;
 
@@ -54,8 +61,42 @@ public class UrtServer {
             System.out.println("Got connection from " + socket.getRemoteSocketAddress());
 
             // Start thread to handle the connection.
-            new UrtConnection(socket).start();
+            new UrtConnection(this, socket).start();
         }
     }
-}
 
+    /**
+     * Add the stats of a render done for one of our connections.
+     */
+    public void addRenderStats(RenderStats renderStats) {
+        synchronized (mRenderStats) {
+            mRenderStats.merge(renderStats);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the stats of all renders done by this server so far.
+     */
+    public RenderStats getRenderStats() {
+        RenderStats renderStats = new RenderStats();
+        synchronized (mRenderStats) {
+            renderStats.merge(mRenderStats);
+        }
+        return renderStats;
+    }
+
+    /**
+     * Returns a new scene version, different from all others given out by this
+     * server, for the tile cache to tell scenes apart.
+     */
+    long nextSceneVersion() {
+        return mSceneVersion.incrementAndGet();
+    }
+
+    /**
+     * Returns the cache of tiles rendered for all connections.
+     */
+    TileCache getTileCache() {
+        return mTileCache;
+    }
+}
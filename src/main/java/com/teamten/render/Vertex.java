@@ -23,15 +23,49 @@ package com.teamten.render;
 import com.teamten.math.Vector;
 
 /**
- * Immutable structure to store all information about a triangle vertex.
+ * Immutable structure to store all information about a triangle vertex. The
+ * normal is either a vector or, to save memory, octahedral-encoded in 32 bits.
  */
 public class Vertex {
     private final Vector mPoint;
+    // Null if the normal is in mEncodedNormal.
     private final Vector mNormal;
+    private final int mEncodedNormal;
 
     public Vertex(Vector point, Vector normal) {
         mPoint = point;
         mNormal = normal;
+        mEncodedNormal = 0;
+    }
+
+    /**
+     * Make a vertex whose normal was encoded by {@link OctahedralNormal}.
+     */
+    Vertex(Vector point, int encodedNormal) {
+        mPoint = point;
+        mNormal = null;
+        mEncodedNormal = encodedNormal;
+    }
+
+    /**
+     * Returns a vertex at the same point with the normal encoded in 32 bits, which
+     * keeps about 16 bits per component and saves the normal vector. The encoded
+     * normal is unit length. Returns this vertex if its normal is already encoded.
+     */
+    public Vertex withEncodedNormal() {
+        if (mNormal == null) {
+            return this;
+        }
+
+        return new Vertex(mPoint, OctahedralNormal.encode(mNormal));
+    }
+
+    /**
+     * Whether the normal is encoded, in which case {@link #getNormal()} makes a new
+     * vector on every call.
+     */
+    public boolean hasEncodedNormal() {
+        return mNormal == null;
     }
 
     public Vector getPoint() {
@@ -39,6 +73,18 @@ public class Vertex {
     }
 
     public Vector getNormal() {
+        if (mNormal == null) {
+            return OctahedralNormal.decode(mEncodedNormal);
+        }
+
         return mNormal;
     }
+
+    /**
+     * Decode the encoded normal into normal[0..2] without making a vector. Only for
+     * vertices whose normal {@link #hasEncodedNormal is encoded}.
+     */
+    void decodeNormal(double[] normal) {
+        OctahedralNormal.decode(mEncodedNormal, normal);
+    }
 }